@@ -0,0 +1,33 @@
+import ir.*;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class IRConvert {
+    public static void main(String[] args)
+            throws IOException, IRException
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: java IRConvert <path/to/input.ir|input.irb> <path/to/output.ir|output.irb>");
+            System.err.println("Text or binary input is detected; output is binary if its name ends in .irb");
+            System.exit(1);
+        }
+
+        IRReader irReader = new IRReader();
+        IRProgram irProgram = IRReader.isIRBinary(args[0])
+                ? irReader.readIRBinary(args[0]) : irReader.parseIRFile(args[0]);
+
+        if (args[1].endsWith(".irb")) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+                new IRBinaryWriter(out).writeProgram(irProgram);
+            }
+        } else {
+            try (PrintStream out = new PrintStream(args[1])) {
+                new IRPrinter(out).printProgram(irProgram);
+            }
+        }
+    }
+}
@@ -1,22 +1,130 @@
+import interpreter.*;
 import ir.*;
-import ir.datatype.IRArrayType;
-import ir.datatype.IRIntType;
-import ir.datatype.IRType;
+import ir.datatype.IRFloatType;
 import ir.operand.*;
+import ir.opt.PassManager;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class IRInterpreter {
 
     public static void main(String[] args) throws Exception {
-        IRInterpreter irInterpreter = new IRInterpreter(args[0]);
+        String filename = null;
+        String engine = ENGINE_TREE;
+        int callThreshold = TierManager.DEFAULT_CALL_THRESHOLD;
+        int backEdgeThreshold = TierManager.DEFAULT_BACK_EDGE_THRESHOLD;
+        String statsMode = null;
+        String statsOut = null;
+        String profileOut = null;
+        String batchDir = null;
+        int memoCapacity = 0;
+        int optLevel = 0;
+        boolean parallelParse = false;
+        boolean lazyParse = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--tier-thresholds=")) {
+                String[] thresholds = arg.substring("--tier-thresholds=".length()).split(",");
+                callThreshold = Integer.parseInt(thresholds[0]);
+                backEdgeThreshold = Integer.parseInt(thresholds[thresholds.length - 1]);
+            } else if (arg.startsWith("--stats=")) {
+                statsMode = arg.substring("--stats=".length());
+            } else if (arg.startsWith("--stats-out=")) {
+                statsOut = arg.substring("--stats-out=".length());
+            } else if (arg.startsWith("--profile=")) {
+                profileOut = arg.substring("--profile=".length());
+            } else if (arg.equals("--memoize")) {
+                memoCapacity = Memoizer.DEFAULT_CAPACITY;
+            } else if (arg.startsWith("--memoize=")) {
+                memoCapacity = Integer.parseInt(arg.substring("--memoize=".length()));
+            } else if (arg.matches("-O\\d+")) {
+                optLevel = Integer.parseInt(arg.substring(2));
+            } else if (arg.equals("--parallel-parse")) {
+                parallelParse = true;
+            } else if (arg.equals("--lazy-parse")) {
+                lazyParse = true;
+            } else if (arg.startsWith("--batch=")) {
+                batchDir = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+            } else {
+                filename = arg;
+            }
+        }
+        // Exporting needs the per-function and per-line counts
+        if (statsMode == null)
+            statsMode = statsOut != null ? "full" : "totals";
+        if (filename == null || optLevel > PassManager.MAX_LEVEL || !(engine.equals(ENGINE_TREE) || engine.equals(ENGINE_BYTECODE)
+                || engine.equals(ENGINE_JIT) || engine.equals(ENGINE_TIERED))
+                || !(statsMode.equals("off") || statsMode.equals("totals") || statsMode.equals("full"))
+                || (statsOut != null && !statsMode.equals("full"))
+                || (profileOut != null && !engine.equals(ENGINE_TREE))
+                || (memoCapacity != 0 && !engine.equals(ENGINE_TREE))
+                || (batchDir != null && (statsOut != null || profileOut != null))) {
+            System.err.println("Usage: java IRInterpreter [--engine=tree|bytecode|jit|tiered] "
+                    + "[--tier-thresholds=calls,back-edges] [--stats=off|totals|full] "
+                    + "[--stats-out=<counts.csv|counts.json>] [--profile=<stacks.folded>] "
+                    + "[--memoize[=entries]] [--parallel-parse] [--lazy-parse] [-O0|-O1|-O2] <path/to/program.ir|program.irb>");
+            System.err.println("       java IRInterpreter [--engine=...] [--stats=off|totals] "
+                    + "--batch=<dir with .in/.out files> [--jobs=N] <path/to/program.ir>");
+            System.err.println("--profile and --memoize need the tree engine");
+            System.exit(1);
+        }
 
-        irInterpreter.run();
+        IRReader irReader = new IRReader();
+        irReader.setParallel(parallelParse);
+        irReader.setLazy(lazyParse);
+        IRProgram program = IRReader.isIRBinary(filename)
+                ? irReader.readIRBinary(filename) : irReader.parseIRFile(filename);
+        // Run the program as the compiler would emit it at this level
+        PassManager.forLevel(optLevel).run(program);
+        IRInterpreter irInterpreter = new IRInterpreter(program);
+        irInterpreter.setEngine(engine);
+        irInterpreter.setTierThresholds(callThreshold, backEdgeThreshold);
+        irInterpreter.setStatsMode(Stats.Mode.valueOf(statsMode.toUpperCase()));
+        irInterpreter.setProfiling(profileOut != null);
+        irInterpreter.setMemoization(memoCapacity);
+
+        if (batchDir != null) {
+            boolean passed = runBatch(irInterpreter, new File(batchDir), jobs);
+            System.exit(passed ? 0 : 1);
+        }
+
+        try {
+            irInterpreter.run();
+        } finally {
+            // Also profile runs that end in a runtime error
+            Profiler profiler = irInterpreter.getProfiler();
+            if (profiler != null) {
+                profiler.printSummary(System.err);
+                profiler.writeCollapsed(profileOut);
+            }
+        }
 
         Stats stats = irInterpreter.getStats();
-        System.err.println("Number of non-label instructions executed: " + stats.getNonLabelInstructionCount());
+        if (engine.equals(ENGINE_TIERED)) {
+            for (String promotion : stats.promotions)
+                System.err.println("Promoted " + promotion);
+            System.err.printf("Time in interpreter: %.3f ms, in compiled code: %.3f ms%n",
+                    stats.interpretedNanos / 1e6, stats.compiledNanos / 1e6);
+        }
+        if (memoCapacity != 0) {
+            System.err.printf("Memoized calls: %d of %d served from the table (%.1f%%)%n", stats.memoHits,
+                    stats.memoCalls, stats.memoCalls == 0 ? 0.0 : 100.0 * stats.memoHits / stats.memoCalls);
+            if (stats.isCounting())
+                System.err.println("Instructions saved by memoization: " + stats.memoInstructionsSaved);
+        }
+        if (stats.isCounting())
+            System.err.println("Number of non-label instructions executed: " + stats.getNonLabelInstructionCount());
+        if (statsOut != null)
+            stats.export(statsOut);
     }
 
     private class StackFrame {
@@ -24,15 +132,20 @@ public class IRInterpreter {
         public IRInstruction callInst;
         public int returnInstIdx;
         public IRFunction function;
-        public Map<String, Object> varMap;
+        public Linkage linkage;
+        public FrameLayout layout;
 
-        public Object getVal(IRVariableOperand variable) {
-            return varMap.get(variable.getName());
-        }
+        // Set when the call's result is to be memoized: its key, and the instructions executed and
+        // saved by memo hits at entry
+        public Memoizer.Key memoKey;
+        public long memoStart;
+        public long memoSavedStart;
 
-        public void setVal(IRVariableOperand variable, Object val) {
-            varMap.put(variable.getName(), val);
-        }
+        // Variable storage, indexed by the slots assigned in layout
+        public int[] ints;
+        public float[] floats;
+        public int[][] intArrays;
+        public float[][] floatArrays;
     }
 
     private class ProgramCounter {
@@ -63,209 +176,566 @@ public class IRInterpreter {
         }
     }
 
-    public class Stats {
-        public int totalInstructionCount;
-        public Map<IRInstruction.OpCode, Integer> instructionCounts;
+    /**
+     * Call stack backed by a plain growable array, plus per-function pools of released frames.
+     * A call reuses the banks and array locals of an earlier activation of the same function, so
+     * once recursion has reached its deepest point calls allocate nothing. Recycled frames are
+     * zeroed in bulk when they are acquired; array parameters are never zeroed, as they belong to
+     * the caller.
+     */
+    private class FrameArena {
+        private StackFrame[] frames = new StackFrame[64];
+        private int size;
+
+        // Released frames of each function, indexed by Linkage.index
+        private final StackFrame[][] pools;
+        private final int[] poolSizes;
+
+        FrameArena(int functionCount) {
+            pools = new StackFrame[functionCount][];
+            poolSizes = new int[functionCount];
+        }
+
+        /** A zeroed frame for linkage's function, with its local arrays allocated */
+        StackFrame acquire(Linkage linkage) {
+            int index = linkage.index;
+            if (poolSizes[index] == 0)
+                return newFrame(linkage);
+
+            StackFrame sf = pools[index][--poolSizes[index]];
+            FrameLayout layout = linkage.layout;
+            Arrays.fill(sf.ints, 0);
+            Arrays.fill(sf.floats, 0);
+            for (int slot : layout.localIntArraySlots)
+                Arrays.fill(sf.intArrays[slot], 0);
+            for (int slot : layout.localFloatArraySlots)
+                Arrays.fill(sf.floatArrays[slot], 0);
+            return sf;
+        }
+
+        private StackFrame newFrame(Linkage linkage) {
+            FrameLayout layout = linkage.layout;
+            StackFrame sf = new StackFrame();
+            sf.function = linkage.function;
+            sf.linkage = linkage;
+            sf.layout = layout;
+            sf.ints = new int[layout.intSlotCount];
+            sf.floats = new float[layout.floatSlotCount];
+            sf.intArrays = new int[layout.intArraySlotCount][];
+            sf.floatArrays = new float[layout.floatArraySlotCount][];
+            for (int i = 0; i < layout.localIntArraySlots.length; i++)
+                sf.intArrays[layout.localIntArraySlots[i]] = new int[layout.localIntArraySizes[i]];
+            for (int i = 0; i < layout.localFloatArraySlots.length; i++)
+                sf.floatArrays[layout.localFloatArraySlots[i]] = new float[layout.localFloatArraySizes[i]];
+            return sf;
+        }
 
-        public Stats() {
-            totalInstructionCount = 0;
-            instructionCounts = new HashMap<>();
-            for (IRInstruction.OpCode opCode : IRInstruction.OpCode.values())
-                instructionCounts.put(opCode, 0);
+        void push(StackFrame sf) {
+            if (size == frames.length)
+                frames = Arrays.copyOf(frames, size * 2);
+            frames[size++] = sf;
+            if (profiler != null && sf.linkage != null)
+                profiler.enter(sf.linkage.index);
+        }
+
+        /**
+         * Pop the top frame and return it to its pool. It stays intact until the next acquire of
+         * the same function, so callers may still read it right after popping.
+         */
+        StackFrame pop() {
+            StackFrame sf = frames[--size];
+            frames[size] = null;
+            if (profiler != null && sf.linkage != null)
+                profiler.exit();
+            if (sf.linkage != null) {
+                int index = sf.linkage.index;
+                StackFrame[] pool = pools[index];
+                if (pool == null)
+                    pool = pools[index] = new StackFrame[4];
+                else if (poolSizes[index] == pool.length)
+                    pool = pools[index] = Arrays.copyOf(pool, pool.length * 2);
+                pool[poolSizes[index]++] = sf;
+            }
+            return sf;
         }
 
-        public void update(IRInstruction instruction) {
-            totalInstructionCount += 1;
-            int current = instructionCounts.get(instruction.opCode);
-            instructionCounts.put(instruction.opCode, current + 1);
+        StackFrame peek() {
+            return frames[size - 1];
         }
 
-        public int getNonLabelInstructionCount() {
-            return totalInstructionCount - instructionCounts.get(IRInstruction.OpCode.LABEL);
+        StackFrame get(int i) {
+            return frames[i];
+        }
+
+        int size() {
+            return size;
         }
     }
 
-    // Program information
+    // Walks IRInstruction objects directly
+    public static final String ENGINE_TREE = "tree";
+    // Runs the pre-decoded form built by interpreter.BytecodeEngine
+    public static final String ENGINE_BYTECODE = "bytecode";
+    // Compiles the program to JVM bytecode with interpreter.JitEngine
+    public static final String ENGINE_JIT = "jit";
+    // Starts in this interpreter and moves hot functions and loops to compiled code
+    public static final String ENGINE_TIERED = "tiered";
+
+    private String engine = ENGINE_TREE;
+    private int callThreshold = TierManager.DEFAULT_CALL_THRESHOLD;
+    private int backEdgeThreshold = TierManager.DEFAULT_BACK_EDGE_THRESHOLD;
+
+    // Program information, never modified after loading and shared by every run
     private IRProgram program;
     private Map<String, IRFunction> functionMap;
-    private Map<IRFunction, Map<String, Integer>> functionLabelMap;
+    private Map<String, Linkage> linkageMap;
+    private BytecodeEngine bytecodeEngine;
+    private JitEngine jitEngine;
 
     // Execution state
-    private Stack<StackFrame> stack;
+    private FrameArena stack;
+    private StackFrame entrySF;
     private ProgramCounter pc;
-    private Map<String, Integer> currentLabelMap;
 
-    private Scanner stdinScanner;
+    private RuntimeIO io;
 
+    private Stats.Mode statsMode = Stats.Mode.TOTALS;
     private Stats stats;
+    private boolean counting;
+
+    private boolean profiling;
+    private Profiler profiler;
+
+    private int memoCapacity;
+    private Memoizer memo;
+
+    // Tiered engine only
+    private TierManager tier;
+    private boolean osrRequested;
 
     public IRInterpreter(String filename) throws FileNotFoundException, IRException {
-        IRReader irReader = new IRReader();
-        program = irReader.parseIRFile(filename);
+        this(new IRReader().parseIRFile(filename));
+    }
+
+    /**
+     * Run program as read by an IRReader. Functions whose bodies the reader deferred are linked
+     * when first called, so errors in them surface then.
+     */
+    public IRInterpreter(IRProgram program) throws IRException {
+        this.program = program;
         initProgram();
     }
 
-    private void initProgram() {
+    /** A fresh run of base's program with base's settings, sharing everything but execution state */
+    private IRInterpreter(IRInterpreter base) {
+        program = base.program;
+        functionMap = base.functionMap;
+        linkageMap = base.linkageMap;
+        bytecodeEngine = base.bytecodeEngine;
+        jitEngine = base.jitEngine;
+        engine = base.engine;
+        callThreshold = base.callThreshold;
+        backEdgeThreshold = base.backEdgeThreshold;
+        statsMode = base.statsMode;
+        profiling = base.profiling;
+        memoCapacity = base.memoCapacity;
+    }
+
+    /** An interpreter for another, independent run of this program, e.g. on another thread */
+    public IRInterpreter newRun() throws IRException {
+        prepareEngine();
+        return new IRInterpreter(this);
+    }
+
+    /** Build the engine's form of the program, if it has one and it is not built yet */
+    private synchronized void prepareEngine() throws IRException {
+        // Only the tree engine links functions as it reaches them, and only without whole-program needs
+        if (!engine.equals(ENGINE_TREE) || statsMode == Stats.Mode.FULL || memoCapacity > 0)
+            linkAll();
+        if (engine.equals(ENGINE_BYTECODE) && bytecodeEngine == null)
+            bytecodeEngine = new BytecodeEngine(program);
+        else if (engine.equals(ENGINE_JIT) && jitEngine == null)
+            jitEngine = new JitEngine(program, statsMode != Stats.Mode.OFF);
+    }
+
+    private void initProgram() throws IRException {
         functionMap = new HashMap<>();
-        functionLabelMap = new HashMap<>();
-        for (IRFunction function : program.functions) {
+        linkageMap = new HashMap<>();
+        boolean loaded = true;
+        for (int i = 0; i < program.functions.size(); i++) {
+            IRFunction function = program.functions.get(i);
             functionMap.put(function.name, function);
+            linkageMap.put(function.name, new Linkage(function, i));
+            loaded &= function.isLoaded();
+        }
+
+        // Link calls once every function has a Linkage; deferred bodies wait for their first call
+        if (loaded)
+            linkAll();
+    }
 
-            // For better efficiency
-            if (!(function.instructions instanceof ArrayList))
-                function.instructions = new ArrayList<>(function.instructions);
+    private void linkAll() throws IRException {
+        for (IRFunction function : program.functions)
+            linkageMap.get(function.name).link(linkageMap);
+    }
 
-            Map<String, Integer> labelMap = new HashMap<>();
-            for (int i = 0; i < function.instructions.size(); i++) {
-                IRInstruction instruction = function.instructions.get(i);
-                if (instruction.opCode == IRInstruction.OpCode.LABEL)
-                    labelMap.put(((IRLabelOperand) instruction.operands[0]).getName(), i);
-            }
-            functionLabelMap.put(function, labelMap);
-        }
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public void setTierThresholds(int callThreshold, int backEdgeThreshold) {
+        this.callThreshold = callThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    public void setStatsMode(Stats.Mode statsMode) {
+        this.statsMode = statsMode;
+    }
+
+    /** Profile function calls; tree engine only */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    /** Cache results of pure functions in a table of at most capacity entries, 0 for none; tree engine only */
+    public void setMemoization(int capacity) {
+        this.memoCapacity = capacity;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /** Use io for the intrinsics instead of stdin and stdout */
+    public void setIO(RuntimeIO io) {
+        this.io = io;
     }
 
     public void run() throws IRException {
-        // Add an entry call to main
-        IRFunctionOperand mainFunctionOperand = new IRFunctionOperand("main", null);
-        IRInstruction entryCall = new IRInstruction(IRInstruction.OpCode.CALL, new IROperand[]{mainFunctionOperand}, -1);
-        ArrayList<IRInstruction> entryInstList = new ArrayList<>();
-        entryInstList.add(entryCall);
+        prepareEngine();
+        stats = new Stats(statsMode, program);
+        counting = stats.isCounting();
+        if (io == null)
+            io = new RuntimeIO();
+        try {
+            runEngine();
+        } finally {
+            // Flush buffered output, also when the program failed
+            io.close();
+        }
+    }
+
+    private void runEngine() throws IRException {
+        if (engine.equals(ENGINE_BYTECODE)) {
+            new BytecodeEngine(bytecodeEngine).run(io, stats);
+            return;
+        }
+        if (engine.equals(ENGINE_JIT)) {
+            jitEngine.run(io, stats);
+            return;
+        }
+
+        if (engine.equals(ENGINE_TIERED)) {
+            // Compiled code nests IR calls as JVM calls, so interpret on a deep stack as well
+            Throwable t = JitEngine.runWithLargeStack("ir-tiered", this::interpret);
+            if (t instanceof IRException)
+                throw (IRException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new IllegalStateException(t);
+            return;
+        }
+
+        interpret();
+    }
+
+    private void interpret() throws IRException {
         pc = new ProgramCounter();
-        pc.set(entryInstList, 0);
+        pc.set(null, 0);
 
-        stack = new Stack<>();
-        StackFrame entrySF = new StackFrame();
+        stack = new FrameArena(program.functions.size());
+        entrySF = new StackFrame();
         stack.push(entrySF);
 
-        // Do not count the entry call
-        stats = new Stats();
-        stats.totalInstructionCount = -1;
-        stats.instructionCounts.put(IRInstruction.OpCode.CALL, -1);
+        if (engine.equals(ENGINE_TIERED))
+            tier = new TierManager(program, stats, callThreshold, backEdgeThreshold);
+        if (profiling)
+            profiler = new Profiler(program);
+        if (memoCapacity > 0)
+            memo = new Memoizer(linkageMap.values(), program.functions.size(), memoCapacity);
+        try {
+            interpretMain();
+        } finally {
+            if (tier != null)
+                tier.finish();
+            if (profiler != null)
+                profiler.finish();
+        }
+    }
 
-        stdinScanner = new Scanner(System.in);
+    private void interpretMain() throws IRException {
+        // Enter main directly, so that no entry call is counted
+        Linkage mainFunction = linkageMap.get("main");
+        if (mainFunction == null) {
+            io.flush();
+            io.err().println("IR interpreter runtime exception: Undefined reference to function 'main'");
+            throw new IRException();
+        }
+        executeCall(null, mainFunction, entrySF, null);
 
         while (true) {
             IRInstruction instruction = pc.next();
-            executeInstruction(instruction);
+            StackFrame sf = stack.peek();
+            executeInstruction(instruction, sf.layout.operandSlots[pc.getNextIdx() - 1], sf);
 
-            if (!pc.hasNext()) {
-                // Return from a procedure
-                StackFrame sf = stack.pop();
-                if (stack.peek() == entrySF) // Exit main
+            if (osrRequested) {
+                // A hot loop branched back; finish this activation in compiled code
+                osrRequested = false;
+                if (continueCompiled(sf))
                     break;
-                IRFunction caller = sf.caller;
+            }
 
-                if (caller.returnType != null)
-                    throwRuntimeException(
-                            caller.instructions.get(caller.instructions.size() - 1),
-                            "Missing return for a function with return value");
+            if (!pc.hasNext() && returnFromProcedure())
+                break;
+        }
+    }
 
-                pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
-                currentLabelMap = functionLabelMap.get(caller);
-            }
+    /**
+     * Return from a procedure that ran off its end.
+     * Returns true when that procedure was main.
+     */
+    private boolean returnFromProcedure() throws IRException {
+        StackFrame sf = stack.pop();
+        if (stack.peek() == entrySF) // Exit main
+            return true;
+        IRFunction caller = sf.caller;
+
+        if (caller.returnType != null)
+            throwRuntimeException(
+                    caller.instructions.get(caller.instructions.size() - 1),
+                    "Missing return for a function with return value");
+
+        pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
+        return false;
+    }
+
+    /**
+     * Run the rest of the top frame's function through its OSR entry, starting at the label the
+     * pc points to, then return to the caller as RETURN or running off the end would.
+     * Returns true when that function was main.
+     */
+    private boolean continueCompiled(StackFrame sf) throws IRException {
+        Object result;
+        try {
+            result = tier.invokeOsr(sf.linkage.index, pc.getNextIdx(), io,
+                    sf.ints, sf.floats, sf.intArrays, sf.floatArrays);
+        } catch (IRRuntimeError e) {
+            if (!e.isFellOffEnd())
+                reportCompiledError(e);
+            result = null;
         }
+        if (result == null || sf.caller == null)
+            return returnFromProcedure();
 
-        stdinScanner.close();
+        stack.pop();
+        StackFrame callerSF = stack.peek();
+        if (sf.callInst.opCode == IRInstruction.OpCode.CALLR)
+            storeResult(sf.callInst, callerSF.layout.operandSlots[sf.returnInstIdx - 1][0], callerSF, result);
+        pc.set((ArrayList<IRInstruction>) sf.caller.instructions, sf.returnInstIdx);
+        return false;
     }
 
     public Stats getStats() {
         return stats;
     }
 
-    private Object getConstVal(IRConstantOperand constOperand) {
-        if (constOperand.type == IRIntType.get())
-            return Integer.parseInt(constOperand.getValueString());
-        return Float.parseFloat(constOperand.getValueString());
+    /**
+     * Run base's program on every NAME.in in dir, on jobs worker threads, and diff each output
+     * against NAME.out. Prints one line per input in name order and returns true if all matched.
+     */
+    public static boolean runBatch(IRInterpreter base, File dir, int jobs) throws IOException, IRException {
+        File[] inputs = dir.listFiles((d, name) -> name.endsWith(".in"));
+        if (inputs == null)
+            throw new FileNotFoundException(dir.getPath());
+        Arrays.sort(inputs, Comparator.comparing(File::getName));
+        base.prepareEngine();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, jobs));
+        List<Future<String>> results = new ArrayList<>();
+        try {
+            for (File input : inputs)
+                results.add(pool.submit(() -> runBatchCase(base, input)));
+            int passed = 0;
+            for (Future<String> result : results) {
+                String line;
+                try {
+                    line = result.get();
+                } catch (Exception e) {
+                    line = "ERROR: " + e.getCause();
+                }
+                if (line.startsWith("PASS"))
+                    passed++;
+                System.out.println(line);
+            }
+            System.out.println("Passed " + passed + " of " + inputs.length + " inputs");
+            return passed == inputs.length;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String runBatchCase(IRInterpreter base, File input) throws IOException, IRException {
+        String name = input.getName().substring(0, input.getName().length() - ".in".length());
+        File expected = new File(input.getParentFile(), name + ".out");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        IRInterpreter run = base.newRun();
+        run.setIO(new RuntimeIO(new ByteArrayInputStream(Files.readAllBytes(input.toPath())), out,
+                new PrintStream(err, true)));
+        String error = null;
+        try {
+            run.run();
+        } catch (IRException e) {
+            // The report is in err; expected outputs may well end in a runtime error
+            String report = err.toString();
+            error = report.isEmpty() ? "runtime error" : report.split("\n")[0];
+        } catch (RuntimeException | StackOverflowError e) {
+            error = e.toString();
+        }
+
+        String result;
+        if (!expected.exists())
+            result = "FAIL " + name + ": no " + expected.getName();
+        else if (Arrays.equals(out.toByteArray(), Files.readAllBytes(expected.toPath())))
+            result = "PASS " + name;
+        else
+            result = "FAIL " + name + ": output differs from " + expected.getName();
+        if (run.stats.isCounting())
+            result += ", " + run.stats.getNonLabelInstructionCount() + " instructions";
+        if (error != null)
+            result += " (" + error + ")";
+        return result;
     }
 
-    private Object getValFromVarOrConst(IROperand operand, StackFrame sf) {
+    private static boolean isFloat(IROperand operand) {
         if (operand instanceof IRVariableOperand)
-            return sf.getVal((IRVariableOperand) operand);
-        return getConstVal((IRConstantOperand) operand);
-    }
-
-    private Object binaryOperation(IRInstruction.OpCode opCode, IRType type, Object y, Object z) {
-        if (type == IRIntType.get()) {
-            int iy = (Integer) y;
-            int iz = (Integer) z;
-            switch (opCode) {
-                case ADD:
-                    return iy + iz;
-                case SUB:
-                    return iy - iz;
-                case MULT:
-                    return iy * iz;
-                case DIV:
-                    return iy / iz;
-                case AND:
-                    return iy & iz;
-                case OR:
-                    return iy | iz;
-
-                case BREQ:
-                    return iy == iz;
-                case BRNEQ:
-                    return iy != iz;
-                case BRLT:
-                    return iy < iz;
-                case BRGT:
-                    return iy > iz;
-                case BRGEQ:
-                    return iy >= iz;
+            return ((IRVariableOperand) operand).type == IRFloatType.get();
+        return ((IRConstantOperand) operand).type == IRFloatType.get();
+    }
 
-                default:
-                    assert false;
-            }
-        } else {
-            float fy = (Float) y;
-            float fz = (Float) z;
-            switch (opCode) {
-                case ADD:
-                    return fy + fz;
-                case SUB:
-                    return fy - fz;
-                case MULT:
-                    return fy * fz;
-                case DIV:
-                    return fy / fz;
-
-                case BREQ:
-                    return fy == fz;
-                case BRNEQ:
-                    return fy != fz;
-                case BRLT:
-                    return fy < fz;
-                case BRGT:
-                    return fy > fz;
-                case BRGEQ:
-                    return fy >= fz;
+    private int getInt(IROperand operand, int slot, StackFrame sf) {
+        if (slot != FrameLayout.NO_SLOT)
+            return sf.ints[slot];
+        return Integer.parseInt(((IRConstantOperand) operand).getValueString());
+    }
 
-                default:
-                    assert false;
-            }
+    private float getFloat(IROperand operand, int slot, StackFrame sf) {
+        if (slot != FrameLayout.NO_SLOT)
+            return sf.floats[slot];
+        return Float.parseFloat(((IRConstantOperand) operand).getValueString());
+    }
+
+    private int intOperation(IRInstruction.OpCode opCode, int y, int z) {
+        switch (opCode) {
+            case ADD:
+                return y + z;
+            case SUB:
+                return y - z;
+            case MULT:
+                return y * z;
+            case DIV:
+                return y / z;
+            case AND:
+                return y & z;
+            case OR:
+                return y | z;
+            default:
+                assert false;
+        }
+        return 0;
+    }
+
+    private float floatOperation(IRInstruction.OpCode opCode, float y, float z) {
+        switch (opCode) {
+            case ADD:
+                return y + z;
+            case SUB:
+                return y - z;
+            case MULT:
+                return y * z;
+            case DIV:
+                return y / z;
+            default:
+                assert false;
+        }
+        return 0;
+    }
+
+    private boolean intCondition(IRInstruction.OpCode opCode, int a, int b) {
+        switch (opCode) {
+            case BREQ:
+                return a == b;
+            case BRNEQ:
+                return a != b;
+            case BRLT:
+                return a < b;
+            case BRGT:
+                return a > b;
+            case BRGEQ:
+                return a >= b;
+            default:
+                assert false;
+        }
+        return false;
+    }
+
+    private boolean floatCondition(IRInstruction.OpCode opCode, float a, float b) {
+        switch (opCode) {
+            case BREQ:
+                return a == b;
+            case BRNEQ:
+                return a != b;
+            case BRLT:
+                return a < b;
+            case BRGT:
+                return a > b;
+            case BRGEQ:
+                return a >= b;
+            default:
+                assert false;
         }
-        return null;
+        return false;
     }
 
-    private void executeInstruction(IRInstruction instruction) throws IRException {
-        stats.update(instruction);
+    private void executeInstruction(IRInstruction instruction, int[] slots, StackFrame sf) throws IRException {
+        if (counting)
+            stats.update(instruction, sf.linkage.index);
+        if (profiler != null && instruction.opCode != IRInstruction.OpCode.LABEL)
+            profiler.instructions++;
 
-        StackFrame sf = stack.peek();
+        IROperand[] operands = instruction.operands;
         switch (instruction.opCode) {
             case ASSIGN: {
-                if (instruction.operands.length > 2) { // Array assignment
-                    Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[0], sf);
-                    int assignSize = (Integer) getValFromVarOrConst(instruction.operands[1], sf);
-                    Object src = getValFromVarOrConst(instruction.operands[2], sf);
-                    if (assignSize < 0 || assignSize > arr.length)
+                if (operands.length > 2) { // Array assignment
+                    int assignSize = getInt(operands[1], slots[1], sf);
+                    // Arrays.fill checks the count itself, before writing anything
+                    try {
+                        if (isFloat(operands[2]))
+                            Arrays.fill(sf.floatArrays[slots[0]], 0, assignSize, getFloat(operands[2], slots[2], sf));
+                        else
+                            Arrays.fill(sf.intArrays[slots[0]], 0, assignSize, getInt(operands[2], slots[2], sf));
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
                         throwRuntimeException(instruction, "Out-of-bounds array access");
-                    for (int i = 0; i < assignSize; i++)
-                        arr[i] = src;
+                    }
                 } else {
-                    IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                    Object src = getValFromVarOrConst(instruction.operands[1], sf);
-                    sf.setVal(dest, src);
+                    if (isFloat(operands[0]))
+                        sf.floats[slots[0]] = getFloat(operands[1], slots[1], sf);
+                    else
+                        sf.ints[slots[0]] = getInt(operands[1], slots[1], sf);
                 }
                 break;
             }
@@ -275,15 +745,21 @@ public class IRInterpreter {
             case DIV:
             case AND:
             case OR: {
-                IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                Object y = getValFromVarOrConst(instruction.operands[1], sf);
-                Object z = getValFromVarOrConst(instruction.operands[2], sf);
-                Object x = binaryOperation(instruction.opCode, dest.type, y, z);
-                sf.setVal(dest, x);
+                if (isFloat(operands[0])) {
+                    float y = getFloat(operands[1], slots[1], sf);
+                    float z = getFloat(operands[2], slots[2], sf);
+                    sf.floats[slots[0]] = floatOperation(instruction.opCode, y, z);
+                } else {
+                    int y = getInt(operands[1], slots[1], sf);
+                    int z = getInt(operands[2], slots[2], sf);
+                    sf.ints[slots[0]] = intOperation(instruction.opCode, y, z);
+                }
                 break;
             }
             case GOTO: {
-                int targetIdx = currentLabelMap.get(((IRLabelOperand) instruction.operands[0]).getName());
+                int targetIdx = sf.linkage.branchTargets[pc.getNextIdx() - 1];
+                if (tier != null && targetIdx < pc.getNextIdx())
+                    osrRequested = tier.onBackEdge(sf.linkage.index);
                 pc.setNextIdx(targetIdx);
                 break;
             }
@@ -292,66 +768,77 @@ public class IRInterpreter {
             case BRLT:
             case BRGT:
             case BRGEQ: {
-                int targetIdx = currentLabelMap.get(((IRLabelOperand) instruction.operands[0]).getName());
-                Object a = getValFromVarOrConst(instruction.operands[1], sf);
-                Object b = getValFromVarOrConst(instruction.operands[2], sf);
-                IRType type = ((IRVariableOperand) instruction.operands[1]).type;
-                boolean result = (Boolean) binaryOperation(instruction.opCode, type, a, b);
-                if (result)
+                int targetIdx = sf.linkage.branchTargets[pc.getNextIdx() - 1];
+                boolean result;
+                if (isFloat(operands[1]))
+                    result = floatCondition(instruction.opCode,
+                            getFloat(operands[1], slots[1], sf), getFloat(operands[2], slots[2], sf));
+                else
+                    result = intCondition(instruction.opCode,
+                            getInt(operands[1], slots[1], sf), getInt(operands[2], slots[2], sf));
+                if (result) {
+                    if (tier != null && targetIdx < pc.getNextIdx())
+                        osrRequested = tier.onBackEdge(sf.linkage.index);
                     pc.setNextIdx(targetIdx);
+                }
                 break;
             }
             case RETURN: {
-                Object retVal = getValFromVarOrConst(instruction.operands[0], sf);
                 IRFunction caller = sf.caller;
                 IRInstruction callInst = sf.callInst;
                 assert callInst.opCode == IRInstruction.OpCode.CALLR;
                 stack.pop();
                 StackFrame callerSF = stack.peek();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                callerSF.setVal(retVar, retVal);
+                int retSlot = callerSF.layout.operandSlots[sf.returnInstIdx - 1][0];
+                int bits;
+                if (isFloat(callInst.operands[0])) {
+                    float value = getFloat(operands[0], slots[0], sf);
+                    callerSF.floats[retSlot] = value;
+                    bits = Float.floatToRawIntBits(value);
+                } else {
+                    bits = callerSF.ints[retSlot] = getInt(operands[0], slots[0], sf);
+                }
+                // What the call costs unmemoized, including what its own calls got from the table
+                if (sf.memoKey != null)
+                    memo.store(sf.memoKey, bits, counting ? stats.getNonLabelInstructionCount() - sf.memoStart
+                            + stats.memoInstructionsSaved - sf.memoSavedStart : 0);
                 pc.set((ArrayList<IRInstruction>) caller.instructions, sf.returnInstIdx);
-                currentLabelMap = functionLabelMap.get(caller);
-                break;
-            }
-            case CALL: {
-                ArrayList<Object> arguments = new ArrayList<>();
-                for (int i = 1; i < instruction.operands.length; i++)
-                    arguments.add(getValFromVarOrConst(instruction.operands[i], sf));
-                String calleeName = ((IRFunctionOperand) instruction.operands[0]).getName();
-                if (functionMap.containsKey(calleeName))
-                    executeCall(instruction, functionMap.get(calleeName), arguments);
-                else
-                    handleIntrinsicFunction(instruction, calleeName, arguments);
                 break;
             }
+            case CALL:
             case CALLR: {
-                ArrayList<Object> arguments = new ArrayList<>();
-                for (int i = 2; i < instruction.operands.length; i++)
-                    arguments.add(getValFromVarOrConst(instruction.operands[i], sf));
-                String calleeName = ((IRFunctionOperand) instruction.operands[1]).getName();
-                if (functionMap.containsKey(calleeName))
-                    executeCall(instruction, functionMap.get(calleeName), arguments);
+                int idx = pc.getNextIdx() - 1;
+                Linkage callee = sf.linkage.callees[idx];
+                if (callee != null)
+                    executeCall(instruction, callee, sf, slots);
                 else
-                    handleIntrinsicFunction(instruction, calleeName, arguments);
+                    handleIntrinsicFunction(instruction, sf.linkage.intrinsics[idx], slots, sf);
                 break;
             }
             case ARRAY_STORE: {
-                Object val = getValFromVarOrConst(instruction.operands[0], sf);
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
-                int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
+                int offset = getInt(operands[2], slots[2], sf);
+                // The JVM's own index check stands in for the IR's
+                try {
+                    if (isFloat(operands[0]))
+                        sf.floatArrays[slots[1]][offset] = getFloat(operands[0], slots[0], sf);
+                    else
+                        sf.intArrays[slots[1]][offset] = getInt(operands[0], slots[0], sf);
+                } catch (ArrayIndexOutOfBoundsException e) {
                     throwRuntimeException(instruction, "Out-of-bounds array access");
-                arr[offset] = val;
+                }
                 break;
             }
             case ARRAY_LOAD: {
-                IRVariableOperand dest = (IRVariableOperand) instruction.operands[0];
-                Object[] arr = (Object[]) getValFromVarOrConst(instruction.operands[1], sf);
-                int offset = (Integer) getValFromVarOrConst(instruction.operands[2], sf);
-                if (offset < 0 || offset >= arr.length)
+                int offset = getInt(operands[2], slots[2], sf);
+                // The JVM's own index check stands in for the IR's
+                try {
+                    if (isFloat(operands[0]))
+                        sf.floats[slots[0]] = sf.floatArrays[slots[1]][offset];
+                    else
+                        sf.ints[slots[0]] = sf.intArrays[slots[1]][offset];
+                } catch (ArrayIndexOutOfBoundsException e) {
                     throwRuntimeException(instruction, "Out-of-bounds array access");
-                sf.setVal(dest, arr[offset]);
+                }
                 break;
             }
             case LABEL:
@@ -361,118 +848,189 @@ public class IRInterpreter {
         }
     }
 
-    private void executeCall(IRInstruction callInst, IRFunction function, ArrayList<Object> arguments) {
-        StackFrame sf = stack.peek();
-        StackFrame calleeSF = new StackFrame();
+    private void executeCall(IRInstruction callInst, Linkage callee, StackFrame sf, int[] slots)
+            throws IRException {
+        if (!callee.isLinked())
+            callee.link(linkageMap);
+        FrameLayout layout = callee.layout;
+        if (tier != null && callInst != null && tier.onCall(callee.index)) {
+            executeCompiledCall(callInst, callee.index, layout, sf, slots);
+            return;
+        }
+
+        Memoizer.Key memoKey = null;
+        if (memo != null && callInst != null && callInst.opCode == IRInstruction.OpCode.CALLR
+                && memo.isMemoizable(callee.index)) {
+            memoKey = memoKey(callInst, callee, sf, slots);
+            stats.memoCalls++;
+            Memoizer.Result result = memo.lookup(memoKey);
+            if (result != null) {
+                stats.memoHits++;
+                stats.memoInstructionsSaved += result.instructions;
+                if (isFloat(callInst.operands[0]))
+                    sf.floats[slots[0]] = Float.intBitsToFloat(result.value);
+                else
+                    sf.ints[slots[0]] = result.value;
+                return;
+            }
+        }
+
+        StackFrame calleeSF = stack.acquire(callee);
         calleeSF.caller = sf.function;
         calleeSF.callInst = callInst;
         calleeSF.returnInstIdx = pc.getNextIdx();
-        calleeSF.function = function;
-        calleeSF.varMap = buildVarMap(function, arguments);
+        calleeSF.memoKey = memoKey;
+        if (memoKey != null && counting) {
+            calleeSF.memoStart = stats.getNonLabelInstructionCount();
+            calleeSF.memoSavedStart = stats.memoInstructionsSaved;
+        }
+
+        // Copy arguments straight from the caller's slots into the parameter slots
+        if (callInst != null) {
+            int argIdx = callInst.opCode == IRInstruction.OpCode.CALL ? 1 : 2;
+            for (int i = 0; i < layout.paramSlots.length; i++, argIdx++) {
+                IROperand arg = callInst.operands[argIdx];
+                int paramSlot = layout.paramSlots[i];
+                switch (layout.paramKinds[i]) {
+                    case FrameLayout.INT:
+                        calleeSF.ints[paramSlot] = getInt(arg, slots[argIdx], sf);
+                        break;
+                    case FrameLayout.FLOAT:
+                        calleeSF.floats[paramSlot] = getFloat(arg, slots[argIdx], sf);
+                        break;
+                    case FrameLayout.INT_ARRAY:
+                        calleeSF.intArrays[paramSlot] = sf.intArrays[slots[argIdx]];
+                        break;
+                    default:
+                        calleeSF.floatArrays[paramSlot] = sf.floatArrays[slots[argIdx]];
+                        break;
+                }
+            }
+        }
+
         stack.push(calleeSF);
-        pc.set((ArrayList<IRInstruction>) function.instructions, 0);
-        currentLabelMap = functionLabelMap.get(function);
+        pc.set((ArrayList<IRInstruction>) callee.function.instructions, 0);
     }
 
-    private Map<String, Object> buildVarMap(IRFunction function, ArrayList<Object> arguments) {
-        Map<String, Object> varMap = new HashMap<>();
+    /** The callee's index followed by the call's argument values, floats as raw bits */
+    private Memoizer.Key memoKey(IRInstruction callInst, Linkage callee, StackFrame sf, int[] slots) {
+        int[] kinds = callee.layout.paramKinds;
+        int[] values = new int[1 + kinds.length];
+        values[0] = callee.index;
+        int argIdx = 2;
+        for (int i = 0; i < kinds.length; i++, argIdx++) {
+            IROperand arg = callInst.operands[argIdx];
+            if (kinds[i] == FrameLayout.INT)
+                values[1 + i] = getInt(arg, slots[argIdx], sf);
+            else
+                values[1 + i] = Float.floatToRawIntBits(getFloat(arg, slots[argIdx], sf));
+        }
+        return new Memoizer.Key(values);
+    }
 
-        for (IRVariableOperand variable: function.variables) {
-            if (variable.type instanceof IRArrayType) {
-                IRArrayType arrayType = (IRArrayType) variable.type;
-                Object[] arr = new Object[arrayType.getSize()];
-                varMap.put(variable.getName(), arr);
-                if (arrayType.getElementType() == IRIntType.get())
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Integer(0);
-                else
-                    for (int i = 0; i < arr.length; i++)
-                        arr[i] = new Float(0);
-            } else {
-                if (variable.type == IRIntType.get())
-                    varMap.put(variable.getName(), new Integer(0));
-                else
-                    varMap.put(variable.getName(), new Float(0));
+    /** Call a promoted function without pushing an interpreter frame */
+    private void executeCompiledCall(IRInstruction callInst, int functionIdx, FrameLayout layout,
+                                     StackFrame sf, int[] slots) throws IRException {
+        // Compiled code never re-enters the interpreter, so the callee's buffer is free to reuse
+        Object[] args = tier.argumentBuffer(functionIdx);
+        int argIdx = callInst.opCode == IRInstruction.OpCode.CALL ? 1 : 2;
+        for (int i = 0; i < layout.paramSlots.length; i++, argIdx++) {
+            IROperand arg = callInst.operands[argIdx];
+            int bufferIdx = TierManager.FIRST_ARGUMENT + i;
+            switch (layout.paramKinds[i]) {
+                case FrameLayout.INT:
+                    args[bufferIdx] = getInt(arg, slots[argIdx], sf);
+                    break;
+                case FrameLayout.FLOAT:
+                    args[bufferIdx] = getFloat(arg, slots[argIdx], sf);
+                    break;
+                case FrameLayout.INT_ARRAY:
+                    args[bufferIdx] = sf.intArrays[slots[argIdx]];
+                    break;
+                default:
+                    args[bufferIdx] = sf.floatArrays[slots[argIdx]];
+                    break;
             }
         }
 
-        Iterator<IRVariableOperand> pit = function.parameters.iterator();
-        Iterator<Object> ait = arguments.iterator();
-        while (pit.hasNext()) {
-            IRVariableOperand param = pit.next();
-            Object arg = ait.next();
-            varMap.put(param.getName(), arg);
+        Object result;
+        try {
+            result = tier.invoke(functionIdx, io, args);
+        } catch (IRRuntimeError e) {
+            if (!e.isFellOffEnd())
+                reportCompiledError(e.addCaller(sf.function.name, callInst.irLineNumber));
+            result = null;
+        }
+
+        if (result == null) {
+            // The callee ran off its end
+            if (sf.function.returnType != null)
+                throwRuntimeException(
+                        sf.function.instructions.get(sf.function.instructions.size() - 1),
+                        "Missing return for a function with return value");
+        } else if (callInst.opCode == IRInstruction.OpCode.CALLR) {
+            storeResult(callInst, slots[0], sf, result);
         }
+    }
+
+    private static void storeResult(IRInstruction callInst, int slot, StackFrame sf, Object result) {
+        if (isFloat(callInst.operands[0]))
+            sf.floats[slot] = (Float) result;
+        else
+            sf.ints[slot] = (Integer) result;
+    }
 
-        return varMap;
+    /** Finish the trace of an error raised in compiled code with the interpreter's frames */
+    private void reportCompiledError(IRRuntimeError e) throws IRException {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            StackFrame sf = stack.get(i);
+            if (sf.caller == null)
+                break;
+            e.addCaller(sf.caller.name, sf.caller.instructions.get(sf.returnInstIdx - 1).irLineNumber);
+        }
+        e.report(io);
+        throw new IRException();
     }
 
-    private void handleIntrinsicFunction(IRInstruction callInst, String functionName, ArrayList<Object> arguments)
+    private void handleIntrinsicFunction(IRInstruction callInst, int intrinsic, int[] slots, StackFrame sf)
             throws IRException {
-        switch (functionName) {
-            case "geti": {
-                int i;
-                try {
-                    i = stdinScanner.nextInt();
-                } catch (InputMismatchException e) {
-                    i = 0;
-                }
-                stdinScanner.nextLine();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, i);
+        switch (intrinsic) {
+            case Linkage.GETI:
+                sf.ints[slots[0]] = io.geti();
                 break;
-            }
-            case "getf": {
-                float f;
-                try {
-                    f = stdinScanner.nextFloat();
-                } catch (InputMismatchException e) {
-                    f = 0;
-                }
-                stdinScanner.nextLine();
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, f);
+            case Linkage.GETF:
+                sf.floats[slots[0]] = io.getf();
                 break;
-            }
-            case "getc": {
-                int c;
-                try {
-                    c = (int) System.in.read();
-                } catch (IOException e) {
-                    c = 0;
-                }
-                IRVariableOperand retVar = (IRVariableOperand) callInst.operands[0];
-                stack.peek().setVal(retVar, c);
+            case Linkage.GETC:
+                sf.ints[slots[0]] = io.getc();
                 break;
-            }
-            case "puti": {
-                System.out.print((Integer) arguments.get(0));
+            case Linkage.PUTI:
+                io.puti(getInt(callInst.operands[1], slots[1], sf));
                 break;
-            }
-            case "putf": {
-                System.out.print((Float) arguments.get(0));
+            case Linkage.PUTF:
+                io.putf(getFloat(callInst.operands[1], slots[1], sf));
                 break;
-            }
-            case "putc": {
-                int c = (Integer) arguments.get(0);
-                System.out.print((char) c);
+            case Linkage.PUTC:
+                io.putc(getInt(callInst.operands[1], slots[1], sf));
                 break;
-            }
             default:
+                String functionName = ((IRFunctionOperand) callInst.operands[
+                        callInst.opCode == IRInstruction.OpCode.CALL ? 0 : 1]).getName();
                 throwRuntimeException(callInst, String.format("Undefined reference to function '%s'", functionName));
         }
     }
-
     private void throwRuntimeException(IRInstruction instruction, String message) throws IRException {
-        System.err.println("IR interpreter runtime exception: " + message);
-        System.err.println("Stack trace:");
-        ListIterator<StackFrame> sit = stack.listIterator(stack.size());
-        System.err.println("\t" + stack.peek().function.name + ":" + instruction.irLineNumber);
-        while (sit.hasPrevious()) {
-            StackFrame sf = sit.previous();
+        // The program's output so far comes first
+        io.flush();
+        PrintStream err = io.err();
+        err.println("IR interpreter runtime exception: " + message);
+        err.println("Stack trace:");
+        err.println("\t" + stack.peek().function.name + ":" + instruction.irLineNumber);
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            StackFrame sf = stack.get(i);
             if (sf.caller == null)
                 break;
-            System.err.println("\t" + sf.caller.name + ":" + sf.caller.instructions.get(sf.returnInstIdx - 1).irLineNumber);
+            err.println("\t" + sf.caller.name + ":" + sf.caller.instructions.get(sf.returnInstIdx - 1).irLineNumber);
         }
         throw new IRException();
     }
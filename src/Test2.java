@@ -1,5 +1,6 @@
 import backend.*;
 import ir.*;
+import ir.opt.PassManager;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -9,14 +10,29 @@ public class Test2 {
     public static void main(String[] args)
             throws IOException, IRException
     {
-        if (args.length < 1 || args.length > 2) {
-            System.err.println("Usage: java Test2 <path/to/program.ir> [--naive|--block]");
+        String inputProgram = null;
+        String mode = "--naive";
+        int optLevel = 0;
+        boolean timePasses = false;
+        for (String arg : args) {
+            if (arg.matches("-O\\d+")) {
+                optLevel = Integer.parseInt(arg.substring(2));
+            } else if (arg.equals("--time-passes")) {
+                timePasses = true;
+            } else if (arg.startsWith("--")) {
+                mode = arg;
+            } else if (inputProgram == null) {
+                inputProgram = arg;
+            } else {
+                inputProgram = null;
+                break;
+            }
+        }
+        if (inputProgram == null || optLevel > PassManager.MAX_LEVEL) {
+            System.err.println("Usage: java Test2 <path/to/program.ir|program.irb> [--naive|--block] [-O0|-O1|-O2] [--time-passes]");
             System.exit(1);
         }
 
-        var inputProgram = args[0];
-        var mode = args.length == 2 ? args[1] : "--naive";
-
         boolean useBlock;
         if (mode.equalsIgnoreCase("--block") || mode.equalsIgnoreCase("--greedy")) {
             useBlock = true;
@@ -29,7 +45,13 @@ public class Test2 {
         }
 
         IRReader irReader = new IRReader();
-        IRProgram irProgram = irReader.parseIRFile(inputProgram);
+        IRProgram irProgram = IRReader.isIRBinary(inputProgram)
+                ? irReader.readIRBinary(inputProgram) : irReader.parseIRFile(inputProgram);
+
+        PassManager passManager = PassManager.forLevel(optLevel);
+        passManager.run(irProgram);
+        if (timePasses)
+            System.err.print(passManager.report());
 
         var mipsTranslations = IR2MIPSISelect.selectMipsInstructions(irProgram);
 
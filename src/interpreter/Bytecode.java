@@ -0,0 +1,208 @@
+package interpreter;
+
+import ir.IRInstruction.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Opcodes of the pre-decoded instruction stream run by BytecodeEngine.
+ *
+ * Every IR instruction is lowered to one bytecode instruction, specialized by data type
+ * (and, for calls, by callee), followed by its operands. A few common pairs of adjacent IR
+ * instructions are fused into a superinstruction, which carries the operands of both and is
+ * counted as both. Array instructions that RangeAnalysis proves in bounds get unchecked forms.
+ * A value operand is either a frame slot
+ * (>= 0) or the bitwise complement of an index into the function's constant pool (< 0).
+ * Branch targets are code offsets and callees are indices into the program's function table.
+ */
+public final class Bytecode {
+
+    private Bytecode() {}
+
+    public static final int LABEL = 0;          // LABEL
+    public static final int I_MOV = 1;          // I_MOV dst src
+    public static final int F_MOV = 2;          // F_MOV dst src
+    public static final int I_FILL = 3;         // I_FILL arr count src
+    public static final int F_FILL = 4;         // F_FILL arr count src
+    public static final int I_ADD = 5;          // I_ADD dst a b
+    public static final int I_SUB = 6;
+    public static final int I_MULT = 7;
+    public static final int I_DIV = 8;
+    public static final int I_AND = 9;
+    public static final int I_OR = 10;
+    public static final int F_ADD = 11;         // F_ADD dst a b
+    public static final int F_SUB = 12;
+    public static final int F_MULT = 13;
+    public static final int F_DIV = 14;
+    public static final int GOTO = 15;          // GOTO target
+    public static final int I_BREQ = 16;        // I_BREQ target a b
+    public static final int I_BRNEQ = 17;
+    public static final int I_BRLT = 18;
+    public static final int I_BRGT = 19;
+    public static final int I_BRGEQ = 20;
+    public static final int F_BREQ = 21;        // F_BREQ target a b
+    public static final int F_BRNEQ = 22;
+    public static final int F_BRLT = 23;
+    public static final int F_BRGT = 24;
+    public static final int F_BRGEQ = 25;
+    public static final int I_RETURN = 26;      // I_RETURN src
+    public static final int F_RETURN = 27;      // F_RETURN src
+    public static final int CALL = 28;          // CALL function argc args...
+    public static final int CALLR = 29;         // CALLR dst function argc args...
+    public static final int GETI = 30;          // GETI dst
+    public static final int GETF = 31;          // GETF dst
+    public static final int GETC = 32;          // GETC dst
+    public static final int PUTI = 33;          // PUTI src
+    public static final int PUTF = 34;          // PUTF src
+    public static final int PUTC = 35;          // PUTC src
+    public static final int I_ARRAY_STORE = 36; // I_ARRAY_STORE src arr offset
+    public static final int F_ARRAY_STORE = 37;
+    public static final int I_ARRAY_LOAD = 38;  // I_ARRAY_LOAD dst arr offset
+    public static final int F_ARRAY_LOAD = 39;
+    public static final int END = 40;           // END, falling off the end of a function
+
+    // Superinstructions: the opcode is that of the first instruction fused with the second
+    public static final int I_MOV2 = 41;        // I_MOV2 dst src dst2 src2
+    public static final int I_ALOAD_MOV = 42;   // I_ALOAD_MOV dst arr offset dst2 src2
+    public static final int I_ADD_BRLT = 43;    // I_ADD_BRLT dst a b target x y
+    public static final int I_ADD_GOTO = 44;    // I_ADD_GOTO dst a b target
+
+    // Array instructions without the bounds check, for accesses RangeAnalysis proved in bounds
+    public static final int I_FILL_U = 45;          // I_FILL_U arr count src
+    public static final int F_FILL_U = 46;
+    public static final int I_ARRAY_STORE_U = 47;   // I_ARRAY_STORE_U src arr offset
+    public static final int F_ARRAY_STORE_U = 48;
+    public static final int I_ARRAY_LOAD_U = 49;    // I_ARRAY_LOAD_U dst arr offset
+    public static final int F_ARRAY_LOAD_U = 50;
+    public static final int I_ALOAD_MOV_U = 51;     // I_ALOAD_MOV_U dst arr offset dst2 src2
+
+    public static final int OPCODE_COUNT = 52;
+
+    /** Count bucket for bytecode that has no IR counterpart, one past the last OpCode ordinal */
+    public static final int UNCOUNTED = OpCode.values().length;
+
+    /** The IR opcode each bytecode opcode is counted as, by ordinal */
+    public static final int[] IR_OPCODE = new int[OPCODE_COUNT];
+
+    /** For superinstructions, the IR opcode of the second instruction; UNCOUNTED otherwise */
+    public static final int[] FUSED_IR_OPCODE = new int[OPCODE_COUNT];
+
+    static {
+        IR_OPCODE[LABEL] = OpCode.LABEL.ordinal();
+        IR_OPCODE[I_MOV] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[F_MOV] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[I_FILL] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[F_FILL] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[I_ADD] = OpCode.ADD.ordinal();
+        IR_OPCODE[I_SUB] = OpCode.SUB.ordinal();
+        IR_OPCODE[I_MULT] = OpCode.MULT.ordinal();
+        IR_OPCODE[I_DIV] = OpCode.DIV.ordinal();
+        IR_OPCODE[I_AND] = OpCode.AND.ordinal();
+        IR_OPCODE[I_OR] = OpCode.OR.ordinal();
+        IR_OPCODE[F_ADD] = OpCode.ADD.ordinal();
+        IR_OPCODE[F_SUB] = OpCode.SUB.ordinal();
+        IR_OPCODE[F_MULT] = OpCode.MULT.ordinal();
+        IR_OPCODE[F_DIV] = OpCode.DIV.ordinal();
+        IR_OPCODE[GOTO] = OpCode.GOTO.ordinal();
+        IR_OPCODE[I_BREQ] = OpCode.BREQ.ordinal();
+        IR_OPCODE[I_BRNEQ] = OpCode.BRNEQ.ordinal();
+        IR_OPCODE[I_BRLT] = OpCode.BRLT.ordinal();
+        IR_OPCODE[I_BRGT] = OpCode.BRGT.ordinal();
+        IR_OPCODE[I_BRGEQ] = OpCode.BRGEQ.ordinal();
+        IR_OPCODE[F_BREQ] = OpCode.BREQ.ordinal();
+        IR_OPCODE[F_BRNEQ] = OpCode.BRNEQ.ordinal();
+        IR_OPCODE[F_BRLT] = OpCode.BRLT.ordinal();
+        IR_OPCODE[F_BRGT] = OpCode.BRGT.ordinal();
+        IR_OPCODE[F_BRGEQ] = OpCode.BRGEQ.ordinal();
+        IR_OPCODE[I_RETURN] = OpCode.RETURN.ordinal();
+        IR_OPCODE[F_RETURN] = OpCode.RETURN.ordinal();
+        IR_OPCODE[CALL] = OpCode.CALL.ordinal();
+        IR_OPCODE[CALLR] = OpCode.CALLR.ordinal();
+        IR_OPCODE[GETI] = OpCode.CALLR.ordinal();
+        IR_OPCODE[GETF] = OpCode.CALLR.ordinal();
+        IR_OPCODE[GETC] = OpCode.CALLR.ordinal();
+        IR_OPCODE[PUTI] = OpCode.CALL.ordinal();
+        IR_OPCODE[PUTF] = OpCode.CALL.ordinal();
+        IR_OPCODE[PUTC] = OpCode.CALL.ordinal();
+        IR_OPCODE[I_ARRAY_STORE] = OpCode.ARRAY_STORE.ordinal();
+        IR_OPCODE[F_ARRAY_STORE] = OpCode.ARRAY_STORE.ordinal();
+        IR_OPCODE[I_ARRAY_LOAD] = OpCode.ARRAY_LOAD.ordinal();
+        IR_OPCODE[F_ARRAY_LOAD] = OpCode.ARRAY_LOAD.ordinal();
+        IR_OPCODE[END] = UNCOUNTED;
+        IR_OPCODE[I_MOV2] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[I_ALOAD_MOV] = OpCode.ARRAY_LOAD.ordinal();
+        IR_OPCODE[I_ADD_BRLT] = OpCode.ADD.ordinal();
+        IR_OPCODE[I_ADD_GOTO] = OpCode.ADD.ordinal();
+        IR_OPCODE[I_FILL_U] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[F_FILL_U] = OpCode.ASSIGN.ordinal();
+        IR_OPCODE[I_ARRAY_STORE_U] = OpCode.ARRAY_STORE.ordinal();
+        IR_OPCODE[F_ARRAY_STORE_U] = OpCode.ARRAY_STORE.ordinal();
+        IR_OPCODE[I_ARRAY_LOAD_U] = OpCode.ARRAY_LOAD.ordinal();
+        IR_OPCODE[F_ARRAY_LOAD_U] = OpCode.ARRAY_LOAD.ordinal();
+        IR_OPCODE[I_ALOAD_MOV_U] = OpCode.ARRAY_LOAD.ordinal();
+
+        Arrays.fill(FUSED_IR_OPCODE, UNCOUNTED);
+        FUSED_IR_OPCODE[I_MOV2] = OpCode.ASSIGN.ordinal();
+        FUSED_IR_OPCODE[I_ALOAD_MOV] = OpCode.ASSIGN.ordinal();
+        FUSED_IR_OPCODE[I_ADD_BRLT] = OpCode.BRLT.ordinal();
+        FUSED_IR_OPCODE[I_ADD_GOTO] = OpCode.GOTO.ordinal();
+        FUSED_IR_OPCODE[I_ALOAD_MOV_U] = OpCode.ASSIGN.ordinal();
+    }
+
+    /**
+     * The superinstruction for first immediately followed by second, or -1 if they do not fuse.
+     * Both must be single IR instructions, so neither may already be a superinstruction.
+     */
+    public static int fuse(int first, int second) {
+        switch (first) {
+            case I_MOV:
+                return second == I_MOV ? I_MOV2 : -1;
+            case I_ARRAY_LOAD:
+                return second == I_MOV ? I_ALOAD_MOV : -1;
+            case I_ARRAY_LOAD_U:
+                return second == I_MOV ? I_ALOAD_MOV_U : -1;
+            case I_ADD:
+                if (second == I_BRLT)
+                    return I_ADD_BRLT;
+                return second == GOTO ? I_ADD_GOTO : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /** Number of ints occupied by the instruction at code[pc], including the opcode */
+    public static int width(int[] code, int pc) {
+        switch (code[pc]) {
+            case LABEL:
+            case END:
+                return 1;
+            case GOTO:
+            case I_RETURN:
+            case F_RETURN:
+            case GETI:
+            case GETF:
+            case GETC:
+            case PUTI:
+            case PUTF:
+            case PUTC:
+                return 2;
+            case I_MOV:
+            case F_MOV:
+                return 3;
+            case I_MOV2:
+            case I_ADD_GOTO:
+                return 5;
+            case I_ALOAD_MOV:
+            case I_ALOAD_MOV_U:
+                return 6;
+            case I_ADD_BRLT:
+                return 7;
+            case CALL:
+                return 3 + code[pc + 2];
+            case CALLR:
+                return 4 + code[pc + 3];
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution engine that runs the pre-decoded form of a program (see Bytecode) in a single
+ * switch loop. Produces the same output and the same Stats counts as the IRInstruction walker
+ * in IRInterpreter.
+ *
+ * An engine object holds the frames of one run at a time. The lowered program is immutable, so
+ * concurrent runs can share it through the copy constructor.
+ */
+public class BytecodeEngine {
+
+    private static class Frame {
+        BytecodeFunction fn;
+        int[] ints;
+        float[] floats;
+        int[][] intArrays;
+        float[][] floatArrays;
+        // Offset of the call instruction in the caller's code
+        int callPc;
+    }
+
+    private BytecodeFunction[] functions;
+    private int mainIdx = -1;
+
+    // Execution state
+    private Frame[] frames;
+    private int depth;
+    private RuntimeIO io;
+
+    public BytecodeEngine(IRProgram program) {
+        Map<String, Integer> functionIndex = new HashMap<>();
+        for (int i = 0; i < program.functions.size(); i++)
+            functionIndex.put(program.functions.get(i).name, i);
+        functions = new BytecodeFunction[program.functions.size()];
+        for (int i = 0; i < functions.length; i++) {
+            IRFunction function = program.functions.get(i);
+            functions[i] = new BytecodeFunction(function, new FrameLayout(function), functionIndex);
+            if (function.name.equals("main"))
+                mainIdx = i;
+        }
+    }
+
+    /** An engine for another run of the program shared's was built for */
+    public BytecodeEngine(BytecodeEngine shared) {
+        functions = shared.functions;
+        mainIdx = shared.mainIdx;
+    }
+
+    public void run(RuntimeIO io, Stats stats) throws IRException {
+        this.io = io;
+        if (mainIdx < 0) {
+            io.flush();
+            io.err().println("IR interpreter runtime exception: Undefined reference to function 'main'");
+            throw new IRException();
+        }
+
+        long[] counts = new long[Bytecode.UNCOUNTED + 1];
+        // FULL stats: executions of each code offset, per function; for a superinstruction, the
+        // offset after its opcode counts its second instruction, which only runs if the first did
+        long[][] offsetCounts = null;
+        if (stats.isFull()) {
+            offsetCounts = new long[functions.length][];
+            for (int i = 0; i < functions.length; i++)
+                offsetCounts[i] = new long[functions[i].code.length];
+        }
+        frames = new Frame[16];
+        depth = 0;
+
+        Frame frame = pushFrame(functions[mainIdx], -1);
+        BytecodeFunction fn = frame.fn;
+        int[] code = fn.code;
+        int[] ik = fn.intConstants;
+        float[] fk = fn.floatConstants;
+        int[] ints = frame.ints;
+        float[] floats = frame.floats;
+        int[][] intArrays = frame.intArrays;
+        float[][] floatArrays = frame.floatArrays;
+        long[] fnCounts = offsetCounts != null ? offsetCounts[fn.index] : null;
+        int pc = 0;
+
+        try {
+            while (true) {
+                int op = code[pc];
+                counts[Bytecode.IR_OPCODE[op]]++;
+                if (fnCounts != null)
+                    fnCounts[pc]++;
+                switch (op) {
+                    case Bytecode.LABEL:
+                        pc += 1;
+                        break;
+                    case Bytecode.I_MOV:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik);
+                        pc += 3;
+                        break;
+                    case Bytecode.F_MOV:
+                        floats[code[pc + 1]] = rf(code[pc + 2], floats, fk);
+                        pc += 3;
+                        break;
+                    case Bytecode.I_FILL: {
+                        int[] arr = intArrays[code[pc + 1]];
+                        int n = ri(code[pc + 2], ints, ik);
+                        if (n < 0 || n > arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        Arrays.fill(arr, 0, n, ri(code[pc + 3], ints, ik));
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.F_FILL: {
+                        float[] arr = floatArrays[code[pc + 1]];
+                        int n = ri(code[pc + 2], ints, ik);
+                        if (n < 0 || n > arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        Arrays.fill(arr, 0, n, rf(code[pc + 3], floats, fk));
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.I_FILL_U:
+                        Arrays.fill(intArrays[code[pc + 1]], 0, ri(code[pc + 2], ints, ik), ri(code[pc + 3], ints, ik));
+                        pc += 4;
+                        break;
+                    case Bytecode.F_FILL_U:
+                        Arrays.fill(floatArrays[code[pc + 1]], 0, ri(code[pc + 2], ints, ik), rf(code[pc + 3], floats, fk));
+                        pc += 4;
+                        break;
+                    case Bytecode.I_ADD:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) + ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_SUB:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) - ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_MULT:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) * ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_DIV:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) / ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_AND:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) & ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_OR:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) | ri(code[pc + 3], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.F_ADD:
+                        floats[code[pc + 1]] = rf(code[pc + 2], floats, fk) + rf(code[pc + 3], floats, fk);
+                        pc += 4;
+                        break;
+                    case Bytecode.F_SUB:
+                        floats[code[pc + 1]] = rf(code[pc + 2], floats, fk) - rf(code[pc + 3], floats, fk);
+                        pc += 4;
+                        break;
+                    case Bytecode.F_MULT:
+                        floats[code[pc + 1]] = rf(code[pc + 2], floats, fk) * rf(code[pc + 3], floats, fk);
+                        pc += 4;
+                        break;
+                    case Bytecode.F_DIV:
+                        floats[code[pc + 1]] = rf(code[pc + 2], floats, fk) / rf(code[pc + 3], floats, fk);
+                        pc += 4;
+                        break;
+                    case Bytecode.GOTO:
+                        pc = code[pc + 1];
+                        break;
+                    case Bytecode.I_MOV2:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik);
+                        counts[Bytecode.FUSED_IR_OPCODE[op]]++;
+                        if (fnCounts != null)
+                            fnCounts[pc + 1]++;
+                        ints[code[pc + 3]] = ri(code[pc + 4], ints, ik);
+                        pc += 5;
+                        break;
+                    case Bytecode.I_ALOAD_MOV: {
+                        int[] arr = intArrays[code[pc + 2]];
+                        int offset = ri(code[pc + 3], ints, ik);
+                        if (offset < 0 || offset >= arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        ints[code[pc + 1]] = arr[offset];
+                        counts[Bytecode.FUSED_IR_OPCODE[op]]++;
+                        if (fnCounts != null)
+                            fnCounts[pc + 1]++;
+                        ints[code[pc + 4]] = ri(code[pc + 5], ints, ik);
+                        pc += 6;
+                        break;
+                    }
+                    case Bytecode.I_ALOAD_MOV_U:
+                        ints[code[pc + 1]] = intArrays[code[pc + 2]][ri(code[pc + 3], ints, ik)];
+                        counts[Bytecode.FUSED_IR_OPCODE[op]]++;
+                        if (fnCounts != null)
+                            fnCounts[pc + 1]++;
+                        ints[code[pc + 4]] = ri(code[pc + 5], ints, ik);
+                        pc += 6;
+                        break;
+                    case Bytecode.I_ADD_BRLT:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) + ri(code[pc + 3], ints, ik);
+                        counts[Bytecode.FUSED_IR_OPCODE[op]]++;
+                        if (fnCounts != null)
+                            fnCounts[pc + 1]++;
+                        pc = ri(code[pc + 5], ints, ik) < ri(code[pc + 6], ints, ik) ? code[pc + 4] : pc + 7;
+                        break;
+                    case Bytecode.I_ADD_GOTO:
+                        ints[code[pc + 1]] = ri(code[pc + 2], ints, ik) + ri(code[pc + 3], ints, ik);
+                        counts[Bytecode.FUSED_IR_OPCODE[op]]++;
+                        if (fnCounts != null)
+                            fnCounts[pc + 1]++;
+                        pc = code[pc + 4];
+                        break;
+                    case Bytecode.I_BREQ:
+                        pc = ri(code[pc + 2], ints, ik) == ri(code[pc + 3], ints, ik) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.I_BRNEQ:
+                        pc = ri(code[pc + 2], ints, ik) != ri(code[pc + 3], ints, ik) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.I_BRLT:
+                        pc = ri(code[pc + 2], ints, ik) < ri(code[pc + 3], ints, ik) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.I_BRGT:
+                        pc = ri(code[pc + 2], ints, ik) > ri(code[pc + 3], ints, ik) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.I_BRGEQ:
+                        pc = ri(code[pc + 2], ints, ik) >= ri(code[pc + 3], ints, ik) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.F_BREQ:
+                        pc = rf(code[pc + 2], floats, fk) == rf(code[pc + 3], floats, fk) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.F_BRNEQ:
+                        pc = rf(code[pc + 2], floats, fk) != rf(code[pc + 3], floats, fk) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.F_BRLT:
+                        pc = rf(code[pc + 2], floats, fk) < rf(code[pc + 3], floats, fk) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.F_BRGT:
+                        pc = rf(code[pc + 2], floats, fk) > rf(code[pc + 3], floats, fk) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.F_BRGEQ:
+                        pc = rf(code[pc + 2], floats, fk) >= rf(code[pc + 3], floats, fk) ? code[pc + 1] : pc + 4;
+                        break;
+                    case Bytecode.I_RETURN:
+                    case Bytecode.F_RETURN:
+                    case Bytecode.END: {
+                        Frame callee = frame;
+                        if (depth == 1) // Exit main
+                            return;
+                        depth--;
+                        frame = frames[depth - 1];
+                        int callPc = callee.callPc;
+                        int[] callerCode = frame.fn.code;
+                        if (op == Bytecode.I_RETURN)
+                            frame.ints[callerCode[callPc + 1]] = ri(code[pc + 1], ints, ik);
+                        else if (op == Bytecode.F_RETURN)
+                            frame.floats[callerCode[callPc + 1]] = rf(code[pc + 1], floats, fk);
+                        else if (frame.fn.function.returnType != null)
+                            throw runtimeException("Missing return for a function with return value",
+                                    frame.fn.lines[frame.fn.lines.length - 1]);
+
+                        fn = frame.fn;
+                        code = fn.code;
+                        ik = fn.intConstants;
+                        fk = fn.floatConstants;
+                        if (fnCounts != null)
+                            fnCounts = offsetCounts[fn.index];
+                        ints = frame.ints;
+                        floats = frame.floats;
+                        intArrays = frame.intArrays;
+                        floatArrays = frame.floatArrays;
+                        pc = callPc + Bytecode.width(code, callPc);
+                        break;
+                    }
+                    case Bytecode.CALL:
+                    case Bytecode.CALLR: {
+                        int argPc = op == Bytecode.CALL ? pc + 1 : pc + 2;
+                        BytecodeFunction callee = functions[code[argPc]];
+                        Frame calleeFrame = pushFrame(callee, pc);
+                        FrameLayout layout = callee.layout;
+                        argPc += 2;
+                        for (int i = 0; i < layout.paramSlots.length; i++) {
+                            int arg = code[argPc + i];
+                            int paramSlot = layout.paramSlots[i];
+                            switch (layout.paramKinds[i]) {
+                                case FrameLayout.INT:
+                                    calleeFrame.ints[paramSlot] = ri(arg, ints, ik);
+                                    break;
+                                case FrameLayout.FLOAT:
+                                    calleeFrame.floats[paramSlot] = rf(arg, floats, fk);
+                                    break;
+                                case FrameLayout.INT_ARRAY:
+                                    calleeFrame.intArrays[paramSlot] = intArrays[arg];
+                                    break;
+                                default:
+                                    calleeFrame.floatArrays[paramSlot] = floatArrays[arg];
+                                    break;
+                            }
+                        }
+
+                        frame = calleeFrame;
+                        fn = callee;
+                        code = fn.code;
+                        ik = fn.intConstants;
+                        fk = fn.floatConstants;
+                        if (fnCounts != null)
+                            fnCounts = offsetCounts[fn.index];
+                        ints = frame.ints;
+                        floats = frame.floats;
+                        intArrays = frame.intArrays;
+                        floatArrays = frame.floatArrays;
+                        pc = 0;
+                        break;
+                    }
+                    case Bytecode.GETI:
+                        ints[code[pc + 1]] = io.geti();
+                        pc += 2;
+                        break;
+                    case Bytecode.GETF:
+                        floats[code[pc + 1]] = io.getf();
+                        pc += 2;
+                        break;
+                    case Bytecode.GETC:
+                        ints[code[pc + 1]] = io.getc();
+                        pc += 2;
+                        break;
+                    case Bytecode.PUTI:
+                        io.puti(ri(code[pc + 1], ints, ik));
+                        pc += 2;
+                        break;
+                    case Bytecode.PUTF:
+                        io.putf(rf(code[pc + 1], floats, fk));
+                        pc += 2;
+                        break;
+                    case Bytecode.PUTC:
+                        io.putc(ri(code[pc + 1], ints, ik));
+                        pc += 2;
+                        break;
+                    case Bytecode.I_ARRAY_STORE: {
+                        int[] arr = intArrays[code[pc + 2]];
+                        int offset = ri(code[pc + 3], ints, ik);
+                        if (offset < 0 || offset >= arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        arr[offset] = ri(code[pc + 1], ints, ik);
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.F_ARRAY_STORE: {
+                        float[] arr = floatArrays[code[pc + 2]];
+                        int offset = ri(code[pc + 3], ints, ik);
+                        if (offset < 0 || offset >= arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        arr[offset] = rf(code[pc + 1], floats, fk);
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.I_ARRAY_LOAD: {
+                        int[] arr = intArrays[code[pc + 2]];
+                        int offset = ri(code[pc + 3], ints, ik);
+                        if (offset < 0 || offset >= arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        ints[code[pc + 1]] = arr[offset];
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.F_ARRAY_LOAD: {
+                        float[] arr = floatArrays[code[pc + 2]];
+                        int offset = ri(code[pc + 3], ints, ik);
+                        if (offset < 0 || offset >= arr.length)
+                            throw runtimeException("Out-of-bounds array access", fn.lines[pc]);
+                        floats[code[pc + 1]] = arr[offset];
+                        pc += 4;
+                        break;
+                    }
+                    case Bytecode.I_ARRAY_STORE_U:
+                        intArrays[code[pc + 2]][ri(code[pc + 3], ints, ik)] = ri(code[pc + 1], ints, ik);
+                        pc += 4;
+                        break;
+                    case Bytecode.F_ARRAY_STORE_U:
+                        floatArrays[code[pc + 2]][ri(code[pc + 3], ints, ik)] = rf(code[pc + 1], floats, fk);
+                        pc += 4;
+                        break;
+                    case Bytecode.I_ARRAY_LOAD_U:
+                        ints[code[pc + 1]] = intArrays[code[pc + 2]][ri(code[pc + 3], ints, ik)];
+                        pc += 4;
+                        break;
+                    case Bytecode.F_ARRAY_LOAD_U:
+                        floats[code[pc + 1]] = floatArrays[code[pc + 2]][ri(code[pc + 3], ints, ik)];
+                        pc += 4;
+                        break;
+                    default:
+                        throw new IllegalStateException("Invalid bytecode " + op + " at " + pc);
+                }
+            }
+        } finally {
+            if (offsetCounts != null)
+                addOffsetCounts(offsetCounts, stats);
+            else
+                stats.add(counts);
+        }
+    }
+
+    /** Attribute per-offset counts to the IR instructions the offsets were lowered from */
+    private void addOffsetCounts(long[][] offsetCounts, Stats stats) {
+        IRInstruction.OpCode[] opCodes = IRInstruction.OpCode.values();
+        for (BytecodeFunction function : functions) {
+            long[] fnCounts = offsetCounts[function.index];
+            for (int pc = 0; pc < fnCounts.length; pc += Bytecode.width(function.code, pc)) {
+                if (fnCounts[pc] == 0)
+                    continue;
+                int op = function.code[pc];
+                if (Bytecode.IR_OPCODE[op] != Bytecode.UNCOUNTED)
+                    stats.add(function.index, opCodes[Bytecode.IR_OPCODE[op]], function.lines[pc], fnCounts[pc]);
+                if (Bytecode.FUSED_IR_OPCODE[op] != Bytecode.UNCOUNTED && fnCounts[pc + 1] != 0)
+                    stats.add(function.index, opCodes[Bytecode.FUSED_IR_OPCODE[op]], function.lines[pc + 1],
+                            fnCounts[pc + 1]);
+            }
+        }
+    }
+
+    /** Read an int operand: a frame slot, or a complemented constant pool index */
+    private static int ri(int operand, int[] ints, int[] ik) {
+        return operand >= 0 ? ints[operand] : ik[~operand];
+    }
+
+    private static float rf(int operand, float[] floats, float[] fk) {
+        return operand >= 0 ? floats[operand] : fk[~operand];
+    }
+
+    private Frame pushFrame(BytecodeFunction fn, int callPc) {
+        FrameLayout layout = fn.layout;
+        Frame frame = new Frame();
+        frame.fn = fn;
+        frame.callPc = callPc;
+        frame.ints = new int[layout.intSlotCount];
+        frame.floats = new float[layout.floatSlotCount];
+        frame.intArrays = new int[layout.intArraySlotCount][];
+        frame.floatArrays = new float[layout.floatArraySlotCount][];
+        for (int i = 0; i < layout.localIntArraySlots.length; i++)
+            frame.intArrays[layout.localIntArraySlots[i]] = new int[layout.localIntArraySizes[i]];
+        for (int i = 0; i < layout.localFloatArraySlots.length; i++)
+            frame.floatArrays[layout.localFloatArraySlots[i]] = new float[layout.localFloatArraySizes[i]];
+
+        if (depth == frames.length) {
+            Frame[] grown = new Frame[frames.length * 2];
+            System.arraycopy(frames, 0, grown, 0, depth);
+            frames = grown;
+        }
+        frames[depth++] = frame;
+        return frame;
+    }
+
+    private IRException runtimeException(String message, int lineNumber) {
+        // The program's output so far comes first
+        io.flush();
+        PrintStream err = io.err();
+        err.println("IR interpreter runtime exception: " + message);
+        err.println("Stack trace:");
+        err.println("\t" + frames[depth - 1].fn.function.name + ":" + lineNumber);
+        for (int i = depth - 1; i > 0; i--) {
+            BytecodeFunction caller = frames[i - 1].fn;
+            err.println("\t" + caller.function.name + ":" + caller.lines[frames[i].callPc]);
+        }
+        return new IRException();
+    }
+}
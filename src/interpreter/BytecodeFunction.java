@@ -0,0 +1,301 @@
+package interpreter;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.datatype.IRFloatType;
+import ir.operand.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An IRFunction lowered once into a flat int[] instruction stream (see Bytecode).
+ * Constants are parsed into per-function pools, variables are resolved to FrameLayout slots,
+ * labels to code offsets and callees to function table indices.
+ */
+public class BytecodeFunction {
+
+    public final IRFunction function;
+    public final FrameLayout layout;
+
+    /** Position in the function table */
+    public final int index;
+
+    public int[] code;
+
+    /**
+     * IR line number of the instruction starting at each code offset. For a superinstruction at pc,
+     * lines[pc + 1] holds the line of its second IR instruction.
+     */
+    public int[] lines;
+
+    public int[] intConstants;
+    public float[] floatConstants;
+
+    private List<Integer> intPool = new ArrayList<>();
+    private List<Float> floatPool = new ArrayList<>();
+    private Map<Integer, Integer> intPoolIndex = new HashMap<>();
+    private Map<Float, Integer> floatPoolIndex = new HashMap<>();
+
+    private int[] emitted;
+    private int size;
+
+    public BytecodeFunction(IRFunction function, FrameLayout layout, Map<String, Integer> functionIndex) {
+        this.function = function;
+        this.layout = layout;
+        index = functionIndex.get(function.name);
+        emitted = new int[function.instructions.size() * 4 + 1];
+        lines = new int[emitted.length];
+
+        // Offset of every label, and the branches that still need their target patched
+        Map<String, Integer> labelOffsets = new HashMap<>();
+        List<Integer> patchOffsets = new ArrayList<>();
+        List<String> patchLabels = new ArrayList<>();
+
+        // Start of the previous instruction if it may be fused with the next one, or -1
+        int fusable = -1;
+        // Array accesses proven in bounds, computed at the first one
+        boolean[] inBounds = null;
+
+        for (int i = 0; i < function.instructions.size(); i++) {
+            IRInstruction instruction = function.instructions.get(i);
+            IROperand[] operands = instruction.operands;
+            int[] slots = layout.operandSlots[i];
+            int start = size;
+
+            switch (instruction.opCode) {
+                case LABEL:
+                    labelOffsets.put(((IRLabelOperand) operands[0]).getName(), start);
+                    emit(Bytecode.LABEL);
+                    break;
+                case ASSIGN:
+                    if (operands.length > 2) { // Array assignment
+                        boolean isFloat = isFloat(operands[2]);
+                        if (inBounds == null)
+                            inBounds = Linkage.provenInBounds(function);
+                        if (inBounds[i])
+                            emit(isFloat ? Bytecode.F_FILL_U : Bytecode.I_FILL_U);
+                        else
+                            emit(isFloat ? Bytecode.F_FILL : Bytecode.I_FILL);
+                        emit(slots[0]);
+                        emitValue(operands[1], slots[1], false);
+                        emitValue(operands[2], slots[2], isFloat);
+                    } else {
+                        boolean isFloat = isFloat(operands[0]);
+                        emit(isFloat ? Bytecode.F_MOV : Bytecode.I_MOV);
+                        emit(slots[0]);
+                        emitValue(operands[1], slots[1], isFloat);
+                    }
+                    break;
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR: {
+                    boolean isFloat = isFloat(operands[0]);
+                    int base = isFloat ? Bytecode.F_ADD : Bytecode.I_ADD;
+                    emit(base + instruction.opCode.ordinal() - IRInstruction.OpCode.ADD.ordinal());
+                    emit(slots[0]);
+                    emitValue(operands[1], slots[1], isFloat);
+                    emitValue(operands[2], slots[2], isFloat);
+                    break;
+                }
+                case GOTO:
+                    emit(Bytecode.GOTO);
+                    patchOffsets.add(size);
+                    patchLabels.add(((IRLabelOperand) operands[0]).getName());
+                    emit(-1);
+                    break;
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRGEQ: {
+                    boolean isFloat = isFloat(operands[1]);
+                    int base = isFloat ? Bytecode.F_BREQ : Bytecode.I_BREQ;
+                    emit(base + instruction.opCode.ordinal() - IRInstruction.OpCode.BREQ.ordinal());
+                    patchOffsets.add(size);
+                    patchLabels.add(((IRLabelOperand) operands[0]).getName());
+                    emit(-1);
+                    emitValue(operands[1], slots[1], isFloat);
+                    emitValue(operands[2], slots[2], isFloat);
+                    break;
+                }
+                case RETURN: {
+                    boolean isFloat = isFloat(operands[0]);
+                    emit(isFloat ? Bytecode.F_RETURN : Bytecode.I_RETURN);
+                    emitValue(operands[0], slots[0], isFloat);
+                    break;
+                }
+                case CALL:
+                case CALLR: {
+                    boolean hasResult = instruction.opCode == IRInstruction.OpCode.CALLR;
+                    int calleeIdx = hasResult ? 1 : 0;
+                    String calleeName = ((IRFunctionOperand) operands[calleeIdx]).getName();
+                    Integer callee = functionIndex.get(calleeName);
+                    if (callee == null) {
+                        emitIntrinsic(calleeName, operands, slots, hasResult);
+                        break;
+                    }
+                    emit(hasResult ? Bytecode.CALLR : Bytecode.CALL);
+                    if (hasResult)
+                        emit(slots[0]);
+                    emit(callee);
+                    emit(operands.length - calleeIdx - 1);
+                    for (int j = calleeIdx + 1; j < operands.length; j++) {
+                        if (operands[j] instanceof IRVariableOperand)
+                            emit(slots[j]);
+                        else
+                            emitValue(operands[j], slots[j], isFloat(operands[j]));
+                    }
+                    break;
+                }
+                case ARRAY_STORE: {
+                    boolean isFloat = isFloat(operands[0]);
+                    if (inBounds == null)
+                        inBounds = Linkage.provenInBounds(function);
+                    if (inBounds[i])
+                        emit(isFloat ? Bytecode.F_ARRAY_STORE_U : Bytecode.I_ARRAY_STORE_U);
+                    else
+                        emit(isFloat ? Bytecode.F_ARRAY_STORE : Bytecode.I_ARRAY_STORE);
+                    emitValue(operands[0], slots[0], isFloat);
+                    emit(slots[1]);
+                    emitValue(operands[2], slots[2], false);
+                    break;
+                }
+                case ARRAY_LOAD: {
+                    boolean isFloat = isFloat(operands[0]);
+                    if (inBounds == null)
+                        inBounds = Linkage.provenInBounds(function);
+                    if (inBounds[i])
+                        emit(isFloat ? Bytecode.F_ARRAY_LOAD_U : Bytecode.I_ARRAY_LOAD_U);
+                    else
+                        emit(isFloat ? Bytecode.F_ARRAY_LOAD : Bytecode.I_ARRAY_LOAD);
+                    emit(slots[0]);
+                    emit(slots[1]);
+                    emitValue(operands[2], slots[2], false);
+                    break;
+                }
+                default:
+                    assert false;
+            }
+            lines[start] = instruction.irLineNumber;
+
+            int fused = fusable >= 0 ? Bytecode.fuse(emitted[fusable], emitted[start]) : -1;
+            if (fused >= 0) {
+                // Drop this instruction's opcode; its operands follow the previous instruction's
+                emitted[fusable] = fused;
+                System.arraycopy(emitted, start + 1, emitted, start, size - start - 1);
+                size--;
+                for (int p = patchOffsets.size() - 1; p >= 0 && patchOffsets.get(p) > start; p--)
+                    patchOffsets.set(p, patchOffsets.get(p) - 1);
+                lines[fusable + 1] = instruction.irLineNumber;
+                fusable = -1;
+            } else {
+                fusable = start;
+            }
+        }
+        // Falling off the end of the function
+        int endLine = function.instructions.isEmpty() ? -1
+                : function.instructions.get(function.instructions.size() - 1).irLineNumber;
+        lines[size] = endLine;
+        emit(Bytecode.END);
+
+        for (int i = 0; i < patchOffsets.size(); i++)
+            emitted[patchOffsets.get(i)] = labelOffsets.get(patchLabels.get(i));
+
+        code = new int[size];
+        System.arraycopy(emitted, 0, code, 0, size);
+        int[] trimmedLines = new int[size];
+        System.arraycopy(lines, 0, trimmedLines, 0, size);
+        lines = trimmedLines;
+        emitted = null;
+
+        intConstants = new int[intPool.size()];
+        for (int i = 0; i < intConstants.length; i++)
+            intConstants[i] = intPool.get(i);
+        floatConstants = new float[floatPool.size()];
+        for (int i = 0; i < floatConstants.length; i++)
+            floatConstants[i] = floatPool.get(i);
+        intPool = null;
+        floatPool = null;
+        intPoolIndex = null;
+        floatPoolIndex = null;
+    }
+
+    private void emitIntrinsic(String name, IROperand[] operands, int[] slots, boolean hasResult) {
+        switch (name) {
+            case "geti":
+                emit(Bytecode.GETI);
+                emit(slots[0]);
+                break;
+            case "getf":
+                emit(Bytecode.GETF);
+                emit(slots[0]);
+                break;
+            case "getc":
+                emit(Bytecode.GETC);
+                emit(slots[0]);
+                break;
+            case "puti":
+                emit(Bytecode.PUTI);
+                emitValue(operands[1], slots[1], false);
+                break;
+            case "putf":
+                emit(Bytecode.PUTF);
+                emitValue(operands[1], slots[1], true);
+                break;
+            case "putc":
+                emit(Bytecode.PUTC);
+                emitValue(operands[1], slots[1], false);
+                break;
+            default:
+                // The reader rejects calls to undefined functions
+                throw new IllegalArgumentException("Undefined reference to function '" + name + "'");
+        }
+    }
+
+    private void emitValue(IROperand operand, int slot, boolean isFloat) {
+        if (slot != FrameLayout.NO_SLOT) {
+            emit(slot);
+            return;
+        }
+        String value = ((IRConstantOperand) operand).getValueString();
+        int poolIdx;
+        if (isFloat) {
+            float f = Float.parseFloat(value);
+            poolIdx = floatPoolIndex.computeIfAbsent(f, k -> {
+                floatPool.add(k);
+                return floatPool.size() - 1;
+            });
+        } else {
+            int v = Integer.parseInt(value);
+            poolIdx = intPoolIndex.computeIfAbsent(v, k -> {
+                intPool.add(k);
+                return intPool.size() - 1;
+            });
+        }
+        emit(~poolIdx);
+    }
+
+    private void emit(int value) {
+        if (size == emitted.length) {
+            int[] grown = new int[emitted.length * 2];
+            System.arraycopy(emitted, 0, grown, 0, size);
+            emitted = grown;
+            int[] grownLines = new int[grown.length];
+            System.arraycopy(lines, 0, grownLines, 0, size);
+            lines = grownLines;
+        }
+        emitted[size++] = value;
+    }
+
+    static boolean isFloat(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type == IRFloatType.get();
+        return ((IRConstantOperand) operand).type == IRFloatType.get();
+    }
+}
@@ -0,0 +1,437 @@
+package interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JVM class file assembler, just enough for JitCompiler.
+ * Classes are emitted as version 49 so that the verifier infers types itself
+ * and no StackMapTable has to be computed.
+ */
+public class ClassFileWriter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Opcodes
+    public static final int ICONST_0 = 0x03;
+    public static final int LCONST_1 = 0x0a;
+    public static final int FCONST_0 = 0x0b;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int FLOAD = 0x17;
+    public static final int ALOAD = 0x19;
+    public static final int IALOAD = 0x2e;
+    public static final int LALOAD = 0x2f;
+    public static final int FALOAD = 0x30;
+    public static final int AALOAD = 0x32;
+    public static final int ISTORE = 0x36;
+    public static final int FSTORE = 0x38;
+    public static final int ASTORE = 0x3a;
+    public static final int IASTORE = 0x4f;
+    public static final int LASTORE = 0x50;
+    public static final int FASTORE = 0x51;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int DUP2 = 0x5c;
+    public static final int IADD = 0x60;
+    public static final int LADD = 0x61;
+    public static final int FADD = 0x62;
+    public static final int ISUB = 0x64;
+    public static final int FSUB = 0x66;
+    public static final int IMUL = 0x68;
+    public static final int FMUL = 0x6a;
+    public static final int IDIV = 0x6c;
+    public static final int FDIV = 0x6e;
+    public static final int IAND = 0x7e;
+    public static final int IOR = 0x80;
+    public static final int FCMPL = 0x95;
+    public static final int FCMPG = 0x96;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+    public static final int GOTO = 0xa7;
+    public static final int TABLESWITCH = 0xaa;
+    public static final int IRETURN = 0xac;
+    public static final int FRETURN = 0xae;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int NEWARRAY = 0xbc;
+    public static final int ARRAYLENGTH = 0xbe;
+    public static final int ATHROW = 0xbf;
+    public static final int CHECKCAST = 0xc0;
+    public static final int WIDE = 0xc4;
+
+    public static final int T_FLOAT = 6;
+    public static final int T_INT = 10;
+
+    public static class Label {
+        private int position = -1;
+        // Position of each branch instruction and of its offset field that target this label
+        private List<int[]> uses = new ArrayList<>();
+    }
+
+    private static class ExceptionHandler {
+        Label start, end, handler;
+        int catchType;
+    }
+
+    public class Code {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private List<Label> labels = new ArrayList<>();
+        private List<ExceptionHandler> handlers = new ArrayList<>();
+        private int access;
+        private int nameIdx;
+        private int descIdx;
+        private int maxStack;
+        private int maxLocals;
+
+        public int size() {
+            return bytes.size();
+        }
+
+        public void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        public void u1(int value) {
+            bytes.write(value);
+        }
+
+        public void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        public void u4(int value) {
+            u2(value >>> 16);
+            u2(value & 0xffff);
+        }
+
+        public void iconst(int value) {
+            if (value >= -1 && value <= 5)
+                op(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else
+                ldc(intConstant(value));
+        }
+
+        public void fconst(float value) {
+            if (Float.floatToRawIntBits(value) == 0)
+                op(FCONST_0);
+            else
+                ldc(floatConstant(value));
+        }
+
+        public void sconst(String value) {
+            ldc(stringConstant(value));
+        }
+
+        private void ldc(int cpIdx) {
+            if (cpIdx < 256) {
+                op(LDC);
+                u1(cpIdx);
+            } else {
+                op(LDC_W);
+                u2(cpIdx);
+            }
+        }
+
+        /** Load or store a local variable, e.g. local(ILOAD, 3) */
+        public void local(int opcode, int index) {
+            if (index < 256) {
+                op(opcode);
+                u1(index);
+            } else {
+                op(WIDE);
+                op(opcode);
+                u2(index);
+            }
+        }
+
+        public void newarray(int type) {
+            op(NEWARRAY);
+            u1(type);
+        }
+
+        public void invokestatic(String owner, String name, String descriptor) {
+            op(INVOKESTATIC);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        public void invokevirtual(String owner, String name, String descriptor) {
+            op(INVOKEVIRTUAL);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        /** Emit a two-byte-offset branch (ifXX, if_icmpXX, goto) to label */
+        public void jump(int opcode, Label label) {
+            int position = size();
+            op(opcode);
+            label.uses.add(new int[]{position, size()});
+            u2(0);
+            labels.add(label);
+        }
+
+        public void tableswitch(int low, Label defaultLabel, Label[] targets) {
+            int position = size();
+            op(TABLESWITCH);
+            while (size() % 4 != 0)
+                u1(0);
+            switchOffset(position, defaultLabel);
+            u4(low);
+            u4(low + targets.length - 1);
+            for (Label target : targets)
+                switchOffset(position, target);
+        }
+
+        private void switchOffset(int position, Label label) {
+            label.uses.add(new int[]{position, -size() - 1});
+            u4(0);
+            labels.add(label);
+        }
+
+        public void mark(Label label) {
+            label.position = size();
+        }
+
+        public void exceptionHandler(Label start, Label end, Label handler, String catchType) {
+            ExceptionHandler h = new ExceptionHandler();
+            h.start = start;
+            h.end = end;
+            h.handler = handler;
+            h.catchType = classRef(catchType);
+            handlers.add(h);
+        }
+
+        public void setMaxs(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        private byte[] resolve() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels)
+                for (int[] use : label.uses) {
+                    if (label.position < 0)
+                        throw new IllegalStateException("Unmarked label");
+                    int offset = label.position - use[0];
+                    if (use[1] >= 0) {
+                        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                            throw new IllegalStateException("Branch offset out of range");
+                        code[use[1]] = (byte) (offset >> 8);
+                        code[use[1] + 1] = (byte) offset;
+                    } else {
+                        int at = -use[1] - 1;
+                        code[at] = (byte) (offset >> 24);
+                        code[at + 1] = (byte) (offset >> 16);
+                        code[at + 2] = (byte) (offset >> 8);
+                        code[at + 3] = (byte) offset;
+                    }
+                }
+            labels.clear();
+            return code;
+        }
+    }
+
+    /** Largest method body the JVM accepts */
+    public static final int MAX_CODE_SIZE = 65535;
+
+    private String className;
+    private String superName;
+
+    private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private DataOutputStream poolOut = new DataOutputStream(pool);
+    private Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private List<Code> methods = new ArrayList<>();
+
+    public ClassFileWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    public Code newMethod(int access, String name, String descriptor) {
+        Code code = new Code();
+        code.access = access;
+        code.nameIdx = utf8(name);
+        code.descIdx = utf8(descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    public byte[] toByteArray() {
+        try {
+            int thisIdx = classRef(className);
+            int superIdx = classRef(superName);
+            int codeAttr = utf8("Code");
+            List<byte[]> bodies = new ArrayList<>();
+            for (Code m : methods) {
+                byte[] body = m.resolve();
+                if (body.length > MAX_CODE_SIZE)
+                    throw new IllegalStateException("Method too large");
+                bodies.add(body);
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIdx);
+            out.writeShort(superIdx);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                Code m = methods.get(i);
+                byte[] body = bodies.get(i);
+                out.writeShort(m.access);
+                out.writeShort(m.nameIdx);
+                out.writeShort(m.descIdx);
+                out.writeShort(1);
+                out.writeShort(codeAttr);
+                out.writeInt(12 + body.length + 8 * m.handlers.size());
+                out.writeShort(m.maxStack);
+                out.writeShort(m.maxLocals);
+                out.writeInt(body.length);
+                out.write(body);
+                out.writeShort(m.handlers.size());
+                for (ExceptionHandler h : m.handlers) {
+                    out.writeShort(h.start.position);
+                    out.writeShort(h.end.position);
+                    out.writeShort(h.handler.position);
+                    out.writeShort(h.catchType);
+                }
+                out.writeShort(0); // code attributes
+            }
+            out.writeShort(0); // class attributes
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Constant pool
+
+    public int utf8(String value) {
+        Integer idx = poolIndex.get("U" + value);
+        if (idx != null)
+            return idx;
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("U" + value, 1);
+    }
+
+    public int classRef(String internalName) {
+        Integer idx = poolIndex.get("C" + internalName);
+        if (idx != null)
+            return idx;
+        int nameIdx = utf8(internalName);
+        writeEntry(7, nameIdx);
+        return register("C" + internalName, 1);
+    }
+
+    public int intConstant(int value) {
+        Integer idx = poolIndex.get("I" + value);
+        if (idx != null)
+            return idx;
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("I" + value, 1);
+    }
+
+    public int floatConstant(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        Integer idx = poolIndex.get("F" + bits);
+        if (idx != null)
+            return idx;
+        try {
+            poolOut.writeByte(4);
+            poolOut.writeInt(bits);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("F" + bits, 1);
+    }
+
+    public int stringConstant(String value) {
+        Integer idx = poolIndex.get("S" + value);
+        if (idx != null)
+            return idx;
+        int utf8Idx = utf8(value);
+        writeEntry(8, utf8Idx);
+        return register("S" + value, 1);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer idx = poolIndex.get(key);
+        if (idx != null)
+            return idx;
+        int classIdx = classRef(owner);
+        int nameIdx = utf8(name);
+        int descIdx = utf8(descriptor);
+        writeEntry(12, nameIdx, descIdx);
+        int nameAndType = poolCount++;
+        writeEntry(10, classIdx, nameAndType);
+        return register(key, 1);
+    }
+
+    private void writeEntry(int tag, int... u2s) {
+        try {
+            poolOut.writeByte(tag);
+            for (int v : u2s)
+                poolOut.writeShort(v);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int register(String key, int slots) {
+        int idx = poolCount;
+        poolCount += slots;
+        if (poolCount > 65535)
+            throw new IllegalStateException("Constant pool too large");
+        poolIndex.put(key, idx);
+        return idx;
+    }
+}
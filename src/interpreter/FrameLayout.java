@@ -0,0 +1,138 @@
+package interpreter;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load-time slot assignment for the variables of an IRFunction.
+ * Every variable gets a dense index into one of four primitive banks (int, float, int[], float[]),
+ * and every operand of every instruction is resolved to that index, so a frame can be backed by
+ * plain arrays and executing an instruction needs neither a name lookup nor boxing.
+ */
+public class FrameLayout {
+
+    public static final int INT = 0;
+    public static final int FLOAT = 1;
+    public static final int INT_ARRAY = 2;
+    public static final int FLOAT_ARRAY = 3;
+
+    /** Operand slot used for constants, labels and function names */
+    public static final int NO_SLOT = -1;
+
+    public final IRFunction function;
+
+    public int intSlotCount;
+    public int floatSlotCount;
+    public int intArraySlotCount;
+    public int floatArraySlotCount;
+
+    /** Kind and slot of each parameter, in declaration order */
+    public int[] paramKinds;
+    public int[] paramSlots;
+
+    /** Array slots that belong to locals (not parameters) and their sizes */
+    public int[] localIntArraySlots;
+    public int[] localIntArraySizes;
+    public int[] localFloatArraySlots;
+    public int[] localFloatArraySizes;
+
+    /** operandSlots[i][j] is the slot of operand j of instruction i, or NO_SLOT */
+    public int[][] operandSlots;
+
+    private Map<String, Integer> slotMap;
+
+    public FrameLayout(IRFunction function) {
+        this.function = function;
+        slotMap = new HashMap<>();
+
+        int n = function.parameters.size();
+        paramKinds = new int[n];
+        paramSlots = new int[n];
+        for (int i = 0; i < n; i++) {
+            IRVariableOperand param = function.parameters.get(i);
+            paramKinds[i] = kindOf(param.type);
+            paramSlots[i] = assignSlot(param);
+        }
+
+        List<Integer> intArraySlots = new ArrayList<>();
+        List<Integer> intArraySizes = new ArrayList<>();
+        List<Integer> floatArraySlots = new ArrayList<>();
+        List<Integer> floatArraySizes = new ArrayList<>();
+        for (IRVariableOperand variable : function.variables) {
+            if (slotMap.containsKey(variable.getName())) // Parameter
+                continue;
+            int slot = assignSlot(variable);
+            int kind = kindOf(variable.type);
+            if (kind == INT_ARRAY) {
+                intArraySlots.add(slot);
+                intArraySizes.add(((IRArrayType) variable.type).getSize());
+            } else if (kind == FLOAT_ARRAY) {
+                floatArraySlots.add(slot);
+                floatArraySizes.add(((IRArrayType) variable.type).getSize());
+            }
+        }
+        localIntArraySlots = toIntArray(intArraySlots);
+        localIntArraySizes = toIntArray(intArraySizes);
+        localFloatArraySlots = toIntArray(floatArraySlots);
+        localFloatArraySizes = toIntArray(floatArraySizes);
+
+        operandSlots = new int[function.instructions.size()][];
+        for (int i = 0; i < operandSlots.length; i++) {
+            IRInstruction instruction = function.instructions.get(i);
+            int[] slots = new int[instruction.operands.length];
+            for (int j = 0; j < slots.length; j++)
+                slots[j] = slotOf(instruction.operands[j]);
+            operandSlots[i] = slots;
+        }
+    }
+
+    public static int kindOf(IRType type) {
+        if (type instanceof IRArrayType)
+            return ((IRArrayType) type).getElementType() == IRIntType.get() ? INT_ARRAY : FLOAT_ARRAY;
+        return type == IRFloatType.get() ? FLOAT : INT;
+    }
+
+    public int slotOf(IROperand operand) {
+        if (!(operand instanceof IRVariableOperand))
+            return NO_SLOT;
+        return slotMap.get(((IRVariableOperand) operand).getName());
+    }
+
+    private int assignSlot(IRVariableOperand variable) {
+        int slot;
+        switch (kindOf(variable.type)) {
+            case INT:
+                slot = intSlotCount++;
+                break;
+            case FLOAT:
+                slot = floatSlotCount++;
+                break;
+            case INT_ARRAY:
+                slot = intArraySlotCount++;
+                break;
+            default:
+                slot = floatArraySlotCount++;
+                break;
+        }
+        slotMap.put(variable.getName(), slot);
+        return slot;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] arr = new int[list.size()];
+        for (int i = 0; i < arr.length; i++)
+            arr[i] = list.get(i);
+        return arr;
+    }
+}
@@ -0,0 +1,64 @@
+package interpreter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A runtime exception raised by compiled IR code. Compiled call sites append their caller frame
+ * while it unwinds, so the engine can print the same stack trace as the interpreter.
+ */
+public class IRRuntimeError extends RuntimeException {
+
+    /** Function names and IR line numbers, innermost first */
+    public final List<String> functions = new ArrayList<>();
+    public final List<Integer> lines = new ArrayList<>();
+
+    /**
+     * Set when a function with a return type ran off its end. The call site decides whether that
+     * is an error, as the interpreter only reports it when the caller itself returns a value.
+     */
+    public final boolean fellOffEnd;
+
+    private IRRuntimeError(String message, boolean fellOffEnd) {
+        super(message, null, false, false);
+        this.fellOffEnd = fellOffEnd;
+    }
+
+    public static IRRuntimeError error(String message, String function, int line) {
+        IRRuntimeError e = new IRRuntimeError(message, false);
+        return e.addCaller(function, line);
+    }
+
+    public static IRRuntimeError outOfBounds(String function, int line) {
+        return error("Out-of-bounds array access", function, line);
+    }
+
+    public static IRRuntimeError missingReturn(String function, int line) {
+        return error("Missing return for a function with return value", function, line);
+    }
+
+    public static IRRuntimeError fellOffEnd() {
+        return new IRRuntimeError(null, true);
+    }
+
+    public IRRuntimeError addCaller(String function, int line) {
+        functions.add(function);
+        lines.add(line);
+        return this;
+    }
+
+    public boolean isFellOffEnd() {
+        return fellOffEnd;
+    }
+
+    /** Print in the interpreter's format to io's error stream, after the output written so far */
+    public void report(RuntimeIO io) {
+        io.flush();
+        PrintStream err = io.err();
+        err.println("IR interpreter runtime exception: " + getMessage());
+        err.println("Stack trace:");
+        for (int i = 0; i < functions.size(); i++)
+            err.println("\t" + functions.get(i) + ":" + lines.get(i));
+    }
+}
@@ -0,0 +1,631 @@
+package interpreter;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static interpreter.ClassFileWriter.*;
+
+/**
+ * Translates an IRProgram into JVM bytecode: one class with a static method per IRFunction.
+ *
+ * Each method takes the RuntimeIO and a block counter array followed by the IR parameters
+ * (int, float, int[] or float[]). Scalars and arrays are JVM locals, labels are branch targets,
+ * calls are invokestatic and the intrinsics call into RuntimeIO. In counting mode every basic
+ * block bumps its counter on entry, which is expanded back into per-opcode counts afterwards.
+ *
+ * With OSR entries enabled, every function that has labels also gets a NAME$osr method that takes
+ * an interpreter frame (the FrameLayout banks) and a label ordinal, loads the frame into locals and
+ * continues at that label, so a running loop can move from the interpreter into compiled code.
+ */
+public class JitCompiler {
+
+    public static final String CLASS_NAME = "interpreter/IRCompiledProgram";
+
+    private static final String IO = "interpreter/RuntimeIO";
+    private static final String ERROR = "interpreter/IRRuntimeError";
+    private static final String ERROR_DESC = "L" + ERROR + ";";
+    private static final String SELF = "interpreter/JitCompiler";
+    private static final String PREFIX = "(L" + IO + ";[J";
+
+    private final IRProgram program;
+    private final boolean counting;
+    private boolean osrEntries;
+    private Map<String, IRFunction> functionMap;
+
+    /** Per-opcode instruction counts of each basic block, indexed by block id */
+    private List<long[]> blockOpCounts = new ArrayList<>();
+    // Function index and instructions of each basic block, for per-function and per-line counts
+    private List<Integer> blockFunctions = new ArrayList<>();
+    private List<List<IRInstruction>> blockInstructions = new ArrayList<>();
+
+    public JitCompiler(IRProgram program, boolean counting) {
+        this.program = program;
+        this.counting = counting;
+        functionMap = new HashMap<>();
+        for (IRFunction function : program.functions)
+            functionMap.put(function.name, function);
+    }
+
+    public void setOsrEntries(boolean osrEntries) {
+        this.osrEntries = osrEntries;
+    }
+
+    public byte[] compile() {
+        ClassFileWriter cw = new ClassFileWriter(CLASS_NAME, "java/lang/Object");
+        for (IRFunction function : program.functions) {
+            new FunctionCompiler(cw, function, false).compile();
+            if (osrEntries && hasLabels(function))
+                new FunctionCompiler(cw, function, true).compile();
+        }
+        return cw.toByteArray();
+    }
+
+    public static boolean hasLabels(IRFunction function) {
+        for (IRInstruction instruction : function.instructions)
+            if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                return true;
+        return false;
+    }
+
+    public static String osrName(IRFunction function) {
+        return function.name + "$osr";
+    }
+
+    public static String osrDescriptor(IRFunction function) {
+        return PREFIX + "I[I[F[[I[[F)"
+                + (function.returnType == null ? "V" : typeDescriptor(function.returnType));
+    }
+
+    public int getBlockCount() {
+        return blockOpCounts.size();
+    }
+
+    /** Add the executions recorded in blockCounts to stats */
+    public void addCounts(long[] blockCounts, Stats stats) {
+        if (!stats.isFull()) {
+            stats.add(expandCounts(blockCounts));
+            return;
+        }
+        for (int b = 0; b < blockCounts.length; b++) {
+            if (blockCounts[b] == 0)
+                continue;
+            for (IRInstruction instruction : blockInstructions.get(b))
+                stats.add(blockFunctions.get(b), instruction.opCode, instruction.irLineNumber, blockCounts[b]);
+        }
+    }
+
+    /** Expand block counters into counts indexed by OpCode ordinal */
+    public long[] expandCounts(long[] blockCounts) {
+        long[] counts = new long[IRInstruction.OpCode.values().length];
+        for (int b = 0; b < blockCounts.length; b++) {
+            if (blockCounts[b] == 0)
+                continue;
+            long[] ops = blockOpCounts.get(b);
+            for (int op = 0; op < counts.length; op++)
+                counts[op] += ops[op] * blockCounts[b];
+        }
+        return counts;
+    }
+
+    public static String descriptor(IRFunction function) {
+        StringBuilder sb = new StringBuilder(PREFIX);
+        for (IRVariableOperand param : function.parameters)
+            sb.append(typeDescriptor(param.type));
+        sb.append(')');
+        sb.append(function.returnType == null ? "V" : typeDescriptor(function.returnType));
+        return sb.toString();
+    }
+
+    private static String typeDescriptor(IRType type) {
+        if (type instanceof IRArrayType)
+            return ((IRArrayType) type).getElementType() == IRIntType.get() ? "[I" : "[F";
+        return type == IRFloatType.get() ? "F" : "I";
+    }
+
+    private static boolean isFloat(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type == IRFloatType.get();
+        return ((IRConstantOperand) operand).type == IRFloatType.get();
+    }
+
+    private static boolean isBlockEnd(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case GOTO:
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRGEQ:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private class FunctionCompiler {
+        private final ClassFileWriter cw;
+        private final IRFunction function;
+        private final boolean osr;
+        private ClassFileWriter.Code c;
+
+        private Map<String, Integer> localIndex = new HashMap<>();
+        private Map<String, IRType> localType = new HashMap<>();
+        private Map<String, Label> labels = new HashMap<>();
+        private int scratchLocal;
+        private int lastLine;
+
+        // Stubs emitted after the body: out-of-bounds throws and call site handlers
+        private List<Runnable> stubs = new ArrayList<>();
+        // Array accesses proven in bounds, computed at the first one
+        private boolean[] inBounds;
+
+        FunctionCompiler(ClassFileWriter cw, IRFunction function, boolean osr) {
+            this.cw = cw;
+            this.function = function;
+            this.osr = osr;
+        }
+
+        void compile() {
+            if (osr)
+                c = cw.newMethod(ACC_PUBLIC | ACC_STATIC, osrName(function), osrDescriptor(function));
+            else
+                c = cw.newMethod(ACC_PUBLIC | ACC_STATIC, function.name, descriptor(function));
+            List<IRInstruction> instructions = function.instructions;
+            lastLine = instructions.isEmpty() ? -1 : instructions.get(instructions.size() - 1).irLineNumber;
+
+            // OSR entries take (io, counts, label ordinal, ints, floats, int arrays, float arrays)
+            int next = osr ? 7 : 2;
+            FrameLayout layout = osr ? new FrameLayout(function) : null;
+            for (IRVariableOperand param : function.parameters) {
+                localIndex.put(param.getName(), next);
+                localType.put(param.getName(), param.type);
+                if (osr)
+                    loadFromFrame(param, layout, next);
+                next++;
+            }
+            for (IRVariableOperand variable : function.variables) {
+                if (localIndex.containsKey(variable.getName()))
+                    continue;
+                localIndex.put(variable.getName(), next);
+                localType.put(variable.getName(), variable.type);
+                if (osr)
+                    loadFromFrame(variable, layout, next);
+                else
+                    initLocal(variable, next);
+                next++;
+            }
+            scratchLocal = next++;
+
+            List<Label> labelsInOrder = new ArrayList<>();
+            for (IRInstruction instruction : instructions)
+                if (instruction.opCode == IRInstruction.OpCode.LABEL) {
+                    Label label = new Label();
+                    labels.put(((IRLabelOperand) instruction.operands[0]).getName(), label);
+                    labelsInOrder.add(label);
+                }
+            if (osr) {
+                Label bodyStart = new Label();
+                c.local(ILOAD, 2);
+                c.tableswitch(0, bodyStart, labelsInOrder.toArray(new Label[0]));
+                c.mark(bodyStart);
+            }
+
+            int maxArgs = 0;
+            for (int i = 0; i < instructions.size(); i++) {
+                IRInstruction instruction = instructions.get(i);
+                // Branches target the label itself, so the counter goes right after it
+                if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                    c.mark(labels.get(((IRLabelOperand) instruction.operands[0]).getName()));
+                if (counting && (i == 0 || instruction.opCode == IRInstruction.OpCode.LABEL
+                        || isBlockEnd(instructions.get(i - 1).opCode)))
+                    countBlock(i);
+                maxArgs = Math.max(maxArgs, instruction.operands.length);
+                compileInstruction(instruction, i);
+            }
+
+            // Falling off the end
+            if (function.returnType == null) {
+                c.op(RETURN);
+            } else {
+                c.invokestatic(ERROR, "fellOffEnd", "()" + ERROR_DESC);
+                c.op(ATHROW);
+            }
+
+            for (Runnable stub : stubs)
+                stub.run();
+
+            c.setMaxs(maxArgs + 8, next);
+        }
+
+        private void loadFromFrame(IRVariableOperand variable, FrameLayout layout, int index) {
+            int slot = layout.slotOf(variable);
+            switch (FrameLayout.kindOf(variable.type)) {
+                case FrameLayout.INT:
+                    c.local(ALOAD, 3);
+                    c.iconst(slot);
+                    c.op(IALOAD);
+                    c.local(ISTORE, index);
+                    break;
+                case FrameLayout.FLOAT:
+                    c.local(ALOAD, 4);
+                    c.iconst(slot);
+                    c.op(FALOAD);
+                    c.local(FSTORE, index);
+                    break;
+                case FrameLayout.INT_ARRAY:
+                    c.local(ALOAD, 5);
+                    c.iconst(slot);
+                    c.op(AALOAD);
+                    c.local(ASTORE, index);
+                    break;
+                default:
+                    c.local(ALOAD, 6);
+                    c.iconst(slot);
+                    c.op(AALOAD);
+                    c.local(ASTORE, index);
+                    break;
+            }
+        }
+
+        private void initLocal(IRVariableOperand variable, int index) {
+            if (variable.type instanceof IRArrayType) {
+                IRArrayType arrayType = (IRArrayType) variable.type;
+                c.iconst(arrayType.getSize());
+                c.newarray(arrayType.getElementType() == IRIntType.get() ? T_INT : T_FLOAT);
+                c.local(ASTORE, index);
+            } else if (variable.type == IRFloatType.get()) {
+                c.op(FCONST_0);
+                c.local(FSTORE, index);
+            } else {
+                c.op(ICONST_0);
+                c.local(ISTORE, index);
+            }
+        }
+
+        /** counts[block]++ and record which instructions the block covers */
+        private void countBlock(int start) {
+            long[] ops = new long[IRInstruction.OpCode.values().length];
+            List<IRInstruction> instructions = function.instructions;
+            int end = start;
+            for (int i = start; i < instructions.size(); i++) {
+                IRInstruction instruction = instructions.get(i);
+                if (i > start && instruction.opCode == IRInstruction.OpCode.LABEL)
+                    break;
+                ops[instruction.opCode.ordinal()]++;
+                end = i + 1;
+                if (isBlockEnd(instruction.opCode))
+                    break;
+            }
+            int blockId = blockOpCounts.size();
+            blockOpCounts.add(ops);
+            blockFunctions.add(program.functions.indexOf(function));
+            blockInstructions.add(instructions.subList(start, end));
+
+            c.local(ALOAD, 1);
+            c.iconst(blockId);
+            c.op(DUP2);
+            c.op(LALOAD);
+            c.op(LCONST_1);
+            c.op(LADD);
+            c.op(LASTORE);
+        }
+
+        /** Compile instruction, the i-th of the function */
+        private void compileInstruction(IRInstruction instruction, int i) {
+            IROperand[] operands = instruction.operands;
+            switch (instruction.opCode) {
+                case LABEL:
+                    break;
+                case ASSIGN:
+                    if (operands.length > 2) { // Array assignment
+                        boolean isFloat = isFloat(operands[2]);
+                        if (isInBounds(i)) {
+                            loadArray(operands[0]);
+                            c.iconst(0);
+                            loadScalar(operands[1], false);
+                            loadScalar(operands[2], isFloat);
+                            c.invokestatic("java/util/Arrays", "fill", isFloat ? "([FIIF)V" : "([IIII)V");
+                            break;
+                        }
+                        loadArray(operands[0]);
+                        loadScalar(operands[1], false);
+                        loadScalar(operands[2], isFloat);
+                        c.sconst(function.name);
+                        c.iconst(instruction.irLineNumber);
+                        c.invokestatic(SELF, "fill", isFloat
+                                ? "([FIFLjava/lang/String;I)V" : "([IIILjava/lang/String;I)V");
+                    } else {
+                        boolean isFloat = isFloat(operands[0]);
+                        loadScalar(operands[1], isFloat);
+                        store(operands[0], isFloat);
+                    }
+                    break;
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR: {
+                    boolean isFloat = isFloat(operands[0]);
+                    loadScalar(operands[1], isFloat);
+                    loadScalar(operands[2], isFloat);
+                    c.op(arithmeticOpcode(instruction.opCode, isFloat));
+                    store(operands[0], isFloat);
+                    break;
+                }
+                case GOTO:
+                    c.jump(GOTO, labels.get(((IRLabelOperand) operands[0]).getName()));
+                    break;
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRGEQ: {
+                    boolean isFloat = isFloat(operands[1]);
+                    Label target = labels.get(((IRLabelOperand) operands[0]).getName());
+                    loadScalar(operands[1], isFloat);
+                    loadScalar(operands[2], isFloat);
+                    if (isFloat) {
+                        // NaN compares false, except for brneq
+                        c.op(instruction.opCode == IRInstruction.OpCode.BRLT ? FCMPG : FCMPL);
+                        c.jump(IFEQ + branchOffset(instruction.opCode), target);
+                    } else {
+                        c.jump(IF_ICMPEQ + branchOffset(instruction.opCode), target);
+                    }
+                    break;
+                }
+                case RETURN: {
+                    boolean isFloat = isFloat(operands[0]);
+                    loadScalar(operands[0], isFloat);
+                    c.op(isFloat ? FRETURN : IRETURN);
+                    break;
+                }
+                case CALL:
+                case CALLR:
+                    compileCall(instruction);
+                    break;
+                case ARRAY_STORE:
+                case ARRAY_LOAD: {
+                    boolean isLoad = instruction.opCode == IRInstruction.OpCode.ARRAY_LOAD;
+                    boolean isFloat = isFloat(operands[0]);
+                    int size = ((IRArrayType) localType.get(((IRVariableOperand) operands[1]).getName())).getSize();
+                    boolean constantIndex = operands[2] instanceof IRConstantOperand;
+                    if (constantIndex) {
+                        int index = Integer.parseInt(((IRConstantOperand) operands[2]).getValueString());
+                        if (index < 0 || index >= size) {
+                            throwOutOfBounds(instruction.irLineNumber);
+                            break;
+                        }
+                        loadArray(operands[1]);
+                        c.iconst(index);
+                    } else if (isInBounds(i)) {
+                        loadArray(operands[1]);
+                        loadScalar(operands[2], false);
+                    } else {
+                        // Keep the index in the scratch local and check it against the array length
+                        loadScalar(operands[2], false);
+                        c.local(ISTORE, scratchLocal);
+                        Label outOfBounds = outOfBoundsStub(instruction.irLineNumber);
+                        c.local(ILOAD, scratchLocal);
+                        c.jump(IFLT, outOfBounds);
+                        c.local(ILOAD, scratchLocal);
+                        loadArray(operands[1]);
+                        c.op(ARRAYLENGTH);
+                        c.jump(IF_ICMPGE, outOfBounds);
+                        loadArray(operands[1]);
+                        c.local(ILOAD, scratchLocal);
+                    }
+                    if (isLoad) {
+                        c.op(isFloat ? FALOAD : IALOAD);
+                        store(operands[0], isFloat);
+                    } else {
+                        loadScalar(operands[0], isFloat);
+                        c.op(isFloat ? FASTORE : IASTORE);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported opcode " + instruction.opCode);
+            }
+        }
+
+        private void compileCall(IRInstruction instruction) {
+            IROperand[] operands = instruction.operands;
+            boolean hasResult = instruction.opCode == IRInstruction.OpCode.CALLR;
+            int calleeIdx = hasResult ? 1 : 0;
+            String calleeName = ((IRFunctionOperand) operands[calleeIdx]).getName();
+            IRFunction callee = functionMap.get(calleeName);
+
+            if (callee == null) {
+                compileIntrinsic(calleeName, instruction);
+                return;
+            }
+
+            c.local(ALOAD, 0);
+            c.local(ALOAD, 1);
+            for (int j = calleeIdx + 1; j < operands.length; j++) {
+                IROperand arg = operands[j];
+                if (arg instanceof IRVariableOperand && ((IRVariableOperand) arg).type instanceof IRArrayType)
+                    loadArray(arg);
+                else
+                    loadScalar(arg, isFloat(arg));
+            }
+
+            Label start = new Label();
+            Label end = new Label();
+            Label handler = new Label();
+            Label after = new Label();
+            c.mark(start);
+            c.invokestatic(CLASS_NAME, callee.name, descriptor(callee));
+            c.mark(end);
+            c.exceptionHandler(start, end, handler, ERROR);
+            if (hasResult)
+                store(operands[0], callee.returnType == IRFloatType.get());
+            if (callee.returnType == null && function.returnType != null) {
+                // Returning by running off the end of a procedure is reported in a caller with a return type
+                throwMissingReturn();
+            }
+            c.mark(after);
+
+            int callLine = instruction.irLineNumber;
+            boolean calleeMayFallOff = callee.returnType != null;
+            stubs.add(() -> {
+                c.mark(handler);
+                Label rethrow = new Label();
+                if (calleeMayFallOff) {
+                    c.op(DUP);
+                    c.invokevirtual(ERROR, "isFellOffEnd", "()Z");
+                    c.jump(IFEQ, rethrow);
+                    c.op(POP);
+                    if (function.returnType != null)
+                        throwMissingReturn();
+                    else
+                        c.jump(GOTO, after);
+                }
+                c.mark(rethrow);
+                c.sconst(function.name);
+                c.iconst(callLine);
+                c.invokevirtual(ERROR, "addCaller", "(Ljava/lang/String;I)" + ERROR_DESC);
+                c.op(ATHROW);
+            });
+        }
+
+        private void compileIntrinsic(String name, IRInstruction instruction) {
+            IROperand[] operands = instruction.operands;
+            c.local(ALOAD, 0);
+            switch (name) {
+                case "geti":
+                case "getc":
+                    c.invokevirtual(IO, name, "()I");
+                    store(operands[0], false);
+                    break;
+                case "getf":
+                    c.invokevirtual(IO, name, "()F");
+                    store(operands[0], true);
+                    break;
+                case "puti":
+                case "putc":
+                    loadScalar(operands[1], false);
+                    c.invokevirtual(IO, name, "(I)V");
+                    break;
+                case "putf":
+                    loadScalar(operands[1], true);
+                    c.invokevirtual(IO, name, "(F)V");
+                    break;
+                default:
+                    // The reader rejects calls to undefined functions
+                    throw new IllegalArgumentException("Undefined reference to function '" + name + "'");
+            }
+        }
+
+        private void throwMissingReturn() {
+            c.sconst(function.name);
+            c.iconst(lastLine);
+            c.invokestatic(ERROR, "missingReturn", "(Ljava/lang/String;I)" + ERROR_DESC);
+            c.op(ATHROW);
+        }
+
+        private boolean isInBounds(int i) {
+            if (inBounds == null)
+                inBounds = Linkage.provenInBounds(function);
+            return inBounds[i];
+        }
+
+        private void throwOutOfBounds(int line) {
+            c.sconst(function.name);
+            c.iconst(line);
+            c.invokestatic(ERROR, "outOfBounds", "(Ljava/lang/String;I)" + ERROR_DESC);
+            c.op(ATHROW);
+        }
+
+        private Label outOfBoundsStub(int line) {
+            Label label = new Label();
+            stubs.add(() -> {
+                c.mark(label);
+                throwOutOfBounds(line);
+            });
+            return label;
+        }
+
+        private void loadScalar(IROperand operand, boolean isFloat) {
+            if (operand instanceof IRVariableOperand) {
+                c.local(isFloat ? FLOAD : ILOAD, localIndex.get(((IRVariableOperand) operand).getName()));
+                return;
+            }
+            String value = ((IRConstantOperand) operand).getValueString();
+            if (isFloat)
+                c.fconst(Float.parseFloat(value));
+            else
+                c.iconst(Integer.parseInt(value));
+        }
+
+        private void loadArray(IROperand operand) {
+            c.local(ALOAD, localIndex.get(((IRVariableOperand) operand).getName()));
+        }
+
+        private void store(IROperand operand, boolean isFloat) {
+            c.local(isFloat ? FSTORE : ISTORE, localIndex.get(((IRVariableOperand) operand).getName()));
+        }
+    }
+
+    private static int arithmeticOpcode(IRInstruction.OpCode opCode, boolean isFloat) {
+        switch (opCode) {
+            case ADD:
+                return isFloat ? FADD : IADD;
+            case SUB:
+                return isFloat ? FSUB : ISUB;
+            case MULT:
+                return isFloat ? FMUL : IMUL;
+            case DIV:
+                return isFloat ? FDIV : IDIV;
+            case AND:
+                return IAND;
+            default:
+                return IOR;
+        }
+    }
+
+    /** Offset of the condition from IFEQ/IF_ICMPEQ (eq, ne, lt, ge, gt, le) */
+    private static int branchOffset(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case BREQ:
+                return 0;
+            case BRNEQ:
+                return 1;
+            case BRLT:
+                return 2;
+            case BRGEQ:
+                return 3;
+            default: // BRGT
+                return 4;
+        }
+    }
+
+    // Runtime support called from compiled code
+
+    public static void fill(int[] arr, int n, int value, String function, int line) {
+        if (n < 0 || n > arr.length)
+            throw IRRuntimeError.outOfBounds(function, line);
+        for (int i = 0; i < n; i++)
+            arr[i] = value;
+    }
+
+    public static void fill(float[] arr, int n, float value, String function, int line) {
+        if (n < 0 || n > arr.length)
+            throw IRRuntimeError.outOfBounds(function, line);
+        for (int i = 0; i < n; i++)
+            arr[i] = value;
+    }
+}
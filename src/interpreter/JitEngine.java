@@ -0,0 +1,97 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRProgram;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Execution engine that compiles the whole program to a JVM hidden class (see JitCompiler)
+ * and runs main as a Java method. With counting switched on it reports the same Stats counts
+ * as the interpreters; with counting off the compiled code carries no instrumentation at all.
+ * The compiled program holds no state of its own, so one engine can serve concurrent runs.
+ */
+public class JitEngine {
+
+    // Compiled IR calls nest as JVM calls, so give them a deep stack
+    private static final long STACK_SIZE = 1L << 29;
+
+    private final JitCompiler compiler;
+    private final boolean counting;
+    private MethodHandle mainHandle;
+
+    public JitEngine(IRProgram program, boolean counting) {
+        this.counting = counting;
+        compiler = new JitCompiler(program, counting);
+
+        IRFunction mainFunction = null;
+        for (IRFunction function : program.functions)
+            if (function.name.equals("main"))
+                mainFunction = function;
+        // Without main there is nothing to load; run reports it
+        if (mainFunction == null)
+            return;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(compiler.compile(), true);
+            mainHandle = lookup.findStatic(lookup.lookupClass(), "main",
+                    MethodType.fromMethodDescriptorString(JitCompiler.descriptor(mainFunction),
+                            JitEngine.class.getClassLoader()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load compiled program", e);
+        }
+    }
+
+    public void run(RuntimeIO io, Stats stats) throws IRException {
+        if (mainHandle == null) {
+            io.flush();
+            io.err().println("IR interpreter runtime exception: Undefined reference to function 'main'");
+            throw new IRException();
+        }
+
+        long[] blockCounts = counting ? new long[compiler.getBlockCount()] : null;
+        Throwable t = runWithLargeStack("ir-jit", () -> mainHandle.invoke(io, blockCounts));
+
+        if (counting)
+            compiler.addCounts(blockCounts, stats);
+
+        if (t instanceof IRRuntimeError) {
+            ((IRRuntimeError) t).report(io);
+            throw new IRException();
+        }
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw new IllegalStateException(t);
+    }
+
+    /** Work run by runWithLargeStack */
+    public interface Task {
+        void run() throws Throwable;
+    }
+
+    /** Run task on a thread with a deep stack and wait for it; returns whatever it threw, or null */
+    public static Throwable runWithLargeStack(String name, Task task) {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, name, STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return failure[0];
+    }
+}
@@ -0,0 +1,164 @@
+package interpreter;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.FunctionAnalyses;
+import ir.operand.IRFunctionOperand;
+import ir.operand.IRLabelOperand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load-time linking of an IRFunction's control flow.
+ * Every branch is resolved to the instruction index of its label and every call to the Linkage of
+ * its callee or to an intrinsic id, so taking a branch or making a call is a couple of array reads
+ * instead of name lookups. Built in two steps, since calls can only be linked once every function
+ * of the program has its Linkage: the Linkage is created for every function up front, and link
+ * fills in the rest, which for a function whose body IRReader deferred is when it is first called.
+ */
+public class Linkage {
+
+    /** Intrinsic ids; UNDEFINED marks a call to a name that is neither a function nor an intrinsic */
+    public static final int NOT_INTRINSIC = -1;
+    public static final int GETI = 0;
+    public static final int GETF = 1;
+    public static final int GETC = 2;
+    public static final int PUTI = 3;
+    public static final int PUTF = 4;
+    public static final int PUTC = 5;
+    public static final int UNDEFINED = 6;
+
+    /** Target used for branches to labels that do not exist */
+    public static final int NO_TARGET = -1;
+
+    public final IRFunction function;
+
+    /** Position of the function in IRProgram.functions */
+    public final int index;
+
+    // The rest is set by link
+
+    public FrameLayout layout;
+
+    /** branchTargets[i] is the index of the label instruction i branches to, or NO_TARGET */
+    public int[] branchTargets;
+
+    /** callees[i] is the callee of instruction i, or null for intrinsics and non-calls */
+    public Linkage[] callees;
+
+    /** intrinsics[i] is the intrinsic called by instruction i, or NOT_INTRINSIC */
+    public int[] intrinsics;
+
+    private volatile boolean linked;
+
+    public Linkage(IRFunction function, int index) {
+        this.function = function;
+        this.index = index;
+    }
+
+    public boolean isLinked() {
+        return linked;
+    }
+
+    /**
+     * Parse the function's body if that was deferred, then resolve its variables to frame slots,
+     * its branches to indices and its calls, given the Linkage of every function by name
+     */
+    public synchronized void link(Map<String, Linkage> linkageMap) throws IRException {
+        if (linked)
+            return;
+        function.load();
+        // For better efficiency
+        if (!(function.instructions instanceof ArrayList))
+            function.instructions = new ArrayList<>(function.instructions);
+        layout = new FrameLayout(function);
+
+        List<IRInstruction> instructions = function.instructions;
+        Map<String, Integer> labelMap = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                labelMap.put(((IRLabelOperand) instruction.operands[0]).getName(), i);
+        }
+
+        branchTargets = new int[instructions.size()];
+        Arrays.fill(branchTargets, NO_TARGET);
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            switch (instruction.opCode) {
+                case GOTO:
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRGEQ:
+                    branchTargets[i] = labelMap.getOrDefault(
+                            ((IRLabelOperand) instruction.operands[0]).getName(), NO_TARGET);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        callees = new Linkage[instructions.size()];
+        intrinsics = new int[instructions.size()];
+        Arrays.fill(intrinsics, NOT_INTRINSIC);
+        linkCalls(linkageMap);
+        linked = true;
+    }
+
+    private void linkCalls(Map<String, Linkage> linkageMap) {
+        List<IRInstruction> instructions = function.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            String calleeName;
+            if (instruction.opCode == IRInstruction.OpCode.CALL)
+                calleeName = ((IRFunctionOperand) instruction.operands[0]).getName();
+            else if (instruction.opCode == IRInstruction.OpCode.CALLR)
+                calleeName = ((IRFunctionOperand) instruction.operands[1]).getName();
+            else
+                continue;
+
+            Linkage callee = linkageMap.get(calleeName);
+            if (callee != null)
+                callees[i] = callee;
+            else
+                intrinsics[i] = intrinsicId(calleeName);
+        }
+    }
+
+    /**
+     * inBounds[i] is true if instruction i of function is an array access that RangeAnalysis
+     * proves in bounds, so that a compiled form can leave out its check. The analyses are not
+     * kept, as the function is only compiled once.
+     */
+    static boolean[] provenInBounds(IRFunction function) {
+        boolean[] inBounds = FunctionAnalyses.of(function).ranges().provenInBounds();
+        FunctionAnalyses.invalidate(function);
+        return inBounds;
+    }
+
+    public static int intrinsicId(String name) {
+        switch (name) {
+            case "geti":
+                return GETI;
+            case "getf":
+                return GETF;
+            case "getc":
+                return GETC;
+            case "puti":
+                return PUTI;
+            case "putf":
+                return PUTF;
+            case "putc":
+                return PUTC;
+            default:
+                return UNDEFINED;
+        }
+    }
+}
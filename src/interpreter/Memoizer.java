@@ -0,0 +1,117 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result cache for calls to pure functions.
+ *
+ * A function is pure when it takes only int and float parameters, calls no intrinsic (and no name
+ * that does not resolve), and calls only pure functions. Such a function sees nothing but its
+ * arguments, as its locals start out zeroed, and changes nothing its caller can observe, so a call
+ * with the same argument values always returns the same value. Array parameters rule a function
+ * out altogether: its result would depend on the array's contents, not just its arguments.
+ *
+ * Results are kept in a least-recently-used table holding at most capacity entries, along with
+ * the number of instructions the call took, so a hit can report what it saved.
+ */
+public class Memoizer {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** A function and the raw bits of its argument values */
+    public static final class Key {
+        private final int[] values;
+        private final int hash;
+
+        /** values[0] is the function's index, the rest its arguments with floats as raw bits */
+        public Key(int[] values) {
+            this.values = values;
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** A cached return value (floats as raw bits) and the instructions it took to compute */
+    public static final class Result {
+        public final int value;
+        public final long instructions;
+
+        Result(int value, long instructions) {
+            this.value = value;
+            this.instructions = instructions;
+        }
+    }
+
+    private final boolean[] memoizable;
+    private final Map<Key, Result> table;
+
+    public Memoizer(Collection<Linkage> linkages, int functionCount, int capacity) {
+        boolean[] pure = findPure(linkages, functionCount);
+        memoizable = new boolean[functionCount];
+        for (Linkage linkage : linkages)
+            memoizable[linkage.index] = pure[linkage.index] && linkage.function.returnType != null;
+        table = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Pure functions by Linkage.index: start from all candidates and drop impure callers to a fixpoint */
+    private static boolean[] findPure(Collection<Linkage> linkages, int functionCount) {
+        boolean[] pure = new boolean[functionCount];
+        for (Linkage linkage : linkages)
+            pure[linkage.index] = isCandidate(linkage);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Linkage linkage : linkages) {
+                if (!pure[linkage.index])
+                    continue;
+                for (Linkage callee : linkage.callees)
+                    if (callee != null && !pure[callee.index]) {
+                        pure[linkage.index] = false;
+                        changed = true;
+                        break;
+                    }
+            }
+        }
+        return pure;
+    }
+
+    private static boolean isCandidate(Linkage linkage) {
+        for (int kind : linkage.layout.paramKinds)
+            if (kind == FrameLayout.INT_ARRAY || kind == FrameLayout.FLOAT_ARRAY)
+                return false;
+        for (int intrinsic : linkage.intrinsics)
+            if (intrinsic != Linkage.NOT_INTRINSIC)
+                return false;
+        return true;
+    }
+
+    /** True if calls to the function at index may be served from the table */
+    public boolean isMemoizable(int index) {
+        return memoizable[index];
+    }
+
+    public Result lookup(Key key) {
+        return table.get(key);
+    }
+
+    public void store(Key key, int value, long instructions) {
+        table.put(key, new Result(value, instructions));
+    }
+}
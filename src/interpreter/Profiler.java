@@ -0,0 +1,169 @@
+package interpreter;
+
+import ir.IRProgram;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Function-level profile driven by the interpreter's frame push and pop.
+ *
+ * The interpreter bumps instructions once per non-label instruction; everything else happens on
+ * enter and exit, where the instructions since the previous event are charged to the current
+ * node of a calling-context tree. That gives per-function call counts, exclusive counts (charged
+ * to the function itself) and inclusive counts (taken over the outermost activation only, so
+ * recursion is not counted twice), call graph edge counts, and collapsed stacks for flame graphs.
+ */
+public class Profiler {
+
+    /** A calling context: a function reached through the chain of parents */
+    private static class Node {
+        final int function;
+        final Node parent;
+        Node[] children;
+        long exclusive;
+
+        Node(int function, Node parent, int functionCount) {
+            this.function = function;
+            this.parent = parent;
+            children = new Node[functionCount];
+        }
+    }
+
+    /** Non-label instructions executed so far; bumped by the interpreter */
+    public long instructions;
+
+    private final String[] functionNames;
+    private final long[] calls;
+    private final long[] exclusive;
+    private final long[] inclusive;
+    private final long[][] edges;
+
+    // Calling-context tree; root stands for the entry, above main
+    private final Node root;
+    private Node current;
+    private long charged;
+
+    // Activations of each function on the stack, and instruction counts at each outermost entry
+    private final int[] active;
+    private long[] entryInstructions = new long[64];
+    private int depth;
+
+    public Profiler(IRProgram program) {
+        int n = program.functions.size();
+        functionNames = new String[n];
+        for (int i = 0; i < n; i++)
+            functionNames[i] = program.functions.get(i).name;
+        calls = new long[n];
+        exclusive = new long[n];
+        inclusive = new long[n];
+        edges = new long[n + 1][n];
+        active = new int[n];
+        root = new Node(-1, null, n);
+        current = root;
+    }
+
+    public void enter(int function) {
+        charge();
+        calls[function]++;
+        edges[current.function + 1][function]++;
+
+        Node child = current.children[function];
+        if (child == null)
+            child = current.children[function] = new Node(function, current, functionNames.length);
+        current = child;
+
+        if (depth == entryInstructions.length)
+            entryInstructions = Arrays.copyOf(entryInstructions, depth * 2);
+        entryInstructions[depth++] = instructions;
+        active[function]++;
+    }
+
+    public void exit() {
+        charge();
+        int function = current.function;
+        long entry = entryInstructions[--depth];
+        if (--active[function] == 0)
+            inclusive[function] += instructions - entry;
+        current = current.parent;
+    }
+
+    /** Close the activations still open, e.g. after a runtime error */
+    public void finish() {
+        while (current != root)
+            exit();
+    }
+
+    private void charge() {
+        long delta = instructions - charged;
+        if (current != root) {
+            current.exclusive += delta;
+            exclusive[current.function] += delta;
+        }
+        charged = instructions;
+    }
+
+    public long getCalls(int function) {
+        return calls[function];
+    }
+
+    public long getExclusive(int function) {
+        return exclusive[function];
+    }
+
+    public long getInclusive(int function) {
+        return inclusive[function];
+    }
+
+    /** Per-function table sorted by inclusive count, followed by the call graph edges */
+    public void printSummary(PrintStream out) {
+        Integer[] order = new Integer[functionNames.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> -inclusive[i]));
+
+        out.printf("%-24s %12s %16s %16s%n", "function", "calls", "exclusive", "inclusive");
+        for (int i : order)
+            if (calls[i] != 0)
+                out.printf("%-24s %12d %16d %16d%n", functionNames[i], calls[i], exclusive[i], inclusive[i]);
+        out.println("call graph:");
+        for (int caller = 0; caller < edges.length; caller++)
+            for (int callee = 0; callee < functionNames.length; callee++)
+                if (edges[caller][callee] != 0)
+                    out.printf("  %s -> %s: %d%n", caller == 0 ? "<entry>" : functionNames[caller - 1],
+                            functionNames[callee], edges[caller][callee]);
+    }
+
+    /** One line per calling context with exclusive instructions: "main;f;g count" */
+    public void writeCollapsed(PrintWriter out) {
+        List<Node> work = new ArrayList<>();
+        work.add(root);
+        while (!work.isEmpty()) {
+            Node node = work.remove(work.size() - 1);
+            if (node != root && node.exclusive != 0)
+                out.println(path(node) + " " + node.exclusive);
+            for (int i = node.children.length - 1; i >= 0; i--)
+                if (node.children[i] != null)
+                    work.add(node.children[i]);
+        }
+    }
+
+    public void writeCollapsed(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            writeCollapsed(out);
+        }
+    }
+
+    private String path(Node node) {
+        StringBuilder sb = new StringBuilder(functionNames[node.function]);
+        for (Node p = node.parent; p != root; p = p.parent)
+            sb.insert(0, ';').insert(0, functionNames[p.function]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Backing implementation of the I/O intrinsics (geti, getf, getc, puti, putf, putc),
+ * shared by all execution engines.
+ *
+ * Input is tokenized straight from a byte buffer and output is collected in another one, which
+ * is written out when it fills up and on flush or close. geti and getf behave as Scanner's
+ * nextInt/nextFloat followed by nextLine did: a token that does not parse reads as 0 and is left
+ * in place, and the rest of the line is skipped either way. getc reads from the same buffer, so
+ * it sees the input that follows the last token-reading intrinsic.
+ *
+ * Runtime error reports go to err, so that concurrent runs can each keep their own.
+ */
+public class RuntimeIO {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private byte[] inBuf = new byte[BUFFER_SIZE];
+    private int inPos;
+    private int inLimit;
+    private int tokenStart;
+    // Start of the bytes fill() must keep so a mismatched token can be unread, or -1
+    private int mark = -1;
+
+    private final OutputStream out;
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+    private int outPos;
+    private final Charset charset = Charset.defaultCharset();
+
+    private final PrintStream err;
+
+    public RuntimeIO() {
+        this(System.in, System.out, System.err);
+    }
+
+    public RuntimeIO(InputStream in, OutputStream out, PrintStream err) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    /** Stream for runtime error reports */
+    public PrintStream err() {
+        return err;
+    }
+
+    public int geti() {
+        mark = inPos;
+        int i = 0;
+        if (!readToken()) {
+            mark = -1;
+            throw new NoSuchElementException();
+        }
+        long value = 0;
+        int p = tokenStart;
+        boolean negative = false;
+        if (inBuf[p] == '-' || inBuf[p] == '+') {
+            negative = inBuf[p] == '-';
+            p++;
+        }
+        boolean valid = p < inPos;
+        for (; valid && p < inPos; p++) {
+            int digit = inBuf[p] - '0';
+            if (digit < 0 || digit > 9) {
+                valid = false;
+                break;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                valid = false;
+        }
+        if (valid && (negative || value <= Integer.MAX_VALUE))
+            i = (int) (negative ? -value : value);
+        else
+            inPos = mark;
+        mark = -1;
+        skipLine();
+        return i;
+    }
+
+    public float getf() {
+        mark = inPos;
+        float f = 0;
+        if (!readToken()) {
+            mark = -1;
+            throw new NoSuchElementException();
+        }
+        String token = new String(inBuf, tokenStart, inPos - tokenStart, StandardCharsets.ISO_8859_1);
+        if (isDecimal(token))
+            f = Float.parseFloat(token);
+        else
+            inPos = mark;
+        mark = -1;
+        skipLine();
+        return f;
+    }
+
+    public int getc() {
+        return readByte();
+    }
+
+    public void puti(int i) {
+        if (outBuf.length - outPos < 11)
+            flushBuffer();
+        long value = i;
+        if (value < 0) {
+            outBuf[outPos++] = '-';
+            value = -value;
+        }
+        int end = outPos + digitCount(value);
+        for (int p = end - 1; p >= outPos; p--) {
+            outBuf[p] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        outPos = end;
+    }
+
+    public void putf(float f) {
+        writeAscii(Float.toString(f));
+    }
+
+    public void putc(int c) {
+        char ch = (char) c;
+        if (ch < 0x80) {
+            if (outPos == outBuf.length)
+                flushBuffer();
+            outBuf[outPos++] = (byte) ch;
+        } else {
+            byte[] bytes = String.valueOf(ch).getBytes(charset);
+            for (byte b : bytes) {
+                if (outPos == outBuf.length)
+                    flushBuffer();
+                outBuf[outPos++] = b;
+            }
+        }
+    }
+
+    /** Write buffered output through to the underlying stream */
+    public void flush() {
+        flushBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Flush output; the underlying streams are left open, as they are usually stdin and stdout */
+    public void close() {
+        flush();
+    }
+
+    // Input
+
+    /** Skip whitespace and read the next token into [tokenStart, inPos); false at end of input */
+    private boolean readToken() {
+        int b;
+        while ((b = peekByte()) >= 0 && isWhitespace(b))
+            inPos++;
+        if (b < 0)
+            return false;
+        tokenStart = inPos;
+        while ((b = peekByte()) >= 0 && !isWhitespace(b))
+            inPos++;
+        return true;
+    }
+
+    /** Consume input up to and including the next line terminator */
+    private void skipLine() {
+        int b;
+        while ((b = readByte()) >= 0) {
+            if (b == '\n')
+                return;
+            if (b == '\r') {
+                if (peekByte() == '\n')
+                    inPos++;
+                return;
+            }
+        }
+    }
+
+    private int peekByte() {
+        if (inPos == inLimit && !fill())
+            return -1;
+        return inBuf[inPos] & 0xff;
+    }
+
+    private int readByte() {
+        if (inPos == inLimit && !fill())
+            return -1;
+        return inBuf[inPos++] & 0xff;
+    }
+
+    /**
+     * Read more input, keeping everything from mark on. Positions held by the caller (inPos,
+     * tokenStart, mark) are shifted along with the bytes. Pending output is flushed first, so that
+     * a prompt shows before the read blocks.
+     */
+    private boolean fill() {
+        flush();
+        int keep = mark >= 0 ? mark : inPos;
+        if (keep > 0) {
+            System.arraycopy(inBuf, keep, inBuf, 0, inLimit - keep);
+            inLimit -= keep;
+            inPos -= keep;
+            tokenStart -= keep;
+            if (mark >= 0)
+                mark = 0;
+        }
+        if (inLimit == inBuf.length)
+            inBuf = Arrays.copyOf(inBuf, inBuf.length * 2);
+        try {
+            int n = in.read(inBuf, inLimit, inBuf.length - inLimit);
+            if (n <= 0)
+                return false;
+            inLimit += n;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b < 0x80 && Character.isWhitespace(b);
+    }
+
+    /** The decimal forms Scanner.nextFloat accepts: [+-] digits [. digits] [e [+-] digits], NaN, Infinity */
+    private static boolean isDecimal(String token) {
+        int p = 0;
+        int n = token.length();
+        if (p < n && (token.charAt(p) == '+' || token.charAt(p) == '-'))
+            p++;
+        String rest = token.substring(p);
+        if (rest.equals("NaN") || rest.equals("Infinity"))
+            return true;
+        int digits = 0;
+        while (p < n && isDigit(token.charAt(p))) {
+            p++;
+            digits++;
+        }
+        if (p < n && token.charAt(p) == '.') {
+            p++;
+            while (p < n && isDigit(token.charAt(p))) {
+                p++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return false;
+        if (p < n && (token.charAt(p) == 'e' || token.charAt(p) == 'E')) {
+            p++;
+            if (p < n && (token.charAt(p) == '+' || token.charAt(p) == '-'))
+                p++;
+            int exponentDigits = 0;
+            while (p < n && isDigit(token.charAt(p))) {
+                p++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0)
+                return false;
+        }
+        return p == n;
+    }
+
+    // Output
+
+    private void writeAscii(String s) {
+        if (outBuf.length - outPos < s.length())
+            flushBuffer();
+        for (int i = 0; i < s.length(); i++)
+            outBuf[outPos++] = (byte) s.charAt(i);
+    }
+
+    private void flushBuffer() {
+        if (outPos == 0)
+            return;
+        try {
+            out.write(outBuf, 0, outPos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        outPos = 0;
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
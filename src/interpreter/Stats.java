@@ -0,0 +1,199 @@
+package interpreter;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Execution statistics, in one of three modes:
+ * OFF counts nothing, TOTALS keeps only the number of non-label instructions executed, and FULL
+ * adds per-opcode counts (indexed by OpCode ordinal) and counts per function and per IR line,
+ * which can be exported as CSV or JSON. Functions are identified by their index in
+ * IRProgram.functions. Labels only show up in the opcode counts: the per-function and per-line
+ * counts leave them out, so the per-function counts add up to the non-label instruction count.
+ */
+public class Stats {
+
+    public enum Mode {
+        OFF, TOTALS, FULL
+    }
+
+    public final Mode mode;
+
+    private long nonLabelInstructionCount;
+
+    // FULL mode only
+    private long[] opCounts;
+    private String[] functionNames;
+    private long[] functionCounts;
+    private long[] lineCounts;
+    private int[] lineFunctions;
+
+    // Tiered execution: promotion decisions in order, and wall time spent in each tier
+    public List<String> promotions;
+    public long interpretedNanos;
+    public long compiledNanos;
+
+    // Memoization: calls to memoizable functions, those served from the table, and the
+    // instructions the served calls took when they were first computed
+    public long memoCalls;
+    public long memoHits;
+    public long memoInstructionsSaved;
+
+    public Stats(Mode mode, IRProgram program) {
+        this.mode = mode;
+        promotions = new ArrayList<>();
+        if (mode != Mode.FULL)
+            return;
+
+        opCounts = new long[IRInstruction.OpCode.values().length];
+        functionNames = new String[program.functions.size()];
+        functionCounts = new long[functionNames.length];
+        int maxLine = 0;
+        for (IRFunction function : program.functions)
+            for (IRInstruction instruction : function.instructions)
+                maxLine = Math.max(maxLine, instruction.irLineNumber);
+        lineCounts = new long[maxLine + 1];
+        lineFunctions = new int[maxLine + 1];
+        for (int i = 0; i < functionNames.length; i++) {
+            IRFunction function = program.functions.get(i);
+            functionNames[i] = function.name;
+            for (IRInstruction instruction : function.instructions)
+                if (instruction.irLineNumber >= 0)
+                    lineFunctions[instruction.irLineNumber] = i;
+        }
+    }
+
+    public boolean isCounting() {
+        return mode != Mode.OFF;
+    }
+
+    public boolean isFull() {
+        return mode == Mode.FULL;
+    }
+
+    /** Count one execution of instruction in the function at functionIdx */
+    public void update(IRInstruction instruction, int functionIdx) {
+        if (mode == Mode.FULL) {
+            add(functionIdx, instruction.opCode, instruction.irLineNumber, 1);
+        } else if (mode == Mode.TOTALS) {
+            if (instruction.opCode != IRInstruction.OpCode.LABEL)
+                nonLabelInstructionCount++;
+        }
+    }
+
+    /** Count count executions of an instruction, for engines that aggregate their own counters */
+    public void add(int functionIdx, IRInstruction.OpCode opCode, int line, long count) {
+        if (mode == Mode.OFF)
+            return;
+        if (mode == Mode.FULL)
+            opCounts[opCode.ordinal()] += count;
+        if (opCode == IRInstruction.OpCode.LABEL)
+            return;
+        nonLabelInstructionCount += count;
+        if (mode == Mode.FULL) {
+            functionCounts[functionIdx] += count;
+            if (line >= 0)
+                lineCounts[line] += count;
+        }
+    }
+
+    /**
+     * Merge counts gathered by an engine that does not walk IRInstruction objects,
+     * indexed by OpCode ordinal. Such counts carry no function or line information.
+     */
+    public void add(long[] countsByOrdinal) {
+        if (mode == Mode.OFF)
+            return;
+        for (IRInstruction.OpCode opCode : IRInstruction.OpCode.values()) {
+            long count = countsByOrdinal[opCode.ordinal()];
+            if (opCode != IRInstruction.OpCode.LABEL)
+                nonLabelInstructionCount += count;
+            if (mode == Mode.FULL)
+                opCounts[opCode.ordinal()] += count;
+        }
+    }
+
+    public long getNonLabelInstructionCount() {
+        return nonLabelInstructionCount;
+    }
+
+    /** Executions of opCode; FULL mode only */
+    public long getInstructionCount(IRInstruction.OpCode opCode) {
+        return opCounts[opCode.ordinal()];
+    }
+
+    /** Non-label instructions executed in the function at functionIdx; FULL mode only */
+    public long getFunctionCount(int functionIdx) {
+        return functionCounts[functionIdx];
+    }
+
+    /** Executions of the instruction on IR line line, 0 for a label; FULL mode only */
+    public long getLineCount(int line) {
+        return line < lineCounts.length ? lineCounts[line] : 0;
+    }
+
+    /** Write the FULL mode counts to path, as JSON if it ends in .json and as CSV otherwise */
+    public void export(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            if (path.endsWith(".json"))
+                writeJson(out);
+            else
+                writeCsv(out);
+        }
+    }
+
+    /** The opcodes a program can execute: all but PHI, which only exists during optimization */
+    private static IRInstruction.OpCode[] executableOpCodes() {
+        return Arrays.stream(IRInstruction.OpCode.values())
+                .filter(opCode -> opCode != IRInstruction.OpCode.PHI)
+                .toArray(IRInstruction.OpCode[]::new);
+    }
+
+    /** One row per opcode, function and executed line: kind,name,function,line,count */
+    public void writeCsv(PrintWriter out) {
+        out.println("kind,name,function,line,count");
+        for (IRInstruction.OpCode opCode : executableOpCodes())
+            out.println("opcode," + opCode + ",,," + opCounts[opCode.ordinal()]);
+        for (int i = 0; i < functionNames.length; i++)
+            out.println("function," + functionNames[i] + "," + functionNames[i] + ",," + functionCounts[i]);
+        for (int line = 0; line < lineCounts.length; line++)
+            if (lineCounts[line] != 0)
+                out.println("line,," + functionNames[lineFunctions[line]] + "," + line + "," + lineCounts[line]);
+    }
+
+    public void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"nonLabelInstructions\": " + nonLabelInstructionCount + ",");
+        out.println("  \"opcodes\": {");
+        IRInstruction.OpCode[] opCodes = executableOpCodes();
+        for (int i = 0; i < opCodes.length; i++)
+            out.println("    \"" + opCodes[i] + "\": " + opCounts[opCodes[i].ordinal()] + (i + 1 < opCodes.length ? "," : ""));
+        out.println("  },");
+        out.println("  \"functions\": {");
+        for (int i = 0; i < functionNames.length; i++)
+            out.println("    \"" + functionNames[i] + "\": " + functionCounts[i]
+                    + (i + 1 < functionNames.length ? "," : ""));
+        out.println("  },");
+        out.println("  \"lines\": [");
+        String separator = "";
+        for (int line = 0; line < lineCounts.length; line++) {
+            if (lineCounts[line] == 0)
+                continue;
+            out.print(separator);
+            out.print("    {\"line\": " + line + ", \"function\": \"" + functionNames[lineFunctions[line]]
+                    + "\", \"count\": " + lineCounts[line] + "}");
+            separator = ",\n";
+        }
+        out.println();
+        out.println("  ]");
+        out.println("}");
+    }
+}
@@ -0,0 +1,181 @@
+package interpreter;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hotness bookkeeping for tiered execution. The baseline interpreter reports every call and every
+ * taken loop back-edge; a function whose counter crosses its threshold is promoted to the compiled
+ * tier. The program is compiled once, on the first promotion, with OSR entries so that a loop that
+ * is already running can continue in compiled code from the label it is branching to.
+ *
+ * Compiled code never calls back into the interpreter, so time spent between invoke and its return
+ * is all compiled time.
+ */
+public class TierManager {
+
+    public static final int DEFAULT_CALL_THRESHOLD = 1000;
+    public static final int DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+
+    /** Index of the first IR argument in an argument buffer, after io and the block counts */
+    public static final int FIRST_ARGUMENT = 2;
+
+    private final IRProgram program;
+    private final Stats stats;
+    private final int callThreshold;
+    private final int backEdgeThreshold;
+
+    private final IRFunction[] functions;
+    private final int[] callCounts;
+    private final int[] backEdgeCounts;
+    private final boolean[] promoted;
+
+    // Label ordinal (as numbered by the OSR entry's tableswitch) of each instruction index, or -1
+    private final int[][] labelOrdinals;
+
+    // Compiled tier, created on first promotion
+    private JitCompiler compiler;
+    private boolean compileFailed;
+    private MethodHandle[] entries;
+    private MethodHandle[] osrEntries;
+    private Object[][] argumentBuffers;
+    private long[] blockCounts;
+
+    private final long startNanos = System.nanoTime();
+
+    public TierManager(IRProgram program, Stats stats) {
+        this(program, stats, DEFAULT_CALL_THRESHOLD, DEFAULT_BACK_EDGE_THRESHOLD);
+    }
+
+    public TierManager(IRProgram program, Stats stats, int callThreshold, int backEdgeThreshold) {
+        this.program = program;
+        this.stats = stats;
+        this.callThreshold = callThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+
+        functions = program.functions.toArray(new IRFunction[0]);
+        callCounts = new int[functions.length];
+        backEdgeCounts = new int[functions.length];
+        promoted = new boolean[functions.length];
+        labelOrdinals = new int[functions.length][];
+        for (int i = 0; i < functions.length; i++) {
+            List<IRInstruction> instructions = functions[i].instructions;
+            int[] ordinals = new int[instructions.size()];
+            Arrays.fill(ordinals, -1);
+            int ordinal = 0;
+            for (int j = 0; j < instructions.size(); j++)
+                if (instructions.get(j).opCode == IRInstruction.OpCode.LABEL)
+                    ordinals[j] = ordinal++;
+            labelOrdinals[i] = ordinals;
+        }
+    }
+
+    public boolean isCompiled(int fnIdx) {
+        return promoted[fnIdx];
+    }
+
+    /** Count a call; returns true if the callee should run in the compiled tier */
+    public boolean onCall(int fnIdx) {
+        if (promoted[fnIdx])
+            return true;
+        if (compileFailed || ++callCounts[fnIdx] < callThreshold)
+            return false;
+        return promote(fnIdx, callCounts[fnIdx] + " calls");
+    }
+
+    /** Count a taken back-edge; returns true if the running frame should switch to compiled code */
+    public boolean onBackEdge(int fnIdx) {
+        if (promoted[fnIdx])
+            return true;
+        if (compileFailed || ++backEdgeCounts[fnIdx] < backEdgeThreshold)
+            return false;
+        return promote(fnIdx, backEdgeCounts[fnIdx] + " back-edges");
+    }
+
+    private boolean promote(int fnIdx, String reason) {
+        if (compiler == null && !compileAll())
+            return false;
+        promoted[fnIdx] = true;
+        stats.promotions.add(functions[fnIdx].name + " after " + reason);
+        return true;
+    }
+
+    private boolean compileAll() {
+        try {
+            compiler = new JitCompiler(program, stats.isCounting());
+            compiler.setOsrEntries(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(compiler.compile(), true);
+            ClassLoader loader = TierManager.class.getClassLoader();
+
+            entries = new MethodHandle[functions.length];
+            osrEntries = new MethodHandle[functions.length];
+            argumentBuffers = new Object[functions.length][];
+            for (int i = 0; i < functions.length; i++) {
+                IRFunction function = functions[i];
+                entries[i] = lookup.findStatic(lookup.lookupClass(), function.name,
+                        MethodType.fromMethodDescriptorString(JitCompiler.descriptor(function), loader));
+                argumentBuffers[i] = new Object[FIRST_ARGUMENT + function.parameters.size()];
+                if (JitCompiler.hasLabels(function))
+                    osrEntries[i] = lookup.findStatic(lookup.lookupClass(), JitCompiler.osrName(function),
+                            MethodType.fromMethodDescriptorString(JitCompiler.osrDescriptor(function), loader));
+            }
+            blockCounts = new long[compiler.getBlockCount()];
+            return true;
+        } catch (IllegalStateException | ReflectiveOperationException e) {
+            // e.g. a function over the JVM method size limit; stay in the interpreter
+            compiler = null;
+            compileFailed = true;
+            stats.promotions.add("compilation failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Reusable argument array for invoke; IR arguments go from FIRST_ARGUMENT on */
+    public Object[] argumentBuffer(int fnIdx) {
+        return argumentBuffers[fnIdx];
+    }
+
+    /**
+     * Run a promoted function from its entry with the arguments in its argument buffer.
+     * Returns its value, or null for a void function.
+     */
+    public Object invoke(int fnIdx, RuntimeIO io, Object[] args) {
+        args[0] = io;
+        args[1] = blockCounts;
+        return timed(entries[fnIdx], args);
+    }
+
+    /** Continue a promoted function at the label at instIdx, using the interpreter frame's banks */
+    public Object invokeOsr(int fnIdx, int instIdx, RuntimeIO io,
+                            int[] ints, float[] floats, int[][] intArrays, float[][] floatArrays) {
+        return timed(osrEntries[fnIdx], new Object[]{io, blockCounts, labelOrdinals[fnIdx][instIdx],
+                ints, floats, intArrays, floatArrays});
+    }
+
+    private Object timed(MethodHandle handle, Object[] args) {
+        long start = System.nanoTime();
+        try {
+            return handle.invokeWithArguments(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        } finally {
+            stats.compiledNanos += System.nanoTime() - start;
+        }
+    }
+
+    /** Merge the compiled tier's counts into stats and settle the time split */
+    public void finish() {
+        if (compiler != null && stats.isCounting())
+            compiler.addCounts(blockCounts, stats);
+        stats.interpretedNanos = System.nanoTime() - startNanos - stats.compiledNanos;
+    }
+}
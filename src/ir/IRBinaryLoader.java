@@ -0,0 +1,200 @@
+package ir;
+
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRFunctionOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rebuilds an IRProgram from the form IRBinaryWriter writes, see there for the layout.
+ *
+ * Nothing is checked beyond the layout itself: the file is trusted to hold a program IRReader
+ * accepted. Offsets in errors are byte offsets into the file.
+ */
+class IRBinaryLoader {
+
+    private static final IRInstruction.OpCode[] OP_CODES = IRInstruction.OpCode.values();
+
+    private final byte[] bytes;
+    private int pos;
+    private String[] strings;
+
+    IRBinaryLoader(File file) throws FileNotFoundException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            bytes = in.readAllBytes();
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** True if the file starts with the binary IR magic number */
+    static boolean isBinary(File file) {
+        byte[] magic = new byte[IRBinaryWriter.MAGIC.length];
+        try (FileInputStream in = new FileInputStream(file)) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length
+                    && Arrays.equals(magic, IRBinaryWriter.MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    IRProgram load() throws IRException {
+        try {
+            for (byte b : IRBinaryWriter.MAGIC)
+                if (bytes.length <= pos || bytes[pos++] != b)
+                    throw new IRException("Not a binary IR file");
+            int version = readVarint();
+            if (version != IRBinaryWriter.VERSION)
+                throw new IRException(String.format("Unsupported binary IR version %d", version));
+
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = readCount();
+                if (length > bytes.length - pos)
+                    throw truncated();
+                strings[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+            }
+
+            int functionCount = readCount();
+            List<IRFunction> functions = new ArrayList<>(functionCount);
+            for (int i = 0; i < functionCount; i++)
+                functions.add(readFunction());
+            if (pos != bytes.length)
+                throw new IRException(String.format("Trailing data at offset %d of binary IR", pos));
+            return new IRProgram(functions);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IRException(String.format("Malformed binary IR near offset %d", pos));
+        }
+    }
+
+    private IRFunction readFunction() throws IRException {
+        String name = readString();
+        IRType returnType = readType();
+
+        int paramCount = readCount();
+        List<IRVariableOperand> params = new ArrayList<>(paramCount);
+        for (int i = 0; i < paramCount; i++) {
+            IRType type = readType();
+            params.add(new IRVariableOperand(type, readString(), null));
+        }
+
+        int variableCount = readCount();
+        List<IRVariableOperand> variables = new ArrayList<>(variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            int param = readVarint();
+            if (param == 0) {
+                IRType type = readType();
+                variables.add(new IRVariableOperand(type, readString(), null));
+            } else {
+                variables.add(params.get(param - 1));
+            }
+        }
+
+        int instructionCount = readCount();
+        List<IRInstruction> instructions = new ArrayList<>(instructionCount);
+        int line = 0;
+        for (int i = 0; i < instructionCount; i++) {
+            IRInstruction instruction = new IRInstruction();
+            instruction.opCode = OP_CODES[readVarint()];
+            // Phis only exist between SSA construction and destruction, never in a file
+            if (instruction.opCode == IRInstruction.OpCode.PHI)
+                throw new IRException(String.format("Invalid opcode at offset %d of binary IR", pos - 1));
+            int delta = readVarint();
+            line += (delta >>> 1) ^ -(delta & 1);
+            instruction.irLineNumber = line;
+            IROperand[] operands = new IROperand[readCount()];
+            for (int j = 0; j < operands.length; j++)
+                operands[j] = readOperand(instruction, variables);
+            instruction.operands = operands;
+            instructions.add(instruction);
+        }
+        return new IRFunction(name, returnType, params, variables, instructions);
+    }
+
+    private IROperand readOperand(IRInstruction instruction, List<IRVariableOperand> variables)
+            throws IRException {
+        int kind = bytes[pos++];
+        switch (kind) {
+            case IRBinaryWriter.OPERAND_VARIABLE: {
+                IRVariableOperand variable = variables.get(readVarint());
+                return new IRVariableOperand(variable.type, variable.getName(), instruction);
+            }
+            case IRBinaryWriter.OPERAND_VARIABLE_TYPED: {
+                IRType type = readType();
+                return new IRVariableOperand(type, readString(), instruction);
+            }
+            case IRBinaryWriter.OPERAND_INT_CONSTANT:
+                return new IRConstantOperand(IRIntType.get(), readString(), instruction);
+            case IRBinaryWriter.OPERAND_FLOAT_CONSTANT:
+                return new IRConstantOperand(IRFloatType.get(), readString(), instruction);
+            case IRBinaryWriter.OPERAND_LABEL:
+                return new IRLabelOperand(readString(), instruction);
+            case IRBinaryWriter.OPERAND_FUNCTION:
+                return new IRFunctionOperand(readString(), instruction);
+            default:
+                throw new IRException(String.format("Invalid operand kind %d at offset %d of binary IR", kind, pos - 1));
+        }
+    }
+
+    private IRType readType() throws IRException {
+        int kind = bytes[pos++];
+        switch (kind) {
+            case IRBinaryWriter.TYPE_VOID:
+                return null;
+            case IRBinaryWriter.TYPE_INT:
+                return IRIntType.get();
+            case IRBinaryWriter.TYPE_FLOAT:
+                return IRFloatType.get();
+            case IRBinaryWriter.TYPE_INT_ARRAY:
+                return IRArrayType.get(IRIntType.get(), readVarint());
+            case IRBinaryWriter.TYPE_FLOAT_ARRAY:
+                return IRArrayType.get(IRFloatType.get(), readVarint());
+            default:
+                throw new IRException(String.format("Invalid type %d at offset %d of binary IR", kind, pos - 1));
+        }
+    }
+
+    private String readString() {
+        return strings[readVarint()];
+    }
+
+    /** A count of things that each take at least a byte, so a corrupt one cannot claim a huge allocation */
+    private int readCount() throws IRException {
+        int count = readVarint();
+        if (count < 0 || count > bytes.length - pos)
+            throw truncated();
+        return count;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = bytes[pos++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    private IRException truncated() {
+        return new IRException(String.format("Truncated binary IR at offset %d", pos));
+    }
+}
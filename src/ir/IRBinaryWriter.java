@@ -0,0 +1,204 @@
+package ir;
+
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRFunctionOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an IRProgram in the binary form IRReader.readIRBinary loads, as IRPrinter writes text.
+ *
+ * Layout, with every count, index and size an unsigned LEB128 varint:
+ *   magic "IRB" 0, version
+ *   strings: count, then each as its UTF-8 length and bytes
+ *   functions: count, then each as
+ *     name, return type, parameters (count, then type and name each),
+ *     variables (count, then each as 1 + the index of the parameter it is, or 0, type and name),
+ *     instructions (count, then opcode, line number as a zigzag delta from the previous
+ *     instruction's, operand count and operands)
+ * Names and constants are indices into the string table, so each distinct one is stored and
+ * decoded once. A type is a byte (void, int, float, int array, float array), followed by the size
+ * for arrays. An operand is a kind byte followed by: the index in the function's variable list for
+ * a variable of its declared type, a type and name for any other variable, a string for a constant
+ * (its type is the kind) or a name for labels and functions.
+ */
+public class IRBinaryWriter {
+
+    static final byte[] MAGIC = {'I', 'R', 'B', 0};
+    static final int VERSION = 1;
+
+    static final int TYPE_VOID = 0;
+    static final int TYPE_INT = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_INT_ARRAY = 3;
+    static final int TYPE_FLOAT_ARRAY = 4;
+
+    static final int OPERAND_VARIABLE = 0;
+    static final int OPERAND_VARIABLE_TYPED = 1;
+    static final int OPERAND_INT_CONSTANT = 2;
+    static final int OPERAND_FLOAT_CONSTANT = 3;
+    static final int OPERAND_LABEL = 4;
+    static final int OPERAND_FUNCTION = 5;
+
+    private final OutputStream out;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Buffer stringTable = new Buffer();
+
+    public IRBinaryWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void writeProgram(IRProgram program) throws IOException {
+        strings.clear();
+        stringTable.size = 0;
+        Buffer body = new Buffer();
+        body.writeVarint(program.functions.size());
+        for (IRFunction function : program.functions)
+            writeFunction(function, body);
+
+        Buffer header = new Buffer();
+        header.write(MAGIC, 0, MAGIC.length);
+        header.writeVarint(VERSION);
+        header.writeVarint(strings.size());
+        out.write(header.bytes, 0, header.size);
+        out.write(stringTable.bytes, 0, stringTable.size);
+        out.write(body.bytes, 0, body.size);
+        out.flush();
+    }
+
+    private void writeFunction(IRFunction function, Buffer buf) {
+        buf.writeVarint(string(function.name));
+        writeType(function.returnType, buf);
+
+        Map<IRVariableOperand, Integer> paramIndex = new IdentityHashMap<>();
+        buf.writeVarint(function.parameters.size());
+        for (IRVariableOperand param : function.parameters) {
+            paramIndex.put(param, paramIndex.size());
+            writeType(param.type, buf);
+            buf.writeVarint(string(param.getName()));
+        }
+
+        // Operands name variables; those matching a declared one refer to it by position
+        Map<String, Integer> variableIndex = new HashMap<>();
+        buf.writeVarint(function.variables.size());
+        for (int i = 0; i < function.variables.size(); i++) {
+            IRVariableOperand variable = function.variables.get(i);
+            variableIndex.putIfAbsent(variable.getName(), i);
+            Integer param = paramIndex.get(variable);
+            if (param != null) {
+                buf.writeVarint(param + 1);
+            } else {
+                buf.writeVarint(0);
+                writeType(variable.type, buf);
+                buf.writeVarint(string(variable.getName()));
+            }
+        }
+
+        List<IRInstruction> instructions = function.instructions;
+        buf.writeVarint(instructions.size());
+        int line = 0;
+        for (IRInstruction instruction : instructions) {
+            buf.writeVarint(instruction.opCode.ordinal());
+            int delta = instruction.irLineNumber - line;
+            buf.writeVarint((delta << 1) ^ (delta >> 31));
+            line = instruction.irLineNumber;
+            buf.writeVarint(instruction.operands.length);
+            for (IROperand operand : instruction.operands)
+                writeOperand(operand, function.variables, variableIndex, buf);
+        }
+    }
+
+    private void writeOperand(IROperand operand, List<IRVariableOperand> variables,
+                              Map<String, Integer> variableIndex, Buffer buf) {
+        if (operand instanceof IRVariableOperand) {
+            IRVariableOperand variable = (IRVariableOperand) operand;
+            Integer index = variableIndex.get(variable.getName());
+            if (index != null && variables.get(index).type == variable.type) {
+                buf.writeByte(OPERAND_VARIABLE);
+                buf.writeVarint(index);
+            } else {
+                buf.writeByte(OPERAND_VARIABLE_TYPED);
+                writeType(variable.type, buf);
+                buf.writeVarint(string(variable.getName()));
+            }
+        } else if (operand instanceof IRConstantOperand) {
+            IRConstantOperand constant = (IRConstantOperand) operand;
+            buf.writeByte(constant.type == IRFloatType.get() ? OPERAND_FLOAT_CONSTANT : OPERAND_INT_CONSTANT);
+            buf.writeVarint(string(constant.getValueString()));
+        } else if (operand instanceof IRLabelOperand) {
+            buf.writeByte(OPERAND_LABEL);
+            buf.writeVarint(string(((IRLabelOperand) operand).getName()));
+        } else {
+            buf.writeByte(OPERAND_FUNCTION);
+            buf.writeVarint(string(((IRFunctionOperand) operand).getName()));
+        }
+    }
+
+    private void writeType(IRType type, Buffer buf) {
+        if (type == null) {
+            buf.writeByte(TYPE_VOID);
+        } else if (type == IRIntType.get()) {
+            buf.writeByte(TYPE_INT);
+        } else if (type == IRFloatType.get()) {
+            buf.writeByte(TYPE_FLOAT);
+        } else {
+            IRArrayType arrayType = (IRArrayType) type;
+            buf.writeByte(arrayType.getElementType() == IRIntType.get() ? TYPE_INT_ARRAY : TYPE_FLOAT_ARRAY);
+            buf.writeVarint(arrayType.getSize());
+        }
+    }
+
+    /** Index of s in the string table, adding it if it is new */
+    private int string(String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.put(s, index);
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            stringTable.writeVarint(bytes.length);
+            stringTable.write(bytes, 0, bytes.length);
+        }
+        return index;
+    }
+
+    private static class Buffer {
+        byte[] bytes = new byte[1 << 12];
+        int size;
+
+        void writeByte(int b) {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (bytes.length - size < len)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + len));
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+    }
+}
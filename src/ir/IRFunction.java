@@ -3,10 +3,17 @@ package ir;
 import ir.datatype.IRType;
 import ir.operand.IRVariableOperand;
 
+import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 
 public class IRFunction {
 
+    /** Parses the body of a function whose parsing IRReader deferred */
+    interface BodyLoader {
+        List<IRInstruction> load() throws IRException;
+    }
+
     public String name;
 
     public IRType returnType;
@@ -17,6 +24,9 @@ public class IRFunction {
 
     public List<IRInstruction> instructions;
 
+    // Set until a lazily read body is parsed
+    private volatile BodyLoader bodyLoader;
+
     public IRFunction(String name, IRType returnType,
                       List<IRVariableOperand> parameters, List<IRVariableOperand> variables,
                       List<IRInstruction> instructions) {
@@ -26,4 +36,53 @@ public class IRFunction {
         this.variables = variables;
         this.instructions = instructions;
     }
+
+    /** A function whose body is parsed by bodyLoader on first use */
+    static IRFunction deferred(String name, IRType returnType,
+                               List<IRVariableOperand> parameters, List<IRVariableOperand> variables,
+                               BodyLoader bodyLoader) {
+        IRFunction function = new IRFunction(name, returnType, parameters, variables, null);
+        function.bodyLoader = bodyLoader;
+        function.instructions = function.new DeferredInstructions();
+        return function;
+    }
+
+    /** False while the body of a lazily read function has not been parsed */
+    public boolean isLoaded() {
+        return bodyLoader == null;
+    }
+
+    /**
+     * Parse the body now if it was deferred, reporting its errors. Reading instructions of a
+     * function that is not loaded loads it as well, but reports errors as IllegalStateException.
+     */
+    public synchronized void load() throws IRException {
+        BodyLoader loader = bodyLoader;
+        if (loader == null)
+            return;
+        instructions = loader.load();
+        bodyLoader = null;
+    }
+
+    /** Stands in for instructions until the body is parsed */
+    private class DeferredInstructions extends AbstractList<IRInstruction> implements RandomAccess {
+        @Override
+        public IRInstruction get(int index) {
+            return loaded().get(index);
+        }
+
+        @Override
+        public int size() {
+            return loaded().size();
+        }
+
+        private List<IRInstruction> loaded() {
+            try {
+                load();
+            } catch (IRException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            return instructions;
+        }
+    }
 }
@@ -12,7 +12,13 @@ public class IRInstruction {
         RETURN,
         CALL, CALLR,
         ARRAY_STORE, ARRAY_LOAD,
-        LABEL;
+        LABEL,
+        /**
+         * phi, x, v1, L1, v2, L2, ...: x gets vi when control arrives from the block labelled Li.
+         * Only exists in SSA form (see ir.ssa), between SSAConstruction and SSADestruction; the
+         * reader, the interpreter and the backend never see one.
+         */
+        PHI;
 
         @Override
         public String toString() {
@@ -0,0 +1,328 @@
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Byte-level lexer for IR files.
+ *
+ * The file is read through its channel in one go and cut into lines the way Scanner.nextLine did
+ * (on \n, \r, \r\n, U+0085, U+2028 and U+2029), trimmed as String.trim does, with empty lines
+ * skipped. Lines are kept as ranges of the file's bytes and only the tokens the reader asks for
+ * become Strings, split exactly as the String.split patterns the reader used to apply, including
+ * their leading empty token when a line starts with a delimiter.
+ *
+ * Bytes are UTF-8; a file that is not plain ASCII is decoded with the default charset, as Scanner
+ * did, and re-encoded up front. All delimiters are ASCII, which never occurs inside a multi-byte UTF-8
+ * sequence, so splitting bytes is safe.
+ */
+class IRLexer {
+
+    /** A non-empty, trimmed line of the file */
+    static final class Line {
+        final int lineNumber;
+        private final byte[] bytes;
+        private final int start;
+        private final int end;
+
+        Line(int lineNumber, byte[] bytes, int start, int end) {
+            this.lineNumber = lineNumber;
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean startsWith(String prefix) {
+            if (end - start < prefix.length())
+                return false;
+            for (int i = 0; i < prefix.length(); i++)
+                if (bytes[start + i] != prefix.charAt(i))
+                    return false;
+            return true;
+        }
+
+        boolean endsWith(char c) {
+            return bytes[end - 1] == c;
+        }
+
+        /** The line without its last byte, e.g. a label without its ':' */
+        String withoutLast() {
+            return text(start, end - 1);
+        }
+
+        /** As line.replaceAll("[\\s(),:]+", " ").split(" ") */
+        String[] signatureTokens() {
+            return split(start, end, SIGNATURE_DELIMITERS);
+        }
+
+        /** As line.substring(line.indexOf(':') + 1).trim(), split on "[\\s,]+"; null if that is empty */
+        String[] variableListTokens() {
+            int from = start;
+            for (int i = start; i < end; i++)
+                if (bytes[i] == ':') {
+                    from = i + 1;
+                    break;
+                }
+            while (from < end && (bytes[from] & 0xff) <= ' ')
+                from++;
+            if (from == end)
+                return null;
+            return split(from, end, LIST_DELIMITERS);
+        }
+
+        /** As line.split("[,\\s]+") */
+        String[] instructionTokens() {
+            return split(start, end, LIST_DELIMITERS);
+        }
+
+        private String[] split(int from, int to, boolean[] delimiters) {
+            List<String> tokens = new ArrayList<>();
+            if (isDelimiter(bytes[from], delimiters))
+                tokens.add("");
+            int i = from;
+            while (i < to) {
+                while (i < to && isDelimiter(bytes[i], delimiters))
+                    i++;
+                if (i == to)
+                    break;
+                int tokenStart = i;
+                while (i < to && !isDelimiter(bytes[i], delimiters))
+                    i++;
+                tokens.add(text(tokenStart, i));
+            }
+            // split drops trailing empty strings, which leaves nothing if the leading one is all there is
+            if (tokens.size() == 1 && tokens.get(0).isEmpty())
+                tokens.clear();
+            return tokens.toArray(new String[0]);
+        }
+
+        private String text(int from, int to) {
+            return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return text(start, end);
+        }
+    }
+
+    // \s is [ \t\n\x0B\f\r]
+    private static final boolean[] LIST_DELIMITERS = delimiters(" \t\n\u000B\f\r,");
+    private static final boolean[] SIGNATURE_DELIMITERS = delimiters(" \t\n\u000B\f\r,():");
+
+    private final byte[] bytes;
+    private final boolean verbatim;
+    private int pos;
+    private int lineNumber;
+
+    IRLexer(File file) throws FileNotFoundException {
+        byte[] content;
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    break;
+            content = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytes = toUtf8(file, content);
+        verbatim = bytes == content;
+    }
+
+    /** A lexer over part of a file, whose first line is line firstLineNumber */
+    IRLexer(byte[] bytes, int firstLineNumber) {
+        this.bytes = bytes;
+        verbatim = false;
+        lineNumber = firstLineNumber - 1;
+    }
+
+    /** Offset just past the last line returned, including its terminator */
+    int position() {
+        return pos;
+    }
+
+    /** True if offsets are offsets into the file itself, i.e. it needed no transcoding */
+    boolean isVerbatim() {
+        return verbatim;
+    }
+
+    /** A copy of bytes [from, to) of what is being lexed */
+    byte[] copyRange(int from, int to) {
+        return Arrays.copyOfRange(bytes, from, to);
+    }
+
+    /** Bytes [from, to) of file, read afresh */
+    static byte[] readRange(File file, int from, int to) {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(to - from);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, from + buffer.position()) < 0)
+                    throw new IOException("IR file shrank since it was read: " + file);
+            return buffer.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The remaining non-empty lines */
+    List<Line> remainingLines() {
+        List<Line> lines = new ArrayList<>();
+        Line line;
+        while ((line = nextLine()) != null)
+            lines.add(line);
+        return lines;
+    }
+
+    /** The file's text as UTF-8 */
+    private static byte[] toUtf8(File file, byte[] content) throws FileNotFoundException {
+        int i = 0;
+        while (i < content.length && content[i] >= 0)
+            i++;
+        if (i == content.length) // ASCII reads the same in any charset
+            return content;
+        CharBuffer chars = CharBuffer.allocate(content.length);
+        CoderResult result = Charset.defaultCharset().newDecoder().decode(ByteBuffer.wrap(content), chars, true);
+        if (!result.isError()) {
+            chars.flip();
+            return chars.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Scanner silently stops at a read that hits undecodable input, which drops a stretch of
+        // text that depends on its buffering; let it read the lines to keep exactly what it kept
+        StringBuilder text = new StringBuilder();
+        try (Scanner scanner = new Scanner(file)) {
+            while (scanner.hasNextLine())
+                text.append(scanner.nextLine()).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The next non-empty line, or null at the end of the file */
+    Line nextLine() {
+        while (pos < bytes.length) {
+            lineNumber++;
+            int start = pos;
+            int end = pos;
+            while (true) {
+                if (end == bytes.length) {
+                    pos = end;
+                    break;
+                }
+                int b = bytes[end] & 0xff;
+                if (b == '\n') {
+                    pos = end + 1;
+                    break;
+                }
+                if (b == '\r') {
+                    pos = end + 1 < bytes.length && bytes[end + 1] == '\n' ? end + 2 : end + 1;
+                    break;
+                }
+                int separator = separatorLength(end);
+                if (separator > 0) {
+                    pos = end + separator;
+                    break;
+                }
+                end++;
+            }
+
+            // Trim as String.trim does
+            while (start < end && (bytes[start] & 0xff) <= ' ')
+                start++;
+            while (end > start && (bytes[end - 1] & 0xff) <= ' ')
+                end--;
+            if (start < end)
+                return new Line(lineNumber, bytes, start, end);
+        }
+        return null;
+    }
+
+    /** Length of the UTF-8 encoded U+0085, U+2028 or U+2029 at i, or 0 */
+    private int separatorLength(int i) {
+        int b = bytes[i] & 0xff;
+        if (b == 0xc2 && i + 1 < bytes.length && (bytes[i + 1] & 0xff) == 0x85)
+            return 2;
+        if (b == 0xe2 && i + 2 < bytes.length && (bytes[i + 1] & 0xff) == 0x80
+                && ((bytes[i + 2] & 0xff) == 0xa8 || (bytes[i + 2] & 0xff) == 0xa9))
+            return 3;
+        return 0;
+    }
+
+    private static boolean isDelimiter(byte b, boolean[] delimiters) {
+        return b >= 0 && delimiters[b];
+    }
+
+    private static boolean[] delimiters(String chars) {
+        boolean[] delimiters = new boolean[128];
+        for (int i = 0; i < chars.length(); i++)
+            delimiters[chars.charAt(i)] = true;
+        return delimiters;
+    }
+
+    /** As s.matches("^[A-Za-z_][A-Za-z0-9_]*$") */
+    static boolean isIdentifier(String s) {
+        if (s.isEmpty() || !(isLetter(s.charAt(0)) || s.charAt(0) == '_'))
+            return false;
+        for (int i = 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(isLetter(c) || isDigit(c) || c == '_'))
+                return false;
+        }
+        return true;
+    }
+
+    /** As s.matches("^-?\\d+(\\.\\d*)?$") */
+    static boolean isConstant(String s) {
+        int i = 0;
+        int n = s.length();
+        if (i < n && s.charAt(i) == '-')
+            i++;
+        int digits = i;
+        while (i < n && isDigit(s.charAt(i)))
+            i++;
+        if (i == digits)
+            return false;
+        if (i < n && s.charAt(i) == '.') {
+            i++;
+            while (i < n && isDigit(s.charAt(i)))
+                i++;
+        }
+        return i == n;
+    }
+
+    /** Length of the "[digits]" that s ends with, as matched by "\\[(\\d+)\\]$", or 0 */
+    static int arraySuffixLength(String s) {
+        int n = s.length();
+        if (n < 3 || s.charAt(n - 1) != ']')
+            return 0;
+        int i = n - 2;
+        while (i >= 0 && isDigit(s.charAt(i)))
+            i--;
+        if (i == n - 2 || i < 0 || s.charAt(i) != '[')
+            return 0;
+        return n - i;
+    }
+
+    static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+}
@@ -9,63 +9,16 @@ import ir.operand.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class IRReader {
 
-    private class IRLine {
-        public int lineNumber;
-        public String line;
-
-        public IRLine(int lineNumber, String line) {
-            this.lineNumber = lineNumber;
-            this.line = line;
-        }
-    }
-
-    /**
-     * A text scanner that returns a non-empty line with its line number in each iteration
-     */
-    private class IRScanner implements Iterator<IRLine> {
-        private Scanner scanner;
-        private IRLine nextLine;
-        private int lineNumber;
-
-        public IRScanner(File file) throws FileNotFoundException {
-            scanner = new Scanner(file);
-            lineNumber = 0;
-        }
-
-        @Override
-        public boolean hasNext() {
-            if (nextLine != null)
-                return true;
-            while (scanner.hasNextLine()) {
-                lineNumber++;
-                String line = scanner.nextLine().trim();
-                // Ignore empty lines
-                if (!line.isEmpty()) {
-                    nextLine = new IRLine(lineNumber, line);
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        @Override
-        public IRLine next() throws NoSuchElementException {
-            if (hasNext()) {
-                IRLine l = nextLine;
-                nextLine = null;
-                return l;
-            }
-            throw new NoSuchElementException();
-        }
-    }
-
     private Map<String, IRFunction> intrinsics;
 
+    private boolean parallel;
+    private boolean lazy;
+
     public IRReader() {
         intrinsics = new HashMap<>();
         intrinsics.put("geti", new IRFunction("geti", IRIntType.get(), new ArrayList<>(), null, null));
@@ -76,140 +29,292 @@ public class IRReader {
         intrinsics.put("putc", new IRFunction("putc", null, Arrays.asList(new IRVariableOperand(IRIntType.get(), "c", null)), null, null));
     }
 
-    public IRProgram parseIRFile(String filename) throws FileNotFoundException, IRException {
-        Set<String> functionNames = new HashSet<>();
-        List<IRFunction> functions = new ArrayList<>();
+    /**
+     * Parse the functions of a file in parallel on the common ForkJoin pool. Cross-function checks
+     * still run once everything is parsed, and errors are the ones a sequential parse reports.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
 
-        IRScanner irScanner = new IRScanner(new File(filename));
-        List<IRLine> irLines = new ArrayList<>();
-        while (irScanner.hasNext()) {
-            IRLine irLine = irScanner.next();
-            String line = irLine.line;
+    /**
+     * Parse only the signature and variable lists of each function up front, and a function's body
+     * the first time its instructions are used or IRFunction.load is called. Errors in a body,
+     * including its calls, are reported then. The file must not change while the program is in use.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * The lines of a function. When reading lazily only its first four lines (the marker, the
+     * signature and the variable lists) are kept, along with the byte range of the rest.
+     */
+    private static class Region {
+        final List<IRLexer.Line> lines = new ArrayList<>();
+        int bodyStart = -1;
+        int bodyEnd;
+        // Where the body comes from if not the file itself
+        byte[] bodyBytes;
+    }
+
+    private static final int HEADER_LINES = 4;
+
+    /** Load a program written by IRBinaryWriter, which takes no text parsing */
+    public IRProgram readIRBinary(String filename) throws FileNotFoundException, IRException {
+        return new IRBinaryLoader(new File(filename)).load();
+    }
+
+    /** True if filename holds binary IR rather than text */
+    public static boolean isIRBinary(String filename) {
+        return IRBinaryLoader.isBinary(new File(filename));
+    }
+
+    public IRProgram parseIRFile(String filename) throws FileNotFoundException, IRException {
+        // Cut the file into #start_function ... #end_function regions, up to a misplaced marker
+        File file = new File(filename);
+        List<Region> regions = new ArrayList<>();
+        IRException markerError = null;
+        IRLexer lexer = new IRLexer(file);
+        Region region = new Region();
+        IRLexer.Line irLine;
+        while ((irLine = lexer.nextLine()) != null) {
             int lineNumber = irLine.lineNumber;
 
-            if (line.startsWith("#start_function")) {
-                if (!irLines.isEmpty())
-                    throw new IRException("Unexpected #start_function", lineNumber);
-                irLines.add(irLine);
-            } else if (line.startsWith("#end_function")) {
-                if (irLines.isEmpty())
-                    throw new IRException("Unexpected #end_function", lineNumber);
-                irLines.add(irLine);
-
-                IRFunction f = parseFunction(irLines);
-                if (functionNames.contains(f.name))
-                    throw new IRException(
-                            String.format("Redefinition of function '%s'", f.name),
-                            irLines.get(0).lineNumber);
-                if (intrinsics.containsKey(f.name))
-                    throw new IRException(
-                            String.format("Redefinition of intrinsic function '%s'", f.name),
-                            irLines.get(0).lineNumber);
-
-                functions.add(f);
-                functionNames.add(f.name);
-                irLines.clear();
-            } else {
-                irLines.add(irLine);
+            if (irLine.startsWith("#start_function")) {
+                if (!region.lines.isEmpty()) {
+                    markerError = new IRException("Unexpected #start_function", lineNumber);
+                    break;
+                }
+                region.lines.add(irLine);
+            } else if (irLine.startsWith("#end_function")) {
+                if (region.lines.isEmpty()) {
+                    markerError = new IRException("Unexpected #end_function", lineNumber);
+                    break;
+                }
+                if (region.bodyStart >= 0) {
+                    region.bodyEnd = lexer.position();
+                    if (!lexer.isVerbatim())
+                        region.bodyBytes = lexer.copyRange(region.bodyStart, region.bodyEnd);
+                } else {
+                    region.lines.add(irLine);
+                }
+                regions.add(region);
+                region = new Region();
+            } else if (region.bodyStart < 0) {
+                region.lines.add(irLine);
+                if (lazy && region.lines.size() == HEADER_LINES)
+                    region.bodyStart = lexer.position();
             }
         }
 
-        // Check calls
+        // Bodies parsed later check their calls against this map, filled in once all are known
         Map<String, IRFunction> functionMap = new HashMap<>();
+        Object[] parsed = null;
+        if (parallel) {
+            parsed = new Object[regions.size()];
+            ForkJoinPool.commonPool().invoke(new ParseTask(regions, parsed, file, functionMap, 0, regions.size()));
+        }
+
+        // Go through the functions in file order, so the first error is the one a sequential parse hits
+        Set<String> functionNames = new HashSet<>();
+        List<IRFunction> functions = new ArrayList<>();
+        for (int i = 0; i < regions.size(); i++) {
+            IRFunction f = parsed == null ? parseRegion(regions.get(i), file, functionMap) : parseResult(parsed[i]);
+            if (functionNames.contains(f.name))
+                throw new IRException(
+                        String.format("Redefinition of function '%s'", f.name),
+                        regions.get(i).lines.get(0).lineNumber);
+            if (intrinsics.containsKey(f.name))
+                throw new IRException(
+                        String.format("Redefinition of intrinsic function '%s'", f.name),
+                        regions.get(i).lines.get(0).lineNumber);
+
+            functions.add(f);
+            functionNames.add(f.name);
+        }
+        if (markerError != null)
+            throw markerError;
+
+        // Check calls
         for (IRFunction f : functions)
             functionMap.put(f.name, f);
         for (IRFunction f : intrinsics.values())
             functionMap.put(f.name, f);
         for (IRFunction f : functions)
-            for (IRInstruction inst : f.instructions) {
-                IRFunction callee;
-                int argIdx;
-                if (inst.opCode == IRInstruction.OpCode.CALL) {
-                    callee = functionMap.get(((IRFunctionOperand) inst.operands[0]).getName());
-                    if (callee == null || callee.parameters.size() != inst.operands.length - 1 || callee.returnType != null)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx = 1;
-                } else if (inst.opCode == IRInstruction.OpCode.CALLR) {
-                    callee = functionMap.get(((IRFunctionOperand) inst.operands[1]).getName());
-                    IRVariableOperand retVar = (IRVariableOperand) inst.operands[0];
-                    if (callee == null || callee.parameters.size() != inst.operands.length - 2 || retVar.type != callee.returnType)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx = 2;
-                } else
-                    continue;
-                for (IRVariableOperand param : callee.parameters) {
-                    IROperand arg = inst.operands[argIdx];
-                    IRType argType;
-                    if (arg instanceof IRVariableOperand)
-                        argType = ((IRVariableOperand) arg).type;
-                    else
-                        argType = ((IRConstantOperand) arg).type;
-                    if (param.type != argType)
-                        throw new IRException("Invalid function call", inst.irLineNumber);
-                    argIdx++;
-                }
-            }
+            if (f.isLoaded())
+                checkCalls(f.instructions, functionMap);
 
         return new IRProgram(functions);
     }
 
-    private Pattern typePattern = Pattern.compile("^(?:(void)|(?:(int|float)(?:\\[(\\d+)\\])?))$");
+    private void checkCalls(List<IRInstruction> instructions, Map<String, IRFunction> functionMap)
+            throws IRException {
+        for (IRInstruction inst : instructions) {
+            IRFunction callee;
+            int argIdx;
+            if (inst.opCode == IRInstruction.OpCode.CALL) {
+                callee = functionMap.get(((IRFunctionOperand) inst.operands[0]).getName());
+                if (callee == null || callee.parameters.size() != inst.operands.length - 1 || callee.returnType != null)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx = 1;
+            } else if (inst.opCode == IRInstruction.OpCode.CALLR) {
+                callee = functionMap.get(((IRFunctionOperand) inst.operands[1]).getName());
+                IRVariableOperand retVar = (IRVariableOperand) inst.operands[0];
+                if (callee == null || callee.parameters.size() != inst.operands.length - 2 || retVar.type != callee.returnType)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx = 2;
+            } else
+                continue;
+            for (IRVariableOperand param : callee.parameters) {
+                IROperand arg = inst.operands[argIdx];
+                IRType argType;
+                if (arg instanceof IRVariableOperand)
+                    argType = ((IRVariableOperand) arg).type;
+                else
+                    argType = ((IRConstantOperand) arg).type;
+                if (param.type != argType)
+                    throw new IRException("Invalid function call", inst.irLineNumber);
+                argIdx++;
+            }
+        }
+
+    }
+
+    /** Parses regions[from, to) into the same slots of results, as an IRFunction or what parsing threw */
+    private class ParseTask extends RecursiveAction {
+        private final List<Region> regions;
+        private final Object[] results;
+        private final File file;
+        private final Map<String, IRFunction> functionMap;
+        private final int from;
+        private final int to;
+
+        ParseTask(List<Region> regions, Object[] results, File file, Map<String, IRFunction> functionMap,
+                  int from, int to) {
+            this.regions = regions;
+            this.results = results;
+            this.file = file;
+            this.functionMap = functionMap;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(regions, results, file, functionMap, from, mid),
+                        new ParseTask(regions, results, file, functionMap, mid, to));
+                return;
+            }
+            if (from < to) {
+                try {
+                    results[from] = parseRegion(regions.get(from), file, functionMap);
+                } catch (IRException | RuntimeException e) {
+                    results[from] = e;
+                }
+            }
+        }
+    }
+
+    private static IRFunction parseResult(Object result) throws IRException {
+        if (result instanceof IRException)
+            throw (IRException) result;
+        if (result instanceof RuntimeException)
+            throw (RuntimeException) result;
+        return (IRFunction) result;
+    }
 
+    /** void, int, float, int[size] or float[size]; null for void */
     private IRType parseType(String typeStr, int lineNumber) throws IRException {
-        Matcher m = typePattern.matcher(typeStr);
-        if (!m.matches())
-            throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
-        if (m.group(1) != null)
+        if (typeStr.equals("void"))
             return null;
         IRType elementType;
-        switch (m.group(2)) {
-            case "int":
-                elementType = IRIntType.get();
-                break;
-            case "float":
-                elementType = IRFloatType.get();
-                break;
-            default:
-                throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
+        String suffix;
+        if (typeStr.startsWith("int")) {
+            elementType = IRIntType.get();
+            suffix = typeStr.substring("int".length());
+        } else if (typeStr.startsWith("float")) {
+            elementType = IRFloatType.get();
+            suffix = typeStr.substring("float".length());
+        } else {
+            throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
         }
-        if (m.group(3) == null)
+        if (suffix.isEmpty())
             return elementType;
-        int size = Integer.parseInt(m.group(3));
+        if (IRLexer.arraySuffixLength(suffix) != suffix.length())
+            throw new IRException(String.format("Invalid type '%s'", typeStr), lineNumber);
+        int size = Integer.parseInt(suffix.substring(1, suffix.length() - 1));
         if (size <= 0)
             throw new IRException(String.format("Invalid array size '%d'", size), lineNumber);
         return IRArrayType.get(elementType, size);
     }
 
-    private IRFunction parseFunction(List<IRLine> irLines)
-            throws IRException {
+    /** What the first four lines of a function declare */
+    private static class Header {
+        String name;
+        IRType returnType;
+        List<IRVariableOperand> params = new ArrayList<>();
         // variable name -> IRVariableOperand
         Map<String, IRVariableOperand> variableMap = new HashMap<>();
+        int lineNumber;
+    }
+
+    /** The function in region, with its body left to parse on first use if the region was cut short */
+    private IRFunction parseRegion(Region region, File file, Map<String, IRFunction> functionMap)
+            throws IRException {
+        Iterator<IRLexer.Line> it = region.lines.iterator();
+        Header header = parseHeader(it);
+        if (region.bodyStart < 0) {
+            List<IRInstruction> instructions = parseBody(header, it);
+            checkMain(header);
+            return new IRFunction(header.name, header.returnType, header.params,
+                    new ArrayList<>(header.variableMap.values()), instructions);
+        }
 
-        Iterator<IRLine> it = irLines.iterator();
+        checkMain(header);
+        int bodyLineNumber = region.lines.get(HEADER_LINES - 1).lineNumber + 1;
+        byte[] bodyBytes = region.bodyBytes;
+        int bodyStart = region.bodyStart;
+        int bodyEnd = region.bodyEnd;
+        return IRFunction.deferred(header.name, header.returnType, header.params,
+                new ArrayList<>(header.variableMap.values()), () -> {
+                    byte[] body = bodyBytes != null ? bodyBytes : IRLexer.readRange(file, bodyStart, bodyEnd);
+                    List<IRInstruction> instructions =
+                            parseBody(header, new IRLexer(body, bodyLineNumber).remainingLines().iterator());
+                    checkCalls(instructions, functionMap);
+                    return instructions;
+                });
+    }
+
+    private Header parseHeader(Iterator<IRLexer.Line> it) throws IRException {
+        Header header = new Header();
+        Map<String, IRVariableOperand> variableMap = header.variableMap;
         it.next(); // Skip #start_function
 
         // Start parsing signature
-        IRLine signatureLine = it.next();
-        String[] signatureTokens = signatureLine.line.replaceAll("[\\s(),:]+", " ").split(" ");
+        IRLexer.Line signatureLine = it.next();
+        header.lineNumber = signatureLine.lineNumber;
+        String[] signatureTokens = signatureLine.signatureTokens();
         if (signatureTokens.length < 2 || signatureTokens.length % 2 != 0)
             throw new IRException("Invalid function signature", signatureLine.lineNumber);
 
         // Get return type
-        IRType retType = parseType(signatureTokens[0], signatureLine.lineNumber);
-        if (retType instanceof IRArrayType)
+        header.returnType = parseType(signatureTokens[0], signatureLine.lineNumber);
+        if (header.returnType instanceof IRArrayType)
             throw new IRException(String.format("Invalid type '%s'", signatureTokens[0]), signatureLine.lineNumber);
 
         // Get function name
-        String functionName = signatureTokens[1];
+        header.name = signatureTokens[1];
 
         // Get parameters
-        List<IRVariableOperand> params = new ArrayList<>();
         for (int i = 2; i < signatureTokens.length; i += 2) {
             IRType paramType = parseType(signatureTokens[i], signatureLine.lineNumber);
             if (paramType == null)
                 throw new IRException(String.format("Invalid type '%s'", signatureTokens[i]), signatureLine.lineNumber);
             String paramName = signatureTokens[i + 1];
-            if (!paramName.matches("^[A-Za-z_][A-Za-z0-9_]*$"))
+            if (!IRLexer.isIdentifier(paramName))
                 throw new IRException(String.format("Invalid parameter name '%s'", paramName), signatureLine.lineNumber);
             if (variableMap.containsKey(paramName))
                 throw new IRException(
@@ -217,22 +322,25 @@ public class IRReader {
                         signatureLine.lineNumber);
             IRVariableOperand param = new IRVariableOperand(paramType, paramName, null);
             variableMap.put(paramName, param);
-            params.add(param);
+            header.params.add(param);
         }
 
         // Parse variable lists
-        IRLine intListLine = it.next();
-        IRLine floatListLine = it.next();
+        IRLexer.Line intListLine = it.next();
+        IRLexer.Line floatListLine = it.next();
         parseVariableList(intListLine, IRIntType.get(), variableMap);
         parseVariableList(floatListLine, IRFloatType.get(), variableMap);
+        return header;
+    }
 
+    private List<IRInstruction> parseBody(Header header, Iterator<IRLexer.Line> it) throws IRException {
         // Parse instructions
         List<IRInstruction> instructions = new ArrayList<>();
         while (it.hasNext()) {
-            IRLine irLine = it.next();
-            if (irLine.line.startsWith("#")) // Ignore #end_function
+            IRLexer.Line irLine = it.next();
+            if (irLine.startsWith("#")) // Ignore #end_function
                 break;
-            instructions.add(parseInstruction(irLine, variableMap));
+            instructions.add(parseInstruction(irLine, header.variableMap));
         }
 
         // Check Labels
@@ -253,47 +361,43 @@ public class IRReader {
         // Check return
         for (IRInstruction inst : instructions)
             if (inst.opCode == IRInstruction.OpCode.RETURN) {
-                if (retType == null)
+                if (header.returnType == null)
                     throw new IRException("Return instruction is not allowed in this function", inst.irLineNumber);
                 IRType type = getDataType(inst.operands[0]);
-                if (type != retType)
+                if (type != header.returnType)
                     throw new IRException("Invalid return value type", inst.irLineNumber);
             }
+        return instructions;
+    }
 
-        // Check the main function
-        if (functionName.equals("main")) {
-            if (retType != null || params.size() != 0)
-                throw new IRException("Invalid main function", signatureLine.lineNumber);
+    /** Check the main function */
+    private void checkMain(Header header) throws IRException {
+        if (header.name.equals("main")) {
+            if (header.returnType != null || header.params.size() != 0)
+                throw new IRException("Invalid main function", header.lineNumber);
         }
-
-        return new IRFunction(functionName, retType, params, new ArrayList<>(variableMap.values()), instructions);
     }
 
-    private Pattern arrayPattern = Pattern.compile("^(.+)\\[(\\d+)\\]$");
-
-    private Pattern varNamePattern = Pattern.compile("^[A-Za-z_][A-Za-z0-9_]*$");
-
-    private void parseVariableList(IRLine varListLine, IRType elementType,
+    private void parseVariableList(IRLexer.Line varListLine, IRType elementType,
                                    Map<String, IRVariableOperand> variableMap) throws IRException {
-        String varListStr = varListLine.line;
-        varListStr = varListStr.substring(varListStr.indexOf(':') + 1).trim();
-        if (varListStr.isEmpty())
+        String[] varNames = varListLine.variableListTokens();
+        if (varNames == null)
             return;
-        String[] varNames = varListStr.split("[\\s,]+");
         for (String varName : varNames) {
             IRVariableOperand irVar;
-            Matcher m = arrayPattern.matcher(varName);
-            if (m.matches()) { // Array
-                int size = Integer.parseInt(m.group(2));
+            int suffixLength = IRLexer.arraySuffixLength(varName);
+            if (suffixLength > 0 && suffixLength < varName.length()) { // Array
+                int nameLength = varName.length() - suffixLength;
+                int size = Integer.parseInt(varName.substring(nameLength + 1, varName.length() - 1));
                 if (size <= 0)
                     throw new IRException(String.format("Invalid array size '%d'", size), varListLine.lineNumber);
                 IRType arrayType = IRArrayType.get(elementType, size);
-                String arrayName = m.group(1);
-                if (!varNamePattern.matcher(arrayName).matches())
+                String arrayName = varName.substring(0, nameLength);
+                if (!IRLexer.isIdentifier(arrayName))
                     throw new IRException(String.format("Invalid variable name '%s'", arrayName), varListLine.lineNumber);
                 irVar = new IRVariableOperand(arrayType, arrayName, null);
             } else {
-                if (!varNamePattern.matcher(varName).matches())
+                if (!IRLexer.isIdentifier(varName))
                     throw new IRException(String.format("Invalid variable name '%s'", varName), varListLine.lineNumber);
                 irVar = new IRVariableOperand(elementType, varName, null);
             }
@@ -305,17 +409,16 @@ public class IRReader {
         }
     }
 
-    private IRInstruction parseInstruction(IRLine irLine,
+    private IRInstruction parseInstruction(IRLexer.Line irLine,
                                            Map<String, IRVariableOperand> variableMap) throws IRException {
-        String line = irLine.line;
         int lineNumber = irLine.lineNumber;
 
         IRInstruction instruction = new IRInstruction();
         instruction.irLineNumber = lineNumber;
 
         // Treat label as a pseudo instruction
-        if (line.endsWith(":")) {
-            String labelStr = line.substring(0, line.length() - 1);
+        if (irLine.endsWith(':')) {
+            String labelStr = irLine.withoutLast();
             IRLabelOperand labelOperand = new IRLabelOperand(labelStr, instruction);
             instruction.opCode = IRInstruction.OpCode.LABEL;
             instruction.operands = new IROperand[]{labelOperand};
@@ -323,13 +426,16 @@ public class IRReader {
         }
 
         // Parse opcode
-        String[] tokens = line.split("[,\\s]+");
+        String[] tokens = irLine.instructionTokens();
         IRInstruction.OpCode opCode;
         try {
             opCode = IRInstruction.OpCode.valueOf(tokens[0].toUpperCase());
         } catch (IllegalArgumentException e) {
-            throw new IRException(String.format("Invalid OpCode '%s'", tokens[0]), lineNumber);
+            opCode = null;
         }
+        // Phis only exist between SSA construction and destruction, so the text has no such opcode
+        if (opCode == null || opCode == IRInstruction.OpCode.PHI)
+            throw new IRException(String.format("Invalid OpCode '%s'", tokens[0]), lineNumber);
         instruction.opCode = opCode;
 
         // Parse operands
@@ -444,7 +550,7 @@ public class IRReader {
                                                int lineNumber) throws IRException {
         for (int i = startIdx; i <= endIdx; i++) {
             String token = tokens[i];
-            if (isConstant(token)) {
+            if (IRLexer.isConstant(token)) {
                 if (token.indexOf('.') >= 0)
                     operands.add(new IRConstantOperand(IRFloatType.get(), token, instruction));
                 else
@@ -458,10 +564,6 @@ public class IRReader {
         }
     }
 
-    private boolean isConstant(String s) {
-        return s.matches("^-?\\d+(\\.\\d*)?$");
-    }
-
     private IRType getDataType(IROperand x) {
         if (x instanceof IRConstantOperand)
             return ((IRConstantOperand) x).type;
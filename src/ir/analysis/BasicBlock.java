@@ -0,0 +1,51 @@
+package ir.analysis;
+
+import ir.IRInstruction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A maximal run of instructions [start, end) of a function that is only entered at its first
+ * instruction and only left after its last. A block starts at the function's first instruction,
+ * at a label that follows a non-label, and after every goto, branch and return.
+ */
+public class BasicBlock {
+
+    /** Position in ControlFlowGraph.blocks, which is also the order of the instructions */
+    public final int index;
+
+    public final int start;
+    public final int end;
+
+    public final List<BasicBlock> successors = new ArrayList<>(2);
+    public final List<BasicBlock> predecessors = new ArrayList<>(2);
+
+    private final List<IRInstruction> instructions;
+
+    BasicBlock(int index, int start, int end, List<IRInstruction> instructions) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.instructions = instructions;
+    }
+
+    /** The block's instructions, as a view of the function's */
+    public List<IRInstruction> instructions() {
+        return instructions.subList(start, end);
+    }
+
+    /** The last instruction, or null for the empty block of a function without instructions */
+    public IRInstruction last() {
+        return end > start ? instructions.get(end - 1) : null;
+    }
+
+    public int size() {
+        return end - start;
+    }
+
+    @Override
+    public String toString() {
+        return "B" + index;
+    }
+}
@@ -0,0 +1,172 @@
+package ir.analysis;
+
+import java.util.List;
+
+/**
+ * Worklist solver for gen/kill dataflow problems over a ControlFlowGraph, with sets as dense
+ * bit vectors (see Bits).
+ *
+ * A subclass sizes the sets, fills gen and kill for every block and calls solve. The transfer
+ * function of a block is gen | (x & ~kill), applied from in to out for forward problems and from
+ * out to in for backward ones; in is always the set at the start of a block and out the set at
+ * its end. Where control flow joins, sets meet by union or intersection. The boundary (in of the
+ * entry going forward, out of the exits going backward) is empty unless boundary is overridden;
+ * blocks no control flows into, such as dead code going forward, get it too.
+ *
+ * Blocks are seeded in reverse postorder (forward) or postorder (backward), so acyclic regions
+ * settle in one pass and loops take a few more, each pass costing a handful of word operations
+ * per block.
+ */
+public abstract class BitVectorDataflow {
+
+    public enum Direction { FORWARD, BACKWARD }
+
+    public enum Meet { UNION, INTERSECTION }
+
+    protected final ControlFlowGraph cfg;
+    protected final int width;
+    private final Direction direction;
+    private final Meet meet;
+
+    protected final long[][] gen;
+    protected final long[][] kill;
+    private final long[][] in;
+    private final long[][] out;
+
+    protected BitVectorDataflow(ControlFlowGraph cfg, int width, Direction direction, Meet meet) {
+        this.cfg = cfg;
+        this.width = width;
+        this.direction = direction;
+        this.meet = meet;
+        int n = cfg.blocks.size();
+        gen = new long[n][];
+        kill = new long[n][];
+        in = new long[n][];
+        out = new long[n][];
+        for (int i = 0; i < n; i++) {
+            gen[i] = Bits.create(width);
+            kill[i] = Bits.create(width);
+        }
+    }
+
+    /** The set at the boundary; empty by default */
+    protected long[] boundary() {
+        return Bits.create(width);
+    }
+
+    protected void solve() {
+        int n = cfg.blocks.size();
+        boolean forward = direction == Direction.FORWARD;
+        long[] boundary = boundary();
+
+        // Start from the top of the lattice: nothing for union, everything for intersection
+        for (int i = 0; i < n; i++) {
+            in[i] = Bits.create(width);
+            out[i] = Bits.create(width);
+            if (meet == Meet.INTERSECTION) {
+                fill(forward ? out[i] : in[i]);
+                fill(forward ? in[i] : out[i]);
+            }
+        }
+
+        // Visit order: reverse postorder going forward, postorder going backward, unreached blocks last
+        int[] order = new int[n];
+        boolean[] queued = new boolean[n];
+        int count = 0;
+        List<BasicBlock> rpo = cfg.reversePostOrder();
+        for (int i = 0; i < rpo.size(); i++) {
+            BasicBlock block = forward ? rpo.get(i) : rpo.get(rpo.size() - 1 - i);
+            order[count++] = block.index;
+            queued[block.index] = true;
+        }
+        for (int i = 0; i < n; i++)
+            if (!queued[i]) {
+                order[count++] = i;
+                queued[i] = true;
+            }
+
+        // Circular queue holding each block at most once
+        int[] queue = order;
+        int head = 0;
+        int size = n;
+        long[] joined = Bits.create(width);
+        while (size > 0) {
+            int b = queue[head];
+            head = head + 1 == n ? 0 : head + 1;
+            size--;
+            queued[b] = false;
+            BasicBlock block = cfg.blocks.get(b);
+
+            // Meet over the neighbours control comes from
+            List<BasicBlock> sources = forward ? block.predecessors : block.successors;
+            if (sources.isEmpty()) {
+                System.arraycopy(boundary, 0, joined, 0, joined.length);
+            } else {
+                boolean first = true;
+                for (BasicBlock source : sources) {
+                    long[] set = forward ? out[source.index] : in[source.index];
+                    if (first) {
+                        System.arraycopy(set, 0, joined, 0, joined.length);
+                        first = false;
+                    } else if (meet == Meet.UNION) {
+                        for (int w = 0; w < joined.length; w++)
+                            joined[w] |= set[w];
+                    } else {
+                        for (int w = 0; w < joined.length; w++)
+                            joined[w] &= set[w];
+                    }
+                }
+                // The boundary flows into the entry as well, even when it is a loop header
+                if (forward && block == cfg.entry)
+                    meetInto(joined, boundary);
+            }
+
+            long[] start = forward ? in[b] : out[b];
+            long[] end = forward ? out[b] : in[b];
+            System.arraycopy(joined, 0, start, 0, joined.length);
+            boolean changed = false;
+            long[] g = gen[b];
+            long[] k = kill[b];
+            for (int w = 0; w < end.length; w++) {
+                long value = g[w] | (joined[w] & ~k[w]);
+                if (value != end[w]) {
+                    end[w] = value;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                continue;
+
+            for (BasicBlock target : forward ? block.successors : block.predecessors) {
+                int t = target.index;
+                if (!queued[t]) {
+                    queued[t] = true;
+                    queue[(head + size) % n] = t;
+                    size++;
+                }
+            }
+        }
+    }
+
+    private void meetInto(long[] set, long[] other) {
+        for (int w = 0; w < set.length; w++)
+            set[w] = meet == Meet.UNION ? set[w] | other[w] : set[w] & other[w];
+    }
+
+    private void fill(long[] set) {
+        for (int w = 0; w < set.length; w++)
+            set[w] = -1L;
+        if ((width & 63) != 0 && set.length > 0)
+            set[set.length - 1] = -1L >>> (64 - (width & 63));
+    }
+
+    /** The set at the start of block; owned by the analysis, not to be modified */
+    public long[] in(BasicBlock block) {
+        return in[block.index];
+    }
+
+    /** The set at the end of block; owned by the analysis, not to be modified */
+    public long[] out(BasicBlock block) {
+        return out[block.index];
+    }
+}
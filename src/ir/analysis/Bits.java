@@ -0,0 +1,84 @@
+package ir.analysis;
+
+/**
+ * Dense bit sets as long[], as the dataflow analyses use them: bit i is word i >> 6, bit i & 63.
+ * All sets of one analysis have the same length.
+ */
+public final class Bits {
+
+    private Bits() {}
+
+    public static long[] create(int width) {
+        return new long[(width + 63) >>> 6];
+    }
+
+    public static boolean get(long[] set, int bit) {
+        return (set[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    public static void set(long[] set, int bit) {
+        set[bit >>> 6] |= 1L << bit;
+    }
+
+    public static void clear(long[] set, int bit) {
+        set[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /** Set bits [from, to) */
+    public static void setRange(long[] set, int from, int to) {
+        if (from >= to)
+            return;
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            set[first] |= firstMask & lastMask;
+            return;
+        }
+        set[first] |= firstMask;
+        for (int w = first + 1; w < last; w++)
+            set[w] = -1L;
+        set[last] |= lastMask;
+    }
+
+    /** Clear bits [from, to) */
+    public static void clearRange(long[] set, int from, int to) {
+        if (from >= to)
+            return;
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            set[first] &= ~(firstMask & lastMask);
+            return;
+        }
+        set[first] &= ~firstMask;
+        for (int w = first + 1; w < last; w++)
+            set[w] = 0;
+        set[last] &= ~lastMask;
+    }
+
+    /** The next set bit at or after from, or -1 */
+    public static int next(long[] set, int from) {
+        int word = from >>> 6;
+        if (word >= set.length)
+            return -1;
+        long bits = set[word] & -1L << from;
+        while (true) {
+            if (bits != 0)
+                return word * 64 + Long.numberOfTrailingZeros(bits);
+            if (++word == set.length)
+                return -1;
+            bits = set[word];
+        }
+    }
+
+    public static int count(long[] set) {
+        int count = 0;
+        for (long word : set)
+            count += Long.bitCount(word);
+        return count;
+    }
+}
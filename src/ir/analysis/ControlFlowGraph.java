@@ -0,0 +1,146 @@
+package ir.analysis;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.operand.IRLabelOperand;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Basic blocks of an IRFunction and the edges between them.
+ *
+ * A goto has an edge to its label's block, a conditional branch to its label's block and the
+ * next one, and a return none; any other last instruction falls through to the next block. The
+ * blocks without successors are the exits: those ending in a return, and the last block when
+ * control falls off the end of the function. The first block is the entry. A function without
+ * instructions has a single empty block.
+ */
+public class ControlFlowGraph {
+
+    public final IRFunction function;
+    public final List<BasicBlock> blocks;
+    public final BasicBlock entry;
+    public final List<BasicBlock> exits;
+
+    // Block of each instruction
+    private final int[] blockOf;
+    private List<BasicBlock> reversePostOrder;
+
+    public ControlFlowGraph(IRFunction function) {
+        this.function = function;
+        List<IRInstruction> instructions = function.instructions;
+        int n = instructions.size();
+
+        // Find the blocks
+        List<BasicBlock> blocks = new ArrayList<>();
+        blockOf = new int[n];
+        Map<String, Integer> labelBlocks = new HashMap<>();
+        int start = 0;
+        boolean hasCode = false;
+        for (int i = 0; i < n; i++) {
+            IRInstruction instruction = instructions.get(i);
+            if (instruction.opCode == IRInstruction.OpCode.LABEL) {
+                if (hasCode) {
+                    blocks.add(new BasicBlock(blocks.size(), start, i, instructions));
+                    start = i;
+                    hasCode = false;
+                }
+                labelBlocks.put(((IRLabelOperand) instruction.operands[0]).getName(), blocks.size());
+            } else {
+                hasCode = true;
+            }
+            blockOf[i] = blocks.size();
+            if (endsBlock(instruction.opCode)) {
+                blocks.add(new BasicBlock(blocks.size(), start, i + 1, instructions));
+                start = i + 1;
+                hasCode = false;
+            }
+        }
+        if (start < n || blocks.isEmpty())
+            blocks.add(new BasicBlock(blocks.size(), start, n, instructions));
+
+        // Connect them
+        List<BasicBlock> exits = new ArrayList<>();
+        for (BasicBlock block : blocks) {
+            IRInstruction last = block.last();
+            IRInstruction.OpCode opCode = last == null ? null : last.opCode;
+            if (opCode != null && opCode != IRInstruction.OpCode.RETURN && endsBlock(opCode)) {
+                Integer target = labelBlocks.get(((IRLabelOperand) last.operands[0]).getName());
+                if (target != null)
+                    addEdge(block, blocks.get(target));
+            }
+            if (opCode != IRInstruction.OpCode.GOTO && opCode != IRInstruction.OpCode.RETURN
+                    && block.index + 1 < blocks.size())
+                addEdge(block, blocks.get(block.index + 1));
+            if (block.successors.isEmpty())
+                exits.add(block);
+        }
+
+        this.blocks = Collections.unmodifiableList(blocks);
+        this.exits = Collections.unmodifiableList(exits);
+        entry = blocks.get(0);
+    }
+
+    private static boolean endsBlock(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case GOTO:
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRGEQ:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addEdge(BasicBlock from, BasicBlock to) {
+        // A branch to the next block is a single edge
+        if (from.successors.contains(to))
+            return;
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+    /** The block holding instruction i */
+    public BasicBlock blockOf(int i) {
+        return blocks.get(blockOf[i]);
+    }
+
+    /** The blocks reachable from the entry, each before its successors except along back edges */
+    public synchronized List<BasicBlock> reversePostOrder() {
+        if (reversePostOrder == null) {
+            List<BasicBlock> postOrder = new ArrayList<>(blocks.size());
+            boolean[] visited = new boolean[blocks.size()];
+            // Iterative depth-first search: a stack of blocks and how many successors each has left to try
+            BasicBlock[] stack = new BasicBlock[blocks.size()];
+            int[] next = new int[blocks.size()];
+            int depth = 0;
+            stack[depth++] = entry;
+            visited[entry.index] = true;
+            while (depth > 0) {
+                BasicBlock block = stack[depth - 1];
+                if (next[depth - 1] < block.successors.size()) {
+                    BasicBlock successor = block.successors.get(next[depth - 1]++);
+                    if (!visited[successor.index]) {
+                        visited[successor.index] = true;
+                        stack[depth] = successor;
+                        next[depth++] = 0;
+                    }
+                } else {
+                    postOrder.add(block);
+                    depth--;
+                }
+            }
+            Collections.reverse(postOrder);
+            reversePostOrder = Collections.unmodifiableList(postOrder);
+        }
+        return reversePostOrder;
+    }
+}
@@ -0,0 +1,132 @@
+package ir.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Use-def and def-use chains, from ReachingDefinitions.
+ *
+ * For every operand an instruction reads a variable from, the assignments that may have produced
+ * its value; for every assignment (and every variable's value on entry), the instructions that may
+ * read it. One walk over each block finds them all: a read after an assignment in the same block
+ * sees only that assignment, and any other read sees the variable's definitions reaching the block.
+ */
+public class DefUseChains {
+
+    private static final int[] NONE = new int[0];
+
+    private final ReachingDefinitions reaching;
+    // Per instruction and operand position: the definition ids it may read, null where it reads none
+    private final int[][][] definitions;
+    // Per definition id: the instructions that may read it, in order
+    private final int[][] uses;
+
+    public DefUseChains(ReachingDefinitions reaching) {
+        this.reaching = reaching;
+        ControlFlowGraph cfg = reaching.cfg;
+        Variables variables = reaching.variables();
+        int n = cfg.function.instructions.size();
+        int width = reaching.width;
+        definitions = new int[n][][];
+
+        // The last assignment of each variable in the current block, where localBlock matches
+        int[] local = new int[variables.size()];
+        int[] localBlock = new int[variables.size()];
+        Arrays.fill(localBlock, -1);
+        // The last instruction counted as reading each definition, so one reading it twice counts once
+        int[] lastReader = new int[width];
+        Arrays.fill(lastReader, -1);
+        int[] useCount = new int[width];
+        int[] buffer = new int[16];
+
+        for (BasicBlock block : cfg.blocks) {
+            long[] in = reaching.in(block);
+            for (int i = block.start; i < block.end; i++) {
+                int[] read = variables.usedOperands(i);
+                if (read.length > 0) {
+                    int[][] perOperand = new int[read[read.length - 1] + 1][];
+                    for (int j : read) {
+                        int v = variables.variable(i, j);
+                        int count = 0;
+                        if (localBlock[v] == block.index) {
+                            buffer[count++] = local[v];
+                        } else {
+                            int end = reaching.end(v);
+                            for (int d = Bits.next(in, reaching.first(v)); d >= 0 && d < end; d = Bits.next(in, d + 1)) {
+                                if (count == buffer.length)
+                                    buffer = Arrays.copyOf(buffer, count * 2);
+                                buffer[count++] = d;
+                            }
+                        }
+                        perOperand[j] = Arrays.copyOf(buffer, count);
+                        for (int k = 0; k < count; k++)
+                            if (lastReader[buffer[k]] != i) {
+                                lastReader[buffer[k]] = i;
+                                useCount[buffer[k]]++;
+                            }
+                    }
+                    definitions[i] = perOperand;
+                }
+                int def = variables.def(i);
+                if (def >= 0) {
+                    local[def] = reaching.definitionOf(i);
+                    localBlock[def] = block.index;
+                }
+            }
+        }
+
+        // Fill the def-use side in instruction order
+        uses = new int[width][];
+        for (int d = 0; d < width; d++)
+            uses[d] = useCount[d] == 0 ? NONE : new int[useCount[d]];
+        Arrays.fill(useCount, 0);
+        Arrays.fill(lastReader, -1);
+        for (int i = 0; i < n; i++) {
+            if (definitions[i] == null)
+                continue;
+            for (int j : variables.usedOperands(i))
+                for (int d : definitions[i][j])
+                    if (lastReader[d] != i) {
+                        lastReader[d] = i;
+                        uses[d][useCount[d]++] = i;
+                    }
+        }
+    }
+
+    public ReachingDefinitions reachingDefinitions() {
+        return reaching;
+    }
+
+    /**
+     * The instructions whose assignment operand j of instruction i may read, in order, with -1
+     * first if it may read the variable's value on entry; empty if the operand reads no variable
+     */
+    public int[] definitions(int i, int j) {
+        int[][] perOperand = definitions[i];
+        if (perOperand == null || j >= perOperand.length || perOperand[j] == null)
+            return NONE;
+        int[] ids = perOperand[j];
+        int[] instructions = new int[ids.length];
+        for (int k = 0; k < ids.length; k++)
+            instructions[k] = reaching.instructionOf(ids[k]);
+        return instructions;
+    }
+
+    /** The definition ids operand j of instruction i may read; owned by the chains, not to be modified */
+    public int[] definitionIds(int i, int j) {
+        int[][] perOperand = definitions[i];
+        if (perOperand == null || j >= perOperand.length || perOperand[j] == null)
+            return NONE;
+        return perOperand[j];
+    }
+
+    /** The instructions that may read what instruction i assigns, in order; empty if it assigns nothing */
+    public int[] uses(int i) {
+        int d = reaching.definitionOf(i);
+        return d < 0 ? NONE : uses[d].clone();
+    }
+
+    /** The instructions that may read a variable's value on entry, in order */
+    public int[] entryUses(int variable) {
+        return uses[reaching.first(variable)].clone();
+    }
+}
@@ -0,0 +1,264 @@
+package ir.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dominator or post-dominator tree of a ControlFlowGraph.
+ *
+ * Built with the Lengauer-Tarjan algorithm (path compression without balancing), which takes
+ * O(E log V) time however the blocks branch, so it holds up on functions with tens of thousands
+ * of blocks where the iterative algorithms can go quadratic. The depth-first searches and the path
+ * compression keep their own stacks, so deep graphs do not overflow the Java one.
+ *
+ * Post-dominators are the dominators of the reversed graph, rooted at a virtual exit that every
+ * exit block leads to. Blocks the root does not reach (dead code for dominators, blocks that
+ * never reach an exit for post-dominators) have no immediate dominator and dominate nothing.
+ */
+public class DominatorTree {
+
+    private final ControlFlowGraph cfg;
+    private final boolean post;
+
+    // Immediate dominator of each block, -1 for the root and unreached blocks; the virtual exit is
+    // a root of its own, so exit blocks have -1 as well
+    private final int[] idom;
+    private final List<List<BasicBlock>> children;
+    private final List<BasicBlock> roots;
+
+    // Pre- and post-order numbers in the tree, for constant-time dominance tests
+    private final int[] preorder;
+    private final int[] postorder;
+
+    public static DominatorTree dominators(ControlFlowGraph cfg) {
+        return new DominatorTree(cfg, false);
+    }
+
+    public static DominatorTree postDominators(ControlFlowGraph cfg) {
+        return new DominatorTree(cfg, true);
+    }
+
+    private DominatorTree(ControlFlowGraph cfg, boolean post) {
+        this.cfg = cfg;
+        this.post = post;
+        int n = cfg.blocks.size();
+
+        // Nodes are the blocks plus, for post-dominators, the virtual exit n
+        int nodes = post ? n + 1 : n;
+        int[][] successors = new int[nodes][];
+        int[][] predecessors = new int[nodes][];
+        for (BasicBlock block : cfg.blocks) {
+            List<BasicBlock> out = post ? block.predecessors : block.successors;
+            List<BasicBlock> in = post ? block.successors : block.predecessors;
+            successors[block.index] = indices(out, -1);
+            predecessors[block.index] = indices(in, post && block.successors.isEmpty() ? n : -1);
+        }
+        int root = cfg.entry.index;
+        if (post) {
+            successors[n] = indices(cfg.exits, -1);
+            predecessors[n] = new int[0];
+            root = n;
+        }
+
+        int[] dominators = lengauerTarjan(successors, predecessors, root);
+        idom = new int[n];
+        for (int i = 0; i < n; i++)
+            idom[i] = dominators[i] == n && post ? -1 : dominators[i];
+
+        children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            children.add(new ArrayList<>());
+        List<BasicBlock> roots = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (idom[i] >= 0)
+                children.get(idom[i]).add(cfg.blocks.get(i));
+            else if (dominators[i] >= 0 || i == root)
+                roots.add(cfg.blocks.get(i));
+        }
+        this.roots = Collections.unmodifiableList(roots);
+
+        preorder = new int[n];
+        postorder = new int[n];
+        Arrays.fill(preorder, -1);
+        Arrays.fill(postorder, -1);
+        number();
+    }
+
+    /** Indices of blocks, followed by extra unless that is -1 */
+    private static int[] indices(List<BasicBlock> blocks, int extra) {
+        int[] indices = new int[blocks.size() + (extra >= 0 ? 1 : 0)];
+        for (int i = 0; i < blocks.size(); i++)
+            indices[i] = blocks.get(i).index;
+        if (extra >= 0)
+            indices[blocks.size()] = extra;
+        return indices;
+    }
+
+    /** Immediate dominators of the nodes root reaches, -1 for the root and the rest */
+    private static int[] lengauerTarjan(int[][] successors, int[][] predecessors, int root) {
+        int n = successors.length;
+        int[] vertex = new int[n];
+        int[] dfnum = new int[n];
+        int[] parent = new int[n];
+        int[] semi = new int[n];
+        int[] ancestor = new int[n];
+        int[] label = new int[n];
+        int[] idom = new int[n];
+        int[] bucketHead = new int[n];
+        int[] bucketNext = new int[n];
+        Arrays.fill(dfnum, -1);
+        Arrays.fill(ancestor, -1);
+        Arrays.fill(idom, -1);
+        Arrays.fill(bucketHead, -1);
+
+        // Number the nodes in depth-first preorder
+        int count = 0;
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        int depth = 0;
+        stack[depth] = root;
+        next[depth++] = 0;
+        dfnum[root] = count;
+        vertex[count++] = root;
+        parent[root] = -1;
+        while (depth > 0) {
+            int v = stack[depth - 1];
+            if (next[depth - 1] < successors[v].length) {
+                int w = successors[v][next[depth - 1]++];
+                if (dfnum[w] < 0) {
+                    dfnum[w] = count;
+                    vertex[count++] = w;
+                    parent[w] = v;
+                    stack[depth] = w;
+                    next[depth++] = 0;
+                }
+            } else {
+                depth--;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            semi[i] = dfnum[i];
+            label[i] = i;
+        }
+
+        int[] path = new int[n];
+        for (int i = count - 1; i > 0; i--) {
+            int w = vertex[i];
+            for (int v : predecessors[w]) {
+                if (dfnum[v] < 0)
+                    continue;
+                int u = eval(v, ancestor, label, semi, path);
+                if (semi[u] < semi[w])
+                    semi[w] = semi[u];
+            }
+            int s = vertex[semi[w]];
+            bucketNext[w] = bucketHead[s];
+            bucketHead[s] = w;
+            ancestor[w] = parent[w];
+
+            int p = parent[w];
+            for (int v = bucketHead[p]; v >= 0; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, path);
+                idom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucketHead[p] = -1;
+        }
+        for (int i = 1; i < count; i++) {
+            int w = vertex[i];
+            if (idom[w] != vertex[semi[w]])
+                idom[w] = idom[idom[w]];
+        }
+        return idom;
+    }
+
+    /** The node of least semidominator on the compressed path from v up to its forest root */
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+        if (ancestor[v] < 0)
+            return v;
+        // Collect the path up to the node just below the root, then compress it top down
+        int length = 0;
+        for (int x = v; ancestor[ancestor[x]] >= 0; x = ancestor[x])
+            path[length++] = x;
+        for (int i = length - 1; i >= 0; i--) {
+            int x = path[i];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]])
+                label[x] = label[a];
+            ancestor[x] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    /** Number the tree in pre- and post-order with an explicit stack */
+    private void number() {
+        int pre = 0;
+        int postCount = 0;
+        int n = idom.length;
+        BasicBlock[] stack = new BasicBlock[n];
+        int[] next = new int[n];
+        for (BasicBlock root : roots) {
+            int depth = 0;
+            stack[depth] = root;
+            next[depth++] = 0;
+            preorder[root.index] = pre++;
+            while (depth > 0) {
+                BasicBlock block = stack[depth - 1];
+                List<BasicBlock> kids = children.get(block.index);
+                if (next[depth - 1] < kids.size()) {
+                    BasicBlock child = kids.get(next[depth - 1]++);
+                    preorder[child.index] = pre++;
+                    stack[depth] = child;
+                    next[depth++] = 0;
+                } else {
+                    postorder[block.index] = postCount++;
+                    depth--;
+                }
+            }
+        }
+    }
+
+    public ControlFlowGraph cfg() {
+        return cfg;
+    }
+
+    public boolean isPostDominatorTree() {
+        return post;
+    }
+
+    /** The immediate (post-)dominator of block, or null for roots and unreached blocks */
+    public BasicBlock idom(BasicBlock block) {
+        int i = idom[block.index];
+        return i < 0 ? null : cfg.blocks.get(i);
+    }
+
+    public List<BasicBlock> children(BasicBlock block) {
+        return Collections.unmodifiableList(children.get(block.index));
+    }
+
+    /**
+     * Blocks without an immediate (post-)dominator that the root reaches: the entry for dominators,
+     * and the blocks whose immediate post-dominator is the virtual exit for post-dominators
+     */
+    public List<BasicBlock> roots() {
+        return roots;
+    }
+
+    /** True if the root reaches block */
+    public boolean isReachable(BasicBlock block) {
+        return preorder[block.index] >= 0;
+    }
+
+    /** True if a (post-)dominates b; every reached block dominates itself */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        int i = a.index;
+        int j = b.index;
+        return preorder[i] >= 0 && preorder[j] >= 0
+                && preorder[i] <= preorder[j] && postorder[j] <= postorder[i];
+    }
+
+    public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+        return a != b && dominates(a, b);
+    }
+}
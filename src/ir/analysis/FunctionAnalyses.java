@@ -0,0 +1,117 @@
+package ir.analysis;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-function cache of the control-flow and dataflow analyses, each built on first use.
+ *
+ * Results describe the function's instructions as they were when computed. Anything that changes
+ * them must call invalidate; as a safety net, results are also dropped when the function's
+ * instruction list is replaced or changes size.
+ */
+public class FunctionAnalyses {
+
+    private static final Map<IRFunction, FunctionAnalyses> cache = new WeakHashMap<>();
+
+    private final IRFunction function;
+    private final List<IRInstruction> instructions;
+    private final int size;
+
+    private ControlFlowGraph cfg;
+    private DominatorTree dominators;
+    private DominatorTree postDominators;
+    private LoopNest loops;
+    private Variables variables;
+    private Liveness liveness;
+    private ReachingDefinitions reachingDefinitions;
+    private DefUseChains defUseChains;
+    private RangeAnalysis ranges;
+
+    private FunctionAnalyses(IRFunction function) {
+        this.function = function;
+        instructions = function.instructions;
+        size = instructions.size();
+    }
+
+    /** The analyses of function, from the cache if they are still current */
+    public static FunctionAnalyses of(IRFunction function) {
+        synchronized (cache) {
+            FunctionAnalyses analyses = cache.get(function);
+            if (analyses == null || !analyses.isCurrent()) {
+                analyses = new FunctionAnalyses(function);
+                cache.put(function, analyses);
+            }
+            return analyses;
+        }
+    }
+
+    /** Drop the cached analyses of function, after its instructions changed */
+    public static void invalidate(IRFunction function) {
+        synchronized (cache) {
+            cache.remove(function);
+        }
+    }
+
+    private boolean isCurrent() {
+        return function.instructions == instructions && instructions.size() == size;
+    }
+
+    public synchronized ControlFlowGraph cfg() {
+        if (cfg == null)
+            cfg = new ControlFlowGraph(function);
+        return cfg;
+    }
+
+    public synchronized DominatorTree dominators() {
+        if (dominators == null)
+            dominators = DominatorTree.dominators(cfg());
+        return dominators;
+    }
+
+    public synchronized DominatorTree postDominators() {
+        if (postDominators == null)
+            postDominators = DominatorTree.postDominators(cfg());
+        return postDominators;
+    }
+
+    public synchronized LoopNest loops() {
+        if (loops == null)
+            loops = new LoopNest(cfg(), dominators());
+        return loops;
+    }
+
+    public synchronized Variables variables() {
+        if (variables == null)
+            variables = new Variables(function);
+        return variables;
+    }
+
+    public synchronized Liveness liveness() {
+        if (liveness == null)
+            liveness = new Liveness(cfg(), variables());
+        return liveness;
+    }
+
+    public synchronized ReachingDefinitions reachingDefinitions() {
+        if (reachingDefinitions == null)
+            reachingDefinitions = new ReachingDefinitions(cfg(), variables());
+        return reachingDefinitions;
+    }
+
+    public synchronized DefUseChains defUseChains() {
+        if (defUseChains == null)
+            defUseChains = new DefUseChains(reachingDefinitions());
+        return defUseChains;
+    }
+
+    public synchronized RangeAnalysis ranges() {
+        if (ranges == null)
+            ranges = new RangeAnalysis(cfg(), variables());
+        return ranges;
+    }
+}
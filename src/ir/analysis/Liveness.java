@@ -0,0 +1,77 @@
+package ir.analysis;
+
+/**
+ * Live variables: a variable is live at a point if some path from there reads it before
+ * assigning it. Backward, with union; bits are Variables ids.
+ */
+public class Liveness extends BitVectorDataflow {
+
+    private final Variables variables;
+
+    public Liveness(ControlFlowGraph cfg, Variables variables) {
+        super(cfg, variables.size(), Direction.BACKWARD, Meet.UNION);
+        this.variables = variables;
+        for (BasicBlock block : cfg.blocks) {
+            // Upward-exposed reads are generated, assignments kill
+            long[] g = gen[block.index];
+            long[] k = kill[block.index];
+            for (int i = block.end - 1; i >= block.start; i--)
+                step(i, g, k);
+        }
+        solve();
+    }
+
+    /** Move live, the set after instruction i, to the set before it; kill collects assignments if not null */
+    private void step(int i, long[] live, long[] kill) {
+        int def = variables.def(i);
+        if (def >= 0) {
+            Bits.clear(live, def);
+            if (kill != null)
+                Bits.set(kill, def);
+        }
+        for (int operand : variables.usedOperands(i))
+            Bits.set(live, variables.variable(i, operand));
+    }
+
+    public Variables variables() {
+        return variables;
+    }
+
+    public boolean isLiveIn(BasicBlock block, int variable) {
+        return Bits.get(in(block), variable);
+    }
+
+    public boolean isLiveOut(BasicBlock block, int variable) {
+        return Bits.get(out(block), variable);
+    }
+
+    /** A new set of the variables live right after instruction i */
+    public long[] liveAfter(int i) {
+        BasicBlock block = cfg.blockOf(i);
+        long[] live = out(block).clone();
+        for (int j = block.end - 1; j > i; j--)
+            step(j, live, null);
+        return live;
+    }
+
+    /** A new set of the variables live right before instruction i */
+    public long[] liveBefore(int i) {
+        long[] live = liveAfter(i);
+        step(i, live, null);
+        return live;
+    }
+
+    /**
+     * The variables live after each instruction of block, as new sets indexed by instruction
+     * index minus block.start; a single backward walk, where liveAfter would take one per instruction
+     */
+    public long[][] liveAfterEach(BasicBlock block) {
+        long[][] sets = new long[block.size()][];
+        long[] live = out(block).clone();
+        for (int i = block.end - 1; i >= block.start; i--) {
+            sets[i - block.start] = live.clone();
+            step(i, live, null);
+        }
+        return sets;
+    }
+}
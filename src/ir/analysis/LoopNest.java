@@ -0,0 +1,198 @@
+package ir.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Natural loops of a ControlFlowGraph and how they nest.
+ *
+ * A back edge is an edge whose target dominates its source; the loop of a header is the header
+ * plus every block that reaches one of its back edges without passing through the header. Loops
+ * sharing a header are one loop. Retreating edges into a block that does not dominate their source
+ * (irreducible control flow) make no loop.
+ *
+ * Headers are processed innermost first (in decreasing dominator-tree preorder, as a header comes
+ * after every header that dominates it), and each walk back from a latch jumps over the loops
+ * already found through a union-find. A block is walked when its innermost loop is found and only
+ * its outermost enclosing header after that, so the whole nest takes near-linear time however
+ * deeply loops nest.
+ */
+public class LoopNest {
+
+    public static class Loop {
+        public final BasicBlock header;
+        /** Sources of the back edges to the header */
+        public final List<BasicBlock> latches = new ArrayList<>();
+        /** The innermost loop containing this one, or null */
+        public Loop parent;
+        public final List<Loop> children = new ArrayList<>();
+        /** 1 for an outermost loop */
+        public int depth;
+        // Blocks whose innermost loop this is
+        final List<BasicBlock> ownBlocks = new ArrayList<>();
+        private List<BasicBlock> blocks;
+
+        Loop(BasicBlock header) {
+            this.header = header;
+        }
+
+        /** All blocks of the loop, including those of nested loops, in block order */
+        public synchronized List<BasicBlock> blocks() {
+            if (blocks == null) {
+                List<BasicBlock> all = new ArrayList<>();
+                List<Loop> work = new ArrayList<>();
+                work.add(this);
+                while (!work.isEmpty()) {
+                    Loop loop = work.remove(work.size() - 1);
+                    all.addAll(loop.ownBlocks);
+                    work.addAll(loop.children);
+                }
+                all.sort((a, b) -> Integer.compare(a.index, b.index));
+                blocks = Collections.unmodifiableList(all);
+            }
+            return blocks;
+        }
+
+        @Override
+        public String toString() {
+            return "loop@" + header;
+        }
+    }
+
+    private final ControlFlowGraph cfg;
+    private final List<Loop> loops;
+    private final List<Loop> topLevel;
+    // Innermost loop of each block
+    private final Loop[] loopOf;
+
+    public LoopNest(ControlFlowGraph cfg, DominatorTree dominators) {
+        this.cfg = cfg;
+        int n = cfg.blocks.size();
+        loopOf = new Loop[n];
+
+        // Headers in decreasing dominator-tree preorder
+        List<BasicBlock> preorder = new ArrayList<>(n);
+        List<BasicBlock> work = new ArrayList<>(dominators.roots());
+        while (!work.isEmpty()) {
+            BasicBlock block = work.remove(work.size() - 1);
+            preorder.add(block);
+            work.addAll(dominators.children(block));
+        }
+
+        // Union-find over blocks: the representative of a block in a found loop is its outermost header so far
+        int[] representative = new int[n];
+        for (int i = 0; i < n; i++)
+            representative[i] = i;
+
+        List<Loop> loops = new ArrayList<>();
+        // Blocks still to walk back from; a block can be pushed once per predecessor edge
+        int[] stack = new int[Math.max(n, 16)];
+        for (int p = preorder.size() - 1; p >= 0; p--) {
+            BasicBlock header = preorder.get(p);
+            Loop loop = null;
+            int depth = 0;
+            for (BasicBlock predecessor : header.predecessors) {
+                if (!dominators.dominates(header, predecessor))
+                    continue;
+                if (loop == null)
+                    loop = new Loop(header);
+                loop.latches.add(predecessor);
+                if (predecessor != header) {
+                    if (depth == stack.length)
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = predecessor.index;
+                }
+            }
+            if (loop == null)
+                continue;
+            loops.add(loop);
+            loopOf[header.index] = loop;
+
+            while (depth > 0) {
+                int x = find(representative, stack[--depth]);
+                if (x == header.index)
+                    continue;
+                BasicBlock block = cfg.blocks.get(x);
+                Loop inner = loopOf[x];
+                if (inner != null && inner.header == block) {
+                    // The header of a nested loop: the loop hangs off this one, and the walk goes on above it
+                    inner.parent = loop;
+                } else {
+                    loopOf[x] = loop;
+                }
+                representative[x] = header.index;
+                for (BasicBlock predecessor : block.predecessors)
+                    if (dominators.isReachable(predecessor)) {
+                        if (depth == stack.length)
+                            stack = Arrays.copyOf(stack, depth * 2);
+                        stack[depth++] = predecessor.index;
+                    }
+            }
+        }
+
+        List<Loop> topLevel = new ArrayList<>();
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Loop loop = loops.get(i);
+            if (loop.parent == null) {
+                loop.depth = 1;
+                topLevel.add(loop);
+            } else {
+                loop.depth = loop.parent.depth + 1;
+                loop.parent.children.add(loop);
+            }
+        }
+        for (BasicBlock block : cfg.blocks)
+            if (loopOf[block.index] != null)
+                loopOf[block.index].ownBlocks.add(block);
+        Collections.reverse(loops);
+        this.loops = Collections.unmodifiableList(loops);
+        this.topLevel = Collections.unmodifiableList(topLevel);
+    }
+
+    private static int find(int[] representative, int x) {
+        int root = x;
+        while (representative[root] != root)
+            root = representative[root];
+        while (representative[x] != root) {
+            int next = representative[x];
+            representative[x] = root;
+            x = next;
+        }
+        return root;
+    }
+
+    public ControlFlowGraph cfg() {
+        return cfg;
+    }
+
+    /** All loops, each after the loops containing it */
+    public List<Loop> loops() {
+        return loops;
+    }
+
+    /** Loops not nested in another */
+    public List<Loop> topLevel() {
+        return topLevel;
+    }
+
+    /** The innermost loop containing block, or null */
+    public Loop loopOf(BasicBlock block) {
+        return loopOf[block.index];
+    }
+
+    /** True if block is in loop or a loop nested in it */
+    public boolean contains(Loop loop, BasicBlock block) {
+        for (Loop l = loopOf[block.index]; l != null; l = l.parent)
+            if (l == loop)
+                return true;
+        return false;
+    }
+
+    /** Number of loops containing block, 0 outside loops */
+    public int depth(BasicBlock block) {
+        Loop loop = loopOf[block.index];
+        return loop == null ? 0 : loop.depth;
+    }
+}
@@ -0,0 +1,480 @@
+package ir.analysis;
+
+import ir.IRInstruction;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRIntType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interval analysis of the int variables of an IRFunction, used to prove array accesses in bounds
+ * so that the interpreter can skip their checks and dead code elimination can remove them.
+ *
+ * Every block gets a range [lo, hi] per variable on entry. Ranges flow forward through assignments
+ * and arithmetic (anything that may overflow goes to the full int range), and are narrowed along
+ * each edge of a conditional branch by its condition, which is how loop counters pick up their
+ * bounds. Ranges at labels are widened after a few visits so loops converge; a couple of plain
+ * passes afterwards win back some of the precision widening gave away.
+ *
+ * Arrays always have their declared size: locals are allocated with it and calls only accept an
+ * argument of exactly the parameter's type. So an access is in bounds when its index range lies
+ * within [0, size - 1], or [0, size] for the count of an array fill.
+ */
+public class RangeAnalysis {
+
+    private static final long MIN = Integer.MIN_VALUE;
+    private static final long MAX = Integer.MAX_VALUE;
+
+    /** Updates of a label's range before it is widened */
+    private static final int WIDENING_DELAY = 3;
+
+    /** Decreasing passes after the widened fixpoint */
+    private static final int NARROWING_PASSES = 2;
+
+    // Relations a branch edge can establish between its operands
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int LT = 2;
+    private static final int LE = 3;
+    private static final int GT = 4;
+    private static final int GE = 5;
+
+    private final ControlFlowGraph cfg;
+    private final Variables variables;
+    private final List<IRInstruction> instructions;
+
+    /** Position of each int variable among the ranges of a state, -1 for floats and arrays */
+    private final int[] slots;
+    private final int slotCount;
+
+    /** in[b] holds lo and hi of every int variable on entry to block b, interleaved; null if unreachable */
+    private long[][] in;
+    private boolean[] inBounds;
+
+    public RangeAnalysis(ControlFlowGraph cfg, Variables variables) {
+        this.cfg = cfg;
+        this.variables = variables;
+        instructions = cfg.function.instructions;
+        slots = new int[variables.size()];
+        Arrays.fill(slots, -1);
+        int count = 0;
+        for (IRVariableOperand parameter : cfg.function.parameters)
+            if (parameter.type == IRIntType.get())
+                slots[variables.id(parameter.getName())] = count++;
+        for (IRVariableOperand variable : cfg.function.variables)
+            if (variable.type == IRIntType.get() && slots[variables.id(variable.getName())] < 0)
+                slots[variables.id(variable.getName())] = count++;
+        for (int i = 0; i < instructions.size(); i++) {
+            IROperand[] operands = instructions.get(i).operands;
+            for (int j = 0; j < operands.length; j++) {
+                int v = variables.variable(i, j);
+                if (v >= 0 && slots[v] < 0 && ((IRVariableOperand) operands[j]).type == IRIntType.get())
+                    slots[v] = count++;
+            }
+        }
+        slotCount = count;
+    }
+
+    /**
+     * inBounds[i] is true if instruction i is an array access (or array fill) whose index
+     * (or count) was proven in bounds on every execution.
+     */
+    public synchronized boolean[] provenInBounds() {
+        if (inBounds != null)
+            return inBounds;
+        inBounds = new boolean[instructions.size()];
+        if (instructions.isEmpty())
+            return inBounds;
+        solve();
+        for (BasicBlock block : cfg.blocks) {
+            if (in[block.index] == null)
+                continue;
+            long[] state = in[block.index].clone();
+            for (int i = block.start; i < block.end; i++) {
+                IRInstruction instruction = instructions.get(i);
+                IROperand[] operands = instruction.operands;
+                switch (instruction.opCode) {
+                    case ARRAY_LOAD:
+                    case ARRAY_STORE:
+                        inBounds[i] = within(state, i, 2,
+                                ((IRArrayType) ((IRVariableOperand) operands[1]).type).getSize() - 1);
+                        break;
+                    case ASSIGN:
+                        if (operands.length > 2)
+                            inBounds[i] = within(state, i, 1,
+                                    ((IRArrayType) ((IRVariableOperand) operands[0]).type).getSize());
+                        break;
+                    default:
+                        break;
+                }
+                step(i, state);
+            }
+        }
+        return inBounds;
+    }
+
+    private boolean within(long[] state, int i, int j, int max) {
+        return lo(state, i, j) >= 0 && hi(state, i, j) <= max;
+    }
+
+    private void solve() {
+        int n = cfg.blocks.size();
+        in = new long[n][];
+        in[cfg.entry.index] = entryState();
+
+        int[] updates = new int[n];
+        boolean[] queued = new boolean[n];
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        work.add(cfg.entry);
+        queued[cfg.entry.index] = true;
+        while (!work.isEmpty()) {
+            BasicBlock block = work.poll();
+            queued[block.index] = false;
+            long[][] outs = outs(block, in[block.index]);
+            for (int k = 0; k < outs.length; k++) {
+                BasicBlock successor = block.successors.get(k);
+                long[] out = outs[k];
+                if (out == null)
+                    continue;
+                boolean widen = startsWithLabel(successor) && updates[successor.index] >= WIDENING_DELAY;
+                if (merge(successor.index, out, widen)) {
+                    updates[successor.index]++;
+                    if (!queued[successor.index]) {
+                        queued[successor.index] = true;
+                        work.add(successor);
+                    }
+                }
+            }
+        }
+
+        // Every pass recomputes all states from the previous ones, so each stays a sound bound
+        for (int pass = 0; pass < NARROWING_PASSES; pass++) {
+            long[][] previous = in;
+            in = new long[n][];
+            in[cfg.entry.index] = entryState();
+            for (BasicBlock block : cfg.blocks) {
+                if (previous[block.index] == null)
+                    continue;
+                long[][] outs = outs(block, previous[block.index]);
+                for (int k = 0; k < outs.length; k++)
+                    if (outs[k] != null)
+                        merge(block.successors.get(k).index, outs[k], false);
+            }
+        }
+    }
+
+    /** Parameters can hold anything; other int variables start out as 0 */
+    private long[] entryState() {
+        long[] state = new long[2 * slotCount];
+        for (IRVariableOperand parameter : cfg.function.parameters)
+            if (parameter.type == IRIntType.get())
+                set(state, slots[variables.id(parameter.getName())], MIN, MAX);
+        return state;
+    }
+
+    /** Join out into in[target], widening if asked; true if in[target] changed */
+    private boolean merge(int target, long[] out, boolean widen) {
+        long[] state = in[target];
+        if (state == null) {
+            in[target] = out.clone();
+            return true;
+        }
+        boolean changed = false;
+        for (int j = 0; j < state.length; j += 2) {
+            if (out[j] < state[j]) {
+                state[j] = widen ? MIN : out[j];
+                changed = true;
+            }
+            if (out[j + 1] > state[j + 1]) {
+                state[j + 1] = widen ? MAX : out[j + 1];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The state along each edge out of block, in the order of its successors, given the state on
+     * entry to block; null for an edge that cannot be taken
+     */
+    private long[][] outs(BasicBlock block, long[] entry) {
+        long[] state = entry.clone();
+        for (int i = block.start; i < block.end; i++)
+            step(i, state);
+        long[][] outs = new long[block.successors.size()][];
+        IRInstruction last = block.last();
+        if (!isBranch(last.opCode) || !isInt(last.operands[1])) {
+            Arrays.fill(outs, state);
+            return outs;
+        }
+        int relation = relation(last.opCode);
+        long[] taken = refine(state, relation, block.end - 1);
+        long[] notTaken = refine(state, negate(relation), block.end - 1);
+        String label = ((IRLabelOperand) last.operands[0]).getName();
+        for (int k = 0; k < outs.length; k++) {
+            BasicBlock successor = block.successors.get(k);
+            if (successor.index != block.index + 1)
+                outs[k] = taken;
+            else if (!isTarget(successor, label) || taken == null)
+                outs[k] = notTaken;
+            else if (notTaken == null)
+                outs[k] = taken;
+            else {
+                // A branch to the next block: either way leads there
+                outs[k] = taken.clone();
+                for (int j = 0; j < taken.length; j += 2) {
+                    outs[k][j] = Math.min(taken[j], notTaken[j]);
+                    outs[k][j + 1] = Math.max(taken[j + 1], notTaken[j + 1]);
+                }
+            }
+        }
+        return outs;
+    }
+
+    /** Move state, the ranges before instruction i, to the ranges after it */
+    private void step(int i, long[] state) {
+        IRInstruction instruction = instructions.get(i);
+        IROperand[] operands = instruction.operands;
+        switch (instruction.opCode) {
+            case ASSIGN:
+                if (operands.length == 2 && isInt(operands[0]))
+                    set(state, slots[variables.def(i)], lo(state, i, 1), hi(state, i, 1));
+                break;
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+                if (isInt(operands[0]))
+                    arithmetic(state, instruction.opCode, slots[variables.def(i)],
+                            lo(state, i, 1), hi(state, i, 1), lo(state, i, 2), hi(state, i, 2));
+                break;
+            case CALLR:
+            case ARRAY_LOAD:
+            case PHI:
+                if (isInt(operands[0]))
+                    set(state, slots[variables.def(i)], MIN, MAX);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isBranch(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRGEQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** True if one of the labels block starts with is label */
+    private static boolean isTarget(BasicBlock block, String label) {
+        for (IRInstruction instruction : block.instructions()) {
+            if (instruction.opCode != IRInstruction.OpCode.LABEL)
+                return false;
+            if (((IRLabelOperand) instruction.operands[0]).getName().equals(label))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWithLabel(BasicBlock block) {
+        IRInstruction first = block.size() > 0 ? block.instructions().get(0) : null;
+        return first != null && first.opCode == IRInstruction.OpCode.LABEL;
+    }
+
+    private static void arithmetic(long[] state, IRInstruction.OpCode opCode, int dst,
+                                   long al, long ah, long bl, long bh) {
+        long lo;
+        long hi;
+        switch (opCode) {
+            case ADD:
+                lo = al + bl;
+                hi = ah + bh;
+                break;
+            case SUB:
+                lo = al - bh;
+                hi = ah - bl;
+                break;
+            case MULT: {
+                long p1 = al * bl, p2 = al * bh, p3 = ah * bl, p4 = ah * bh;
+                lo = Math.min(Math.min(p1, p2), Math.min(p3, p4));
+                hi = Math.max(Math.max(p1, p2), Math.max(p3, p4));
+                break;
+            }
+            case DIV: {
+                if (bl <= 0 && bh >= 0) {
+                    lo = MIN;
+                    hi = MAX;
+                    break;
+                }
+                // Truncating division is monotonic in each operand once the divisor's sign is fixed
+                long q1 = al / bl, q2 = al / bh, q3 = ah / bl, q4 = ah / bh;
+                lo = Math.min(Math.min(q1, q2), Math.min(q3, q4));
+                hi = Math.max(Math.max(q1, q2), Math.max(q3, q4));
+                break;
+            }
+            case AND:
+                if (al >= 0 && bl >= 0) {
+                    lo = 0;
+                    hi = Math.min(ah, bh);
+                } else if (al >= 0 || bl >= 0) {
+                    lo = 0;
+                    hi = al >= 0 ? ah : bh;
+                } else {
+                    lo = MIN;
+                    hi = MAX;
+                }
+                break;
+            default: // OR
+                if (al >= 0 && bl >= 0) {
+                    lo = Math.max(al, bl);
+                    hi = (ah | bh) == 0 ? 0 : Long.highestOneBit(ah | bh) * 2 - 1;
+                } else {
+                    lo = MIN;
+                    hi = MAX;
+                }
+                break;
+        }
+        if (lo < MIN || hi > MAX) {
+            // May wrap around
+            lo = MIN;
+            hi = MAX;
+        }
+        set(state, dst, lo, hi);
+    }
+
+    /**
+     * The state on the edge of branch i where operand 1 relates to operand 2 as relation, or null
+     * if that is impossible
+     */
+    private long[] refine(long[] state, int relation, int i) {
+        long al = lo(state, i, 1), ah = hi(state, i, 1);
+        long bl = lo(state, i, 2), bh = hi(state, i, 2);
+        switch (relation) {
+            case EQ:
+                al = bl = Math.max(al, bl);
+                ah = bh = Math.min(ah, bh);
+                break;
+            case NE:
+                if (bl == bh) {
+                    if (al == bl)
+                        al++;
+                    if (ah == bl)
+                        ah--;
+                } else if (al == ah) {
+                    if (bl == al)
+                        bl++;
+                    if (bh == al)
+                        bh--;
+                }
+                break;
+            case LT:
+                ah = Math.min(ah, bh - 1);
+                bl = Math.max(bl, al + 1);
+                break;
+            case LE:
+                ah = Math.min(ah, bh);
+                bl = Math.max(bl, al);
+                break;
+            case GT:
+                al = Math.max(al, bl + 1);
+                bh = Math.min(bh, ah - 1);
+                break;
+            default: // GE
+                al = Math.max(al, bl);
+                bh = Math.min(bh, ah);
+                break;
+        }
+        if (al > ah || bl > bh)
+            return null;
+        long[] out = state.clone();
+        if (slot(i, 1) >= 0)
+            set(out, slot(i, 1), al, ah);
+        if (slot(i, 2) >= 0)
+            set(out, slot(i, 2), bl, bh);
+        return out;
+    }
+
+    private static int relation(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case BREQ:
+                return EQ;
+            case BRNEQ:
+                return NE;
+            case BRLT:
+                return LT;
+            case BRGT:
+                return GT;
+            default:
+                return GE;
+        }
+    }
+
+    private static int negate(int relation) {
+        switch (relation) {
+            case EQ:
+                return NE;
+            case NE:
+                return EQ;
+            case LT:
+                return GE;
+            case GE:
+                return LT;
+            case GT:
+                return LE;
+            default:
+                return GT;
+        }
+    }
+
+    private static boolean isInt(IROperand operand) {
+        if (operand instanceof IRVariableOperand)
+            return ((IRVariableOperand) operand).type == IRIntType.get();
+        return ((IRConstantOperand) operand).type == IRIntType.get();
+    }
+
+    /** Lower bound of operand j of instruction i */
+    private long lo(long[] state, int i, int j) {
+        int slot = slot(i, j);
+        if (slot >= 0)
+            return state[2 * slot];
+        return constant(instructions.get(i).operands[j]);
+    }
+
+    /** Upper bound of operand j of instruction i */
+    private long hi(long[] state, int i, int j) {
+        int slot = slot(i, j);
+        if (slot >= 0)
+            return state[2 * slot + 1];
+        return constant(instructions.get(i).operands[j]);
+    }
+
+    /** The slot of operand j of instruction i, or -1 if it is a constant */
+    private int slot(int i, int j) {
+        int v = variables.variable(i, j);
+        return v < 0 ? -1 : slots[v];
+    }
+
+    private static long constant(IROperand operand) {
+        return Integer.parseInt(((IRConstantOperand) operand).getValueString());
+    }
+
+    private static void set(long[] state, int slot, long lo, long hi) {
+        state[2 * slot] = lo;
+        state[2 * slot + 1] = hi;
+    }
+}
@@ -0,0 +1,143 @@
+package ir.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Reaching definitions: the assignments whose value a variable may still hold at a point.
+ * Forward, with union.
+ *
+ * Bits are definition ids, grouped by variable: the ids of variable v are [first(v), end(v)),
+ * starting with its value on entry (a parameter's argument, or zero for a local, as frames start
+ * out zeroed) and followed by its assignments in instruction order. An assignment kills a whole
+ * range of ids at once, and the definitions of a variable that reach a point are found by
+ * scanning its range, which keeps both proportional to words rather than definitions.
+ */
+public class ReachingDefinitions extends BitVectorDataflow {
+
+    private final Variables variables;
+    // Start of each variable's ids, with the total at the end
+    private final int[] first;
+    // Instruction of each definition id, -1 for the entry values
+    private final int[] definitionInstruction;
+    // Definition id of each instruction, -1 if it assigns nothing
+    private final int[] definitionOf;
+
+    public ReachingDefinitions(ControlFlowGraph cfg, Variables variables) {
+        this(cfg, variables, firstIds(cfg, variables));
+    }
+
+    private ReachingDefinitions(ControlFlowGraph cfg, Variables variables, int[] first) {
+        super(cfg, first[variables.size()], Direction.FORWARD, Meet.UNION);
+        this.variables = variables;
+        this.first = first;
+        int variableCount = variables.size();
+        int n = cfg.function.instructions.size();
+
+        definitionInstruction = new int[width];
+        definitionOf = new int[n];
+        int[] next = new int[variableCount];
+        for (int v = 0; v < variableCount; v++) {
+            definitionInstruction[first[v]] = -1;
+            next[v] = first[v] + 1;
+        }
+        for (int i = 0; i < n; i++) {
+            int def = variables.def(i);
+            if (def < 0) {
+                definitionOf[i] = -1;
+                continue;
+            }
+            int id = next[def]++;
+            definitionOf[i] = id;
+            definitionInstruction[id] = i;
+        }
+
+        // Walking each block backwards, an assignment is generated if it is the last one of its variable
+        int[] seenIn = new int[variableCount];
+        Arrays.fill(seenIn, -1);
+        for (BasicBlock block : cfg.blocks) {
+            long[] g = gen[block.index];
+            long[] k = kill[block.index];
+            for (int i = block.end - 1; i >= block.start; i--) {
+                int def = variables.def(i);
+                if (def < 0 || seenIn[def] == block.index)
+                    continue;
+                seenIn[def] = block.index;
+                Bits.setRange(k, first[def], first[def + 1]);
+                Bits.set(g, definitionOf[i]);
+            }
+        }
+        solve();
+    }
+
+    private static int[] firstIds(ControlFlowGraph cfg, Variables variables) {
+        int variableCount = variables.size();
+        int[] count = new int[variableCount];
+        for (int i = 0; i < cfg.function.instructions.size(); i++)
+            if (variables.def(i) >= 0)
+                count[variables.def(i)]++;
+        int[] first = new int[variableCount + 1];
+        for (int v = 0; v < variableCount; v++)
+            first[v + 1] = first[v] + 1 + count[v];
+        return first;
+    }
+
+    /** Every variable holds its entry value at the entry */
+    @Override
+    protected long[] boundary() {
+        long[] set = Bits.create(width);
+        for (int v = 0; v < variables.size(); v++)
+            Bits.set(set, first[v]);
+        return set;
+    }
+
+    public Variables variables() {
+        return variables;
+    }
+
+    /** The instruction of a definition id, or -1 for an entry value */
+    public int instructionOf(int definition) {
+        return definitionInstruction[definition];
+    }
+
+    /** The definition id of instruction i, or -1 if it assigns nothing */
+    public int definitionOf(int i) {
+        return definitionOf[i];
+    }
+
+    /** The first definition id of a variable, which stands for its value on entry */
+    public int first(int variable) {
+        return first[variable];
+    }
+
+    /** One past the last definition id of a variable */
+    public int end(int variable) {
+        return first[variable + 1];
+    }
+
+    /** The variable a definition id assigns */
+    public int variableOf(int definition) {
+        int i = definitionInstruction[definition];
+        if (i >= 0)
+            return variables.def(i);
+        return Arrays.binarySearch(first, 0, variables.size(), definition);
+    }
+
+    /** A new set of the definitions reaching instruction i, before it executes */
+    public long[] reachingBefore(int i) {
+        BasicBlock block = cfg.blockOf(i);
+        long[] set = in(block).clone();
+        for (int j = block.start; j < i; j++)
+            step(j, set);
+        return set;
+    }
+
+    /** Apply instruction i to set */
+    void step(int i, long[] set) {
+        int d = definitionOf[i];
+        if (d < 0)
+            return;
+        int v = variables.def(i);
+        Bits.clearRange(set, first[v], first[v + 1]);
+        Bits.set(set, d);
+    }
+}
@@ -0,0 +1,132 @@
+package ir.analysis;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense ids for the variables of an IRFunction, and which variable each instruction defines and
+ * reads, so the dataflow analyses never compare names.
+ *
+ * Parameters come first, in order, then the declared variables, then any name an instruction uses
+ * without a declaration. Only scalars are ever defined: array stores and fills change an array's
+ * contents, not which array the variable holds, so they read the array variable instead. A phi
+ * (see ir.ssa) defines its target and reads all its values where it stands, which is conservative
+ * for liveness: each value is really only read on the edge from its own predecessor.
+ */
+public class Variables {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // Per instruction: the variable it defines or -1, the variable of each operand or -1, and
+    // the positions of the operands it reads
+    private final int[] defs;
+    private final int[][] operandIds;
+    private final int[][] uses;
+
+    private static final int[] NONE = new int[0];
+
+    public Variables(IRFunction function) {
+        for (IRVariableOperand param : function.parameters)
+            intern(param.getName());
+        for (IRVariableOperand variable : function.variables)
+            intern(variable.getName());
+
+        List<IRInstruction> instructions = function.instructions;
+        int n = instructions.size();
+        defs = new int[n];
+        operandIds = new int[n][];
+        uses = new int[n][];
+        for (int i = 0; i < n; i++) {
+            IRInstruction instruction = instructions.get(i);
+            IROperand[] operands = instruction.operands;
+            int[] idsOfOperands = new int[operands.length];
+            int[] read = new int[operands.length];
+            int readCount = 0;
+            int defined = definedOperand(instruction);
+            defs[i] = -1;
+            for (int j = 0; j < operands.length; j++) {
+                if (!(operands[j] instanceof IRVariableOperand)) {
+                    idsOfOperands[j] = -1;
+                    continue;
+                }
+                int id = intern(((IRVariableOperand) operands[j]).getName());
+                idsOfOperands[j] = id;
+                if (j == defined)
+                    defs[i] = id;
+                else
+                    read[readCount++] = j;
+            }
+            operandIds[i] = idsOfOperands;
+            uses[i] = readCount == 0 ? NONE : Arrays.copyOf(read, readCount);
+        }
+    }
+
+    /** Position of the operand instruction assigns, or -1 */
+    private static int definedOperand(IRInstruction instruction) {
+        switch (instruction.opCode) {
+            case ASSIGN:
+                // assign, A, n, v fills an array
+                return instruction.operands.length == 2 ? 0 : -1;
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case AND:
+            case OR:
+            case CALLR:
+            case ARRAY_LOAD:
+            case PHI:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    private int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /** The id of name, or -1 */
+    public int id(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    /** The variable instruction i assigns, or -1 */
+    public int def(int i) {
+        return defs[i];
+    }
+
+    /** Positions of the operands instruction i reads a variable from */
+    public int[] usedOperands(int i) {
+        return uses[i];
+    }
+
+    /** The variable of operand j of instruction i, or -1 if it is not a variable */
+    public int variable(int i, int j) {
+        return operandIds[i][j];
+    }
+}
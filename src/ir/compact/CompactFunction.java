@@ -0,0 +1,82 @@
+package ir.compact;
+
+import ir.IRInstruction;
+import ir.datatype.IRType;
+
+/**
+ * A function's instructions as parallel int arrays.
+ *
+ * Instruction i has opcode opcodes[i] (an IRInstruction.OpCode ordinal), source line lines[i] and
+ * operands operands[operandStart[i]] up to operandStart[i + 1]. An operand packs its kind into its
+ * low two bits and an id above them: an index into the variable table for VARIABLE, a constant pool
+ * id for CONSTANT, and a symbol for LABEL and FUNCTION.
+ *
+ * The variable table lists each distinct (name, type) the function mentions: parameters first, in
+ * order, then the declared variables, then any a (non-reader-built) instruction names without
+ * declaring. declared lists the entries of IRFunction.variables in their order.
+ */
+public class CompactFunction {
+
+    public static final int VARIABLE = 0;
+    public static final int CONSTANT = 1;
+    public static final int LABEL = 2;
+    public static final int FUNCTION = 3;
+
+    private static final IRInstruction.OpCode[] OP_CODES = IRInstruction.OpCode.values();
+
+    public final int name;
+    public final IRType returnType;
+
+    public final int paramCount;
+    public final int[] variableNames;
+    public final IRType[] variableTypes;
+    public final int[] declared;
+
+    public final int[] opcodes;
+    public final int[] lines;
+    public final int[] operandStart;
+    public final int[] operands;
+
+    CompactFunction(int name, IRType returnType, int paramCount, int[] variableNames, IRType[] variableTypes,
+                    int[] declared, int[] opcodes, int[] lines, int[] operandStart, int[] operands) {
+        this.name = name;
+        this.returnType = returnType;
+        this.paramCount = paramCount;
+        this.variableNames = variableNames;
+        this.variableTypes = variableTypes;
+        this.declared = declared;
+        this.opcodes = opcodes;
+        this.lines = lines;
+        this.operandStart = operandStart;
+        this.operands = operands;
+    }
+
+    public int size() {
+        return opcodes.length;
+    }
+
+    public IRInstruction.OpCode opCode(int i) {
+        return OP_CODES[opcodes[i]];
+    }
+
+    public int operandCount(int i) {
+        return operandStart[i + 1] - operandStart[i];
+    }
+
+    /** Operand j of instruction i, packed as described above */
+    public int operand(int i, int j) {
+        return operands[operandStart[i] + j];
+    }
+
+    public static int kind(int operand) {
+        return operand & 3;
+    }
+
+    public static int id(int operand) {
+        return operand >>> 2;
+    }
+
+    static int pack(int kind, int id) {
+        return id << 2 | kind;
+    }
+}
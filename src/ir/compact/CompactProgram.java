@@ -0,0 +1,191 @@
+package ir.compact;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.IRProgram;
+import ir.datatype.IRType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRFunctionOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays form of an IRProgram: each function is a handful of int arrays (see
+ * CompactFunction), names are symbols shared by the whole program and constants live in one pool.
+ * Comparing two variables, labels or callees is comparing two ints, and a large program takes a
+ * fraction of the objects the ir classes need.
+ *
+ * of and toIRProgram convert from and to the ir classes; a round trip gives back the same
+ * functions, variables (with parameters shared with the variable list, as IRReader does),
+ * instructions and operands.
+ */
+public class CompactProgram {
+
+    public final SymbolTable symbols;
+    public final ConstantPool constants;
+    public final CompactFunction[] functions;
+
+    private CompactProgram(SymbolTable symbols, ConstantPool constants, CompactFunction[] functions) {
+        this.symbols = symbols;
+        this.constants = constants;
+        this.functions = functions;
+    }
+
+    public static CompactProgram of(IRProgram program) {
+        SymbolTable symbols = new SymbolTable();
+        ConstantPool constants = new ConstantPool();
+        CompactFunction[] functions = new CompactFunction[program.functions.size()];
+        for (int i = 0; i < functions.length; i++)
+            functions[i] = new Builder(symbols, constants).build(program.functions.get(i));
+        return new CompactProgram(symbols, constants, functions);
+    }
+
+    /** Builds one function's variable table and instruction arrays */
+    private static class Builder {
+        private final SymbolTable symbols;
+        private final ConstantPool constants;
+
+        private final List<IRType> variableTypes = new ArrayList<>();
+        private int[] variableNames = new int[16];
+        // Symbol -> first variable table entry with that name
+        private final Map<Integer, Integer> byName = new HashMap<>();
+
+        Builder(SymbolTable symbols, ConstantPool constants) {
+            this.symbols = symbols;
+            this.constants = constants;
+        }
+
+        CompactFunction build(IRFunction function) {
+            int paramCount = function.parameters.size();
+            for (IRVariableOperand param : function.parameters)
+                addVariable(param);
+
+            int[] declared = new int[function.variables.size()];
+            for (int i = 0; i < declared.length; i++) {
+                IRVariableOperand variable = function.variables.get(i);
+                int param = indexOfIdentical(function.parameters, variable);
+                declared[i] = param >= 0 ? param : addVariable(variable);
+            }
+
+            List<IRInstruction> instructions = function.instructions;
+            int n = instructions.size();
+            int[] opcodes = new int[n];
+            int[] lines = new int[n];
+            int[] operandStart = new int[n + 1];
+            int operandCount = 0;
+            for (IRInstruction instruction : instructions)
+                operandCount += instruction.operands.length;
+            int[] operands = new int[operandCount];
+            int next = 0;
+            for (int i = 0; i < n; i++) {
+                IRInstruction instruction = instructions.get(i);
+                opcodes[i] = instruction.opCode.ordinal();
+                lines[i] = instruction.irLineNumber;
+                operandStart[i] = next;
+                for (IROperand operand : instruction.operands)
+                    operands[next++] = operand(operand);
+            }
+            operandStart[n] = next;
+
+            return new CompactFunction(symbols.intern(function.name), function.returnType, paramCount,
+                    Arrays.copyOf(variableNames, variableTypes.size()), variableTypes.toArray(new IRType[0]),
+                    declared, opcodes, lines, operandStart, operands);
+        }
+
+        private int operand(IROperand operand) {
+            if (operand instanceof IRVariableOperand)
+                return CompactFunction.pack(CompactFunction.VARIABLE, variable((IRVariableOperand) operand));
+            if (operand instanceof IRConstantOperand) {
+                IRConstantOperand constant = (IRConstantOperand) operand;
+                return CompactFunction.pack(CompactFunction.CONSTANT,
+                        constants.intern(constant.type, constant.getValueString()));
+            }
+            if (operand instanceof IRLabelOperand)
+                return CompactFunction.pack(CompactFunction.LABEL, symbols.intern(((IRLabelOperand) operand).getName()));
+            return CompactFunction.pack(CompactFunction.FUNCTION, symbols.intern(((IRFunctionOperand) operand).getName()));
+        }
+
+        /** The table entry for a variable an instruction names, added if no entry has its name and type */
+        private int variable(IRVariableOperand variable) {
+            int name = symbols.intern(variable.getName());
+            Integer first = byName.get(name);
+            if (first != null) {
+                if (variableTypes.get(first) == variable.type)
+                    return first;
+                for (int i = first + 1; i < variableTypes.size(); i++)
+                    if (variableNames[i] == name && variableTypes.get(i) == variable.type)
+                        return i;
+            }
+            return addVariable(variable);
+        }
+
+        private int addVariable(IRVariableOperand variable) {
+            int index = variableTypes.size();
+            if (index == variableNames.length)
+                variableNames = Arrays.copyOf(variableNames, index * 2);
+            int name = symbols.intern(variable.getName());
+            variableNames[index] = name;
+            variableTypes.add(variable.type);
+            byName.putIfAbsent(name, index);
+            return index;
+        }
+
+        private static int indexOfIdentical(List<IRVariableOperand> list, IRVariableOperand variable) {
+            for (int i = 0; i < list.size(); i++)
+                if (list.get(i) == variable)
+                    return i;
+            return -1;
+        }
+    }
+
+    public IRProgram toIRProgram() {
+        List<IRFunction> irFunctions = new ArrayList<>(functions.length);
+        for (CompactFunction function : functions)
+            irFunctions.add(toIRFunction(function));
+        return new IRProgram(irFunctions);
+    }
+
+    private IRFunction toIRFunction(CompactFunction function) {
+        List<IRVariableOperand> params = new ArrayList<>(function.paramCount);
+        for (int i = 0; i < function.paramCount; i++)
+            params.add(new IRVariableOperand(function.variableTypes[i], symbols.name(function.variableNames[i]), null));
+        List<IRVariableOperand> variables = new ArrayList<>(function.declared.length);
+        for (int index : function.declared)
+            variables.add(index < function.paramCount ? params.get(index)
+                    : new IRVariableOperand(function.variableTypes[index], symbols.name(function.variableNames[index]), null));
+
+        List<IRInstruction> instructions = new ArrayList<>(function.size());
+        for (int i = 0; i < function.size(); i++) {
+            IRInstruction instruction = new IRInstruction();
+            instruction.opCode = function.opCode(i);
+            instruction.irLineNumber = function.lines[i];
+            IROperand[] operands = new IROperand[function.operandCount(i)];
+            for (int j = 0; j < operands.length; j++)
+                operands[j] = toIROperand(function, function.operand(i, j), instruction);
+            instruction.operands = operands;
+            instructions.add(instruction);
+        }
+        return new IRFunction(symbols.name(function.name), function.returnType, params, variables, instructions);
+    }
+
+    private IROperand toIROperand(CompactFunction function, int operand, IRInstruction parent) {
+        int id = CompactFunction.id(operand);
+        switch (CompactFunction.kind(operand)) {
+            case CompactFunction.VARIABLE:
+                return new IRVariableOperand(function.variableTypes[id], symbols.name(function.variableNames[id]), parent);
+            case CompactFunction.CONSTANT:
+                return new IRConstantOperand(constants.type(id), constants.text(id), parent);
+            case CompactFunction.LABEL:
+                return new IRLabelOperand(symbols.name(id), parent);
+            default:
+                return new IRFunctionOperand(symbols.name(id), parent);
+        }
+    }
+}
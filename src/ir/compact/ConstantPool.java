@@ -0,0 +1,73 @@
+package ir.compact;
+
+import ir.datatype.IRFloatType;
+import ir.datatype.IRIntType;
+import ir.datatype.IRType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The constants of a program, each stored once with its value already parsed. The source text is
+ * kept as well, since that is what IRConstantOperand holds and "07" and "7" are different texts.
+ */
+public class ConstantPool {
+
+    private final Map<String, Integer> intIds = new HashMap<>();
+    private final Map<String, Integer> floatIds = new HashMap<>();
+    private String[] texts = new String[64];
+    private boolean[] floats = new boolean[64];
+    // Raw bits for floats; for ints that do not fit, parsed is false and intValue fails as parseInt does
+    private int[] bits = new int[64];
+    private boolean[] parsed = new boolean[64];
+    private int size;
+
+    public int intern(IRType type, String text) {
+        boolean isFloat = type == IRFloatType.get();
+        Map<String, Integer> ids = isFloat ? floatIds : intIds;
+        Integer id = ids.get(text);
+        if (id != null)
+            return id;
+        if (size == texts.length) {
+            texts = Arrays.copyOf(texts, size * 2);
+            floats = Arrays.copyOf(floats, size * 2);
+            bits = Arrays.copyOf(bits, size * 2);
+            parsed = Arrays.copyOf(parsed, size * 2);
+        }
+        texts[size] = text;
+        floats[size] = isFloat;
+        try {
+            bits[size] = isFloat ? Float.floatToRawIntBits(Float.parseFloat(text)) : Integer.parseInt(text);
+            parsed[size] = true;
+        } catch (NumberFormatException e) {
+            parsed[size] = false;
+        }
+        ids.put(text, size);
+        return size++;
+    }
+
+    public IRType type(int id) {
+        return floats[id] ? IRFloatType.get() : IRIntType.get();
+    }
+
+    public boolean isFloat(int id) {
+        return floats[id];
+    }
+
+    public int intValue(int id) {
+        return parsed[id] ? bits[id] : Integer.parseInt(texts[id]);
+    }
+
+    public float floatValue(int id) {
+        return Float.intBitsToFloat(bits[id]);
+    }
+
+    public String text(int id) {
+        return texts[id];
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,41 @@
+package ir.compact;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the names of a program (variables, labels and functions) to dense ints, so names can be
+ * compared with == and used to index arrays. Ids start at 0 in order of first appearance.
+ */
+public class SymbolTable {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[64];
+
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        int size = ids.size();
+        if (size == names.length)
+            names = Arrays.copyOf(names, size * 2);
+        names[size] = name;
+        ids.put(name, size);
+        return size;
+    }
+
+    /** The id of name, or -1 if it was never interned */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -1,11 +1,12 @@
 package ir.datatype;
 
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class IRArrayType extends IRType {
 
-    private static Map<IRType, Map<Integer, IRArrayType>> instances = new HashMap<>();
+    // Types are compared by identity, so interning has to hold up under concurrent parses too
+    private static Map<IRType, Map<Integer, IRArrayType>> instances = new ConcurrentHashMap<>();
 
     private IRType elementType;
 
@@ -18,7 +19,7 @@ public class IRArrayType extends IRType {
 
     public static IRArrayType get(IRType elementType, int size) {
         return instances
-                .computeIfAbsent(elementType, k -> new HashMap<>())
+                .computeIfAbsent(elementType, k -> new ConcurrentHashMap<>())
                 .computeIfAbsent(size, k -> new IRArrayType(elementType, size));
     }
 
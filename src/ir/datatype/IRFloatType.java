@@ -2,14 +2,12 @@ package ir.datatype;
 
 public class IRFloatType extends IRType {
 
-    private static IRFloatType instance;
+    // Created eagerly, so that concurrent parses all see the same instance
+    private static final IRFloatType instance = new IRFloatType();
 
     private IRFloatType() {}
 
     public static IRFloatType get() {
-        if (instance == null) {
-            instance = new IRFloatType();
-        }
         return instance;
     }
 
@@ -2,14 +2,12 @@ package ir.datatype;
 
 public class IRIntType extends IRType {
 
-    private static IRIntType instance;
+    // Created eagerly, so that concurrent parses all see the same instance
+    private static final IRIntType instance = new IRIntType();
 
     private IRIntType() {}
 
     public static IRIntType get() {
-        if (instance == null) {
-            instance = new IRIntType();
-        }
         return instance;
     }
 
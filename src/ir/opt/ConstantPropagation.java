@@ -0,0 +1,627 @@
+package ir.opt;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.Variables;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.datatype.IRType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+import ir.ssa.Phi;
+import ir.ssa.SSAForm;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck) over a function in SSA form (see
+ * SSAForm); it leaves other functions alone.
+ *
+ * Every variable starts out unknown, except parameters, which can hold anything, and variables
+ * nothing assigns, which keep the zero locals start with. Starting from the entry block, the
+ * instructions of each block control can reach are evaluated: int and float constants flow
+ * through assign, add, sub, mult, div, and and or, a phi meets the values of the edges found
+ * reachable so far, and a branch on constants only marks the edge it takes. A variable's value
+ * only ever goes from unknown to a constant to anything, and the uses of a variable are
+ * re-evaluated each time it drops, so the whole function settles in time linear in its size.
+ * Nothing is folded that would change what the program does: int division by zero still happens
+ * at run time, and float results that are not finite stay unfolded, as a constant cannot spell
+ * them.
+ *
+ * Then the function is rewritten: an instruction computing a constant becomes an assign of it,
+ * reads of constants become the constants themselves, branches that go one way become a goto or
+ * disappear, and blocks control never reaches are removed, along with the phi arguments of their
+ * edges. A block left with only its labels once its branch disappears jumps to the next block if
+ * that one has phis, so their edge from it stays its own (see SSAForm.jumpOutOfEmptied). The backend wants a variable as the first operand of arithmetic and branches and as the
+ * value an array store stores, so a constant only goes there by swapping the operands, where the
+ * operation allows it, and otherwise the variable stays.
+ */
+public class ConstantPropagation implements FunctionPass {
+
+    // Lattice values: not known yet, one constant, or anything
+    private static final byte UNKNOWN = 0;
+    private static final byte CONSTANT = 1;
+    private static final byte ANYTHING = 2;
+
+    @Override
+    public String name() {
+        return "constant-propagation";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        if (function.instructions.isEmpty() || !SSAForm.holds(function, analyses))
+            return false;
+        Solver solver = new Solver(function, analyses);
+        solver.solve();
+        return solver.rewrite();
+    }
+
+    /** The analysis of one function and the rewrite it allows */
+    private static class Solver {
+
+        private final IRFunction function;
+        private final List<IRInstruction> instructions;
+        private final ControlFlowGraph cfg;
+        private final Variables variables;
+        private final Map<String, BasicBlock> labelBlocks;
+
+        // Lattice value of each variable; a constant is an int, or the bits of a float
+        private final byte[] state;
+        private final int[] constant;
+        private final IRType[] types;
+        // Instructions reading each variable
+        private final int[][] uses;
+
+        private final boolean[] reached;
+        // Edges found reachable, parallel to each block's successors
+        private final boolean[][] feasible;
+
+        private int[] blockWork = new int[16];
+        private int blockWorkSize;
+        private int[] variableWork = new int[16];
+        private int variableWorkSize;
+
+        Solver(IRFunction function, FunctionAnalyses analyses) {
+            this.function = function;
+            instructions = function.instructions;
+            cfg = analyses.cfg();
+            variables = analyses.variables();
+            labelBlocks = SSAForm.labelBlocks(cfg);
+            int variableCount = variables.size();
+
+            types = new IRType[variableCount];
+            boolean[] assigned = new boolean[variableCount];
+            int[] useCounts = new int[variableCount];
+            for (int i = 0; i < instructions.size(); i++) {
+                IROperand[] operands = instructions.get(i).operands;
+                for (int j = 0; j < operands.length; j++) {
+                    int v = variables.variable(i, j);
+                    if (v >= 0)
+                        types[v] = ((IRVariableOperand) operands[j]).type;
+                }
+                if (variables.def(i) >= 0)
+                    assigned[variables.def(i)] = true;
+                for (int j : variables.usedOperands(i))
+                    useCounts[variables.variable(i, j)]++;
+            }
+            uses = new int[variableCount][];
+            for (int v = 0; v < variableCount; v++)
+                uses[v] = new int[useCounts[v]];
+            Arrays.fill(useCounts, 0);
+            for (int i = 0; i < instructions.size(); i++)
+                for (int j : variables.usedOperands(i)) {
+                    int v = variables.variable(i, j);
+                    // An instruction reading a variable twice is listed once
+                    if (useCounts[v] == 0 || uses[v][useCounts[v] - 1] != i)
+                        uses[v][useCounts[v]++] = i;
+                }
+            for (int v = 0; v < variableCount; v++)
+                uses[v] = Arrays.copyOf(uses[v], useCounts[v]);
+
+            state = new byte[variableCount];
+            constant = new int[variableCount];
+            for (int v = 0; v < variableCount; v++)
+                if (v < function.parameters.size() || types[v] == null || types[v] instanceof IRArrayType)
+                    state[v] = ANYTHING;
+                else if (!assigned[v])
+                    state[v] = CONSTANT;
+
+            reached = new boolean[cfg.blocks.size()];
+            feasible = new boolean[cfg.blocks.size()][];
+            for (BasicBlock block : cfg.blocks)
+                feasible[block.index] = new boolean[block.successors.size()];
+        }
+
+        void solve() {
+            reach(cfg.entry);
+            while (blockWorkSize > 0 || variableWorkSize > 0) {
+                if (blockWorkSize > 0) {
+                    int entry = blockWork[--blockWorkSize];
+                    BasicBlock block = cfg.blocks.get(entry >> 1);
+                    // Reached for the first time, or one more edge into it for its phis
+                    for (int i = block.start; i < block.end; i++) {
+                        IRInstruction instruction = instructions.get(i);
+                        if ((entry & 1) == 0 && instruction.opCode != IRInstruction.OpCode.LABEL
+                                && !Phi.isPhi(instruction))
+                            break;
+                        visit(i);
+                    }
+                } else {
+                    int v = variableWork[--variableWorkSize];
+                    for (int i : uses[v])
+                        if (reached[cfg.blockOf(i).index])
+                            visit(i);
+                }
+            }
+        }
+
+        private void reach(BasicBlock block) {
+            boolean first = !reached[block.index];
+            reached[block.index] = true;
+            if (blockWorkSize == blockWork.length)
+                blockWork = Arrays.copyOf(blockWork, blockWorkSize * 2);
+            blockWork[blockWorkSize++] = block.index << 1 | (first ? 1 : 0);
+        }
+
+        private void markEdge(BasicBlock from, int successor) {
+            if (feasible[from.index][successor])
+                return;
+            feasible[from.index][successor] = true;
+            reach(from.successors.get(successor));
+        }
+
+        private boolean isFeasible(BasicBlock from, BasicBlock to) {
+            int successor = from.successors.indexOf(to);
+            return successor >= 0 && feasible[from.index][successor];
+        }
+
+        /** Evaluate instruction i, in a reached block, with what is known so far */
+        private void visit(int i) {
+            IRInstruction instruction = instructions.get(i);
+            BasicBlock block = cfg.blockOf(i);
+            int def = variables.def(i);
+            if (def >= 0 && state[def] != ANYTHING) {
+                if (Phi.isPhi(instruction))
+                    evaluatePhi(instruction, block, def);
+                else
+                    evaluate(instruction, def);
+            }
+            if (i == block.end - 1)
+                flowOut(block);
+        }
+
+        private void evaluatePhi(IRInstruction phi, BasicBlock block, int def) {
+            for (int k = 0; k < Phi.argumentCount(phi); k++) {
+                BasicBlock predecessor = labelBlocks.get(Phi.label(phi, k));
+                if (predecessor != null && reached[predecessor.index] && isFeasible(predecessor, block))
+                    lower(def, phi.operands[Phi.valueOperand(k)], isFloat(types[def]));
+            }
+        }
+
+        private void evaluate(IRInstruction instruction, int def) {
+            IROperand[] operands = instruction.operands;
+            boolean isFloat = isFloat(types[def]);
+            switch (instruction.opCode) {
+                case ASSIGN:
+                    lower(def, operands[1], isFloat);
+                    return;
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR:
+                    break;
+                default:
+                    lower(def, ANYTHING, 0);
+                    return;
+            }
+
+            byte a = stateOf(operands[1], isFloat);
+            byte b = stateOf(operands[2], isFloat);
+            int x = a == CONSTANT ? constantOf(operands[1], isFloat) : 0;
+            int y = b == CONSTANT ? constantOf(operands[2], isFloat) : 0;
+            if (!isFloat) {
+                // x * 0, x & 0 and x | -1 whatever x turns out to be
+                IRInstruction.OpCode opCode = instruction.opCode;
+                int absorbing = opCode == IRInstruction.OpCode.OR ? -1 : 0;
+                if ((opCode == IRInstruction.OpCode.MULT || opCode == IRInstruction.OpCode.AND
+                        || opCode == IRInstruction.OpCode.OR)
+                        && (a == CONSTANT && x == absorbing || b == CONSTANT && y == absorbing)) {
+                    lower(def, CONSTANT, absorbing);
+                    return;
+                }
+            }
+            if (a == ANYTHING || b == ANYTHING) {
+                lower(def, ANYTHING, 0);
+                return;
+            }
+            if (a == UNKNOWN || b == UNKNOWN)
+                return;
+
+            if (!isFloat) {
+                switch (instruction.opCode) {
+                    case ADD:
+                        lower(def, CONSTANT, x + y);
+                        return;
+                    case SUB:
+                        lower(def, CONSTANT, x - y);
+                        return;
+                    case MULT:
+                        lower(def, CONSTANT, x * y);
+                        return;
+                    case DIV:
+                        if (y == 0)
+                            lower(def, ANYTHING, 0);
+                        else
+                            lower(def, CONSTANT, x / y);
+                        return;
+                    case AND:
+                        lower(def, CONSTANT, x & y);
+                        return;
+                    default:
+                        lower(def, CONSTANT, x | y);
+                        return;
+                }
+            }
+
+            float f = Float.intBitsToFloat(x);
+            float g = Float.intBitsToFloat(y);
+            float result;
+            switch (instruction.opCode) {
+                case ADD:
+                    result = f + g;
+                    break;
+                case SUB:
+                    result = f - g;
+                    break;
+                case MULT:
+                    result = f * g;
+                    break;
+                case DIV:
+                    result = f / g;
+                    break;
+                default:
+                    // No float and or or
+                    lower(def, ANYTHING, 0);
+                    return;
+            }
+            if (Float.isNaN(result) || Float.isInfinite(result))
+                lower(def, ANYTHING, 0);
+            else
+                lower(def, CONSTANT, Float.floatToRawIntBits(result));
+        }
+
+        /** Mark the edges out of a reached block that control can take */
+        private void flowOut(BasicBlock block) {
+            IRInstruction last = block.last();
+            int successors = block.successors.size();
+            if (last == null || !isBranch(last.opCode) || successors < 2) {
+                for (int s = 0; s < successors; s++)
+                    markEdge(block, s);
+                return;
+            }
+            int taken = branchOutcome(last);
+            if (taken < 0)
+                return;
+            BasicBlock target = labelBlocks.get(last.operands[0].toString());
+            for (int s = 0; s < successors; s++)
+                if (taken == 2 || (block.successors.get(s) == target) == (taken == 1))
+                    markEdge(block, s);
+        }
+
+        /** 1 if the branch is taken, 0 if not, 2 if either can happen, -1 if not known yet */
+        private int branchOutcome(IRInstruction branch) {
+            IROperand[] operands = branch.operands;
+            boolean isFloat = isFloat(typeOf(operands[1])) || isFloat(typeOf(operands[2]));
+            byte a = stateOf(operands[1], isFloat);
+            byte b = stateOf(operands[2], isFloat);
+            if (a == ANYTHING || b == ANYTHING)
+                return 2;
+            if (a == UNKNOWN || b == UNKNOWN)
+                return -1;
+            int x = constantOf(operands[1], isFloat);
+            int y = constantOf(operands[2], isFloat);
+            int order = isFloat
+                    ? compare(Float.intBitsToFloat(x), Float.intBitsToFloat(y))
+                    : Integer.compare(x, y);
+            boolean result;
+            switch (branch.opCode) {
+                case BREQ:
+                    result = order == 0;
+                    break;
+                case BRNEQ:
+                    result = order != 0;
+                    break;
+                case BRLT:
+                    result = order < 0;
+                    break;
+                case BRGT:
+                    result = order > 0;
+                    break;
+                default:
+                    result = order >= 0;
+                    break;
+            }
+            return result ? 1 : 0;
+        }
+
+        /** As the comparison operators order floats: -0.0 equals 0.0 */
+        private static int compare(float f, float g) {
+            return f < g ? -1 : f > g ? 1 : 0;
+        }
+
+        /** The lattice value of an operand; a constant that does not read as the type wanted is anything */
+        private byte stateOf(IROperand operand, boolean isFloat) {
+            if (operand instanceof IRConstantOperand) {
+                String value = ((IRConstantOperand) operand).getValueString();
+                try {
+                    if (isFloat)
+                        Float.parseFloat(value);
+                    else
+                        Integer.parseInt(value);
+                    return CONSTANT;
+                } catch (NumberFormatException e) {
+                    return ANYTHING;
+                }
+            }
+            if (operand instanceof IRVariableOperand) {
+                int v = variables.id(operand.toString());
+                return v < 0 ? ANYTHING : state[v];
+            }
+            return ANYTHING;
+        }
+
+        /** The constant of an operand stateOf finds CONSTANT */
+        private int constantOf(IROperand operand, boolean isFloat) {
+            if (operand instanceof IRVariableOperand)
+                return constant[variables.id(operand.toString())];
+            String value = ((IRConstantOperand) operand).getValueString();
+            return isFloat ? Float.floatToRawIntBits(Float.parseFloat(value)) : Integer.parseInt(value);
+        }
+
+        private void lower(int v, IROperand operand, boolean isFloat) {
+            byte s = stateOf(operand, isFloat);
+            lower(v, s, s == CONSTANT ? constantOf(operand, isFloat) : 0);
+        }
+
+        /** Meet the value of v with s, and revisit its uses if that lowers it */
+        private void lower(int v, byte s, int value) {
+            byte old = state[v];
+            if (s == UNKNOWN || old == ANYTHING || old == CONSTANT && s == CONSTANT && constant[v] == value)
+                return;
+            state[v] = old == UNKNOWN ? s : ANYTHING;
+            constant[v] = value;
+            if (variableWorkSize == variableWork.length)
+                variableWork = Arrays.copyOf(variableWork, variableWorkSize * 2);
+            variableWork[variableWorkSize++] = v;
+        }
+
+        private IRType typeOf(IROperand operand) {
+            if (operand instanceof IRVariableOperand)
+                return ((IRVariableOperand) operand).type;
+            return ((IRConstantOperand) operand).type;
+        }
+
+        private static boolean isFloat(IRType type) {
+            return type == IRFloatType.get();
+        }
+
+        /** Apply what solve found; true if that changed the function */
+        boolean rewrite() {
+            boolean changed = false;
+            List<IRInstruction> result = new ArrayList<>(instructions.size());
+            List<IRInstruction> folded = new ArrayList<>();
+            for (BasicBlock block : cfg.blocks) {
+                if (!reached[block.index]) {
+                    changed |= block.size() > 0;
+                    continue;
+                }
+                // Phis that turn out constant become assigns after the block's remaining phis
+                boolean inPhis = true;
+                // Whether anything but labels of the block made it into result
+                boolean kept = false;
+                for (int i = block.start; i < block.end; i++) {
+                    IRInstruction instruction = instructions.get(i);
+                    if (inPhis && instruction.opCode != IRInstruction.OpCode.LABEL && !Phi.isPhi(instruction)) {
+                        kept |= !folded.isEmpty();
+                        result.addAll(folded);
+                        folded.clear();
+                        inPhis = false;
+                    }
+                    int def = variables.def(i);
+                    if (def >= 0 && state[def] == CONSTANT && instruction.opCode != IRInstruction.OpCode.CALLR) {
+                        IRInstruction assign = assign(instruction, def);
+                        if (assign != instruction)
+                            changed = true;
+                        if (Phi.isPhi(instruction)) {
+                            folded.add(assign);
+                        } else {
+                            result.add(assign);
+                            kept = true;
+                        }
+                        continue;
+                    }
+                    if (i == block.end - 1 && isBranch(instruction.opCode) && block.successors.size() == 2) {
+                        boolean toTarget = feasible[block.index][targetSuccessor(block, instruction)];
+                        boolean toNext = feasible[block.index][1 - targetSuccessor(block, instruction)];
+                        if (toTarget != toNext) {
+                            changed = true;
+                            IRInstruction jump;
+                            if (toTarget)
+                                jump = jump(instruction);
+                            else if (!kept)
+                                jump = SSAForm.jumpOutOfEmptied(cfg, block);
+                            else
+                                jump = null;
+                            if (jump != null)
+                                result.add(jump);
+                            continue;
+                        }
+                    }
+                    changed |= substitute(instruction, i);
+                    // After substitute, which goes by the operand positions Variables found
+                    if (Phi.isPhi(instruction))
+                        changed |= prunePhi(instruction, block);
+                    result.add(instruction);
+                    kept |= instruction.opCode != IRInstruction.OpCode.LABEL;
+                }
+                result.addAll(folded);
+                folded.clear();
+            }
+            function.instructions = result;
+            return changed;
+        }
+
+        private int targetSuccessor(BasicBlock block, IRInstruction branch) {
+            return block.successors.indexOf(labelBlocks.get(branch.operands[0].toString()));
+        }
+
+        /** assign, x, c for the instruction defining constant variable def, or the instruction if it is that already */
+        private IRInstruction assign(IRInstruction instruction, int def) {
+            IRType type = types[def];
+            String value = format(constant[def], isFloat(type));
+            if (instruction.opCode == IRInstruction.OpCode.ASSIGN && instruction.operands[1] instanceof IRConstantOperand
+                    && ((IRConstantOperand) instruction.operands[1]).getValueString().equals(value))
+                return instruction;
+            IRInstruction assign = new IRInstruction();
+            assign.opCode = IRInstruction.OpCode.ASSIGN;
+            assign.irLineNumber = instruction.irLineNumber;
+            assign.operands = new IROperand[]{
+                    Operands.copy(instruction.operands[0], assign), new IRConstantOperand(type, value, assign)};
+            return assign;
+        }
+
+        private static IRInstruction jump(IRInstruction branch) {
+            IRInstruction jump = new IRInstruction();
+            jump.opCode = IRInstruction.OpCode.GOTO;
+            jump.irLineNumber = branch.irLineNumber;
+            jump.operands = new IROperand[]{new IRLabelOperand(branch.operands[0].toString(), jump)};
+            return jump;
+        }
+
+        /** Drop the arguments of a phi whose edges control never takes */
+        private boolean prunePhi(IRInstruction phi, BasicBlock block) {
+            boolean changed = false;
+            for (int k = Phi.argumentCount(phi) - 1; k >= 0; k--) {
+                BasicBlock predecessor = labelBlocks.get(Phi.label(phi, k));
+                if (predecessor == null || !reached[predecessor.index] || !isFeasible(predecessor, block)) {
+                    Phi.removeArgument(phi, k);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /** Put constants in place of the variables instruction i reads, where the backend takes them */
+        private boolean substitute(IRInstruction instruction, int i) {
+            boolean changed = false;
+            IROperand[] operands = instruction.operands;
+            int[] used = variables.usedOperands(i);
+            for (int j : used) {
+                int v = variables.variable(i, j);
+                if (state[v] != CONSTANT)
+                    continue;
+                int position = j;
+                if (!acceptsConstant(instruction.opCode, j)) {
+                    if (j != 1 || !swap(instruction))
+                        continue;
+                    position = 2;
+                }
+                operands[position] = new IRConstantOperand(types[v], format(constant[v], isFloat(types[v])), instruction);
+                changed = true;
+            }
+            return changed;
+        }
+
+        /**
+         * Swap the operands of an arithmetic instruction or branch whose second operand is not a
+         * constant to be, if the operation allows it
+         */
+        private boolean swap(IRInstruction instruction) {
+            IROperand[] operands = instruction.operands;
+            if (!(operands[2] instanceof IRVariableOperand) || state[variables.id(operands[2].toString())] == CONSTANT)
+                return false;
+            IRInstruction.OpCode swapped;
+            switch (instruction.opCode) {
+                case ADD:
+                case MULT:
+                case AND:
+                case OR:
+                case BREQ:
+                case BRNEQ:
+                    swapped = instruction.opCode;
+                    break;
+                case BRLT:
+                    swapped = IRInstruction.OpCode.BRGT;
+                    break;
+                case BRGT:
+                    swapped = IRInstruction.OpCode.BRLT;
+                    break;
+                default:
+                    return false;
+            }
+            instruction.opCode = swapped;
+            IROperand first = operands[1];
+            operands[1] = operands[2];
+            operands[2] = first;
+            return true;
+        }
+
+        private static boolean acceptsConstant(IRInstruction.OpCode opCode, int j) {
+            switch (opCode) {
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                case AND:
+                case OR:
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRGEQ:
+                    return j != 1;
+                case ARRAY_STORE:
+                    return j != 0;
+                default:
+                    return true;
+            }
+        }
+
+        private static boolean isBranch(IRInstruction.OpCode opCode) {
+            switch (opCode) {
+                case BREQ:
+                case BRNEQ:
+                case BRLT:
+                case BRGT:
+                case BRGEQ:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /** A constant as the IR spells it: digits, and for a float a point and no exponent */
+    static String format(int value, boolean isFloat) {
+        if (!isFloat)
+            return Integer.toString(value);
+        float f = Float.intBitsToFloat(value);
+        if (f == 0)
+            return value < 0 ? "-0.0" : "0.0";
+        // Float.toString gives the shortest digits that read back as f, but may use an exponent
+        String digits = new BigDecimal(Float.toString(f)).toPlainString();
+        return digits.indexOf('.') >= 0 ? digits : digits + ".0";
+    }
+}
@@ -0,0 +1,153 @@
+package ir.opt;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.DominatorTree;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.Variables;
+import ir.datatype.IRArrayType;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+import ir.ssa.Phi;
+import ir.ssa.SSAForm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy propagation over a function in SSA form (see SSAForm); it leaves other functions alone.
+ *
+ * In SSA form a copy t = x makes t another name for x's one value, and x's assignment dominates
+ * every read of t, so each read of t can read x instead and the copy goes. A phi whose arguments
+ * are all one variable, apart from the phi's own target coming round a loop, is such a copy too,
+ * as is a phi left with a single argument once SCCP drops the edges control never takes. Copies
+ * of copies are followed to the variable at the end of the chain, and a phi that only becomes a
+ * copy once its arguments are replaced is caught by going over the phis again.
+ *
+ * Only scalars are ever copied: no instruction assigns an array variable, an array parameter
+ * included, and stores to an array or calls that are passed it change its elements but not the
+ * variable. Neither can a call change a scalar of its caller, so a copy holds across calls.
+ * Copies of constants are constant propagation's to fold.
+ */
+public class CopyPropagation implements FunctionPass {
+
+    @Override
+    public String name() {
+        return "copy-propagation";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        if (function.instructions.isEmpty() || !SSAForm.holds(function, analyses))
+            return false;
+        List<IRInstruction> instructions = function.instructions;
+        Variables variables = analyses.variables();
+        ControlFlowGraph cfg = analyses.cfg();
+        DominatorTree dominators = analyses.dominators();
+
+        // The variable each variable is a copy of, itself if none
+        int[] source = new int[variables.size()];
+        for (int v = 0; v < source.length; v++)
+            source[v] = v;
+        // Only copies control reaches: in SSA form these never go round in a circle
+        boolean[] isCopy = new boolean[instructions.size()];
+        boolean[] reachable = new boolean[instructions.size()];
+        int copies = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            reachable[i] = dominators.isReachable(cfg.blockOf(i));
+            if (reachable[i] && instruction.opCode == IRInstruction.OpCode.ASSIGN && instruction.operands.length == 2
+                    && variables.variable(i, 1) >= 0 && sameScalarType(instruction.operands[0], instruction.operands[1])) {
+                source[variables.def(i)] = variables.variable(i, 1);
+                isCopy[i] = true;
+                copies++;
+            }
+        }
+
+        // Phis that copy one variable, until replacing their arguments finds no more
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (int i = 0; i < instructions.size(); i++) {
+                IRInstruction phi = instructions.get(i);
+                if (isCopy[i] || !reachable[i] || !Phi.isPhi(phi))
+                    continue;
+                int def = variables.def(i);
+                int copied = phiSource(phi, i, variables, source, def);
+                if (copied >= 0 && !(Phi.target(phi).type instanceof IRArrayType)) {
+                    source[def] = copied;
+                    isCopy[i] = true;
+                    copies++;
+                    found = true;
+                }
+            }
+        }
+        if (copies == 0)
+            return false;
+
+        List<IRInstruction> result = new ArrayList<>(instructions.size() - copies);
+        for (BasicBlock block : cfg.blocks) {
+            boolean removed = false;
+            boolean kept = false;
+            for (int i = block.start; i < block.end; i++) {
+                if (isCopy[i]) {
+                    removed = true;
+                    continue;
+                }
+                IRInstruction instruction = instructions.get(i);
+                for (int j : variables.usedOperands(i)) {
+                    int v = variables.variable(i, j);
+                    int s = find(source, v);
+                    if (s != v)
+                        instruction.operands[j] = new IRVariableOperand(
+                                ((IRVariableOperand) instruction.operands[j]).type, variables.name(s), instruction);
+                }
+                result.add(instruction);
+                kept |= instruction.opCode != IRInstruction.OpCode.LABEL;
+            }
+            IRInstruction jump = removed && !kept ? SSAForm.jumpOutOfEmptied(cfg, block) : null;
+            if (jump != null)
+                result.add(jump);
+        }
+        function.instructions = result;
+        return true;
+    }
+
+    /** The one variable all arguments of phi other than its target come to, or -1 */
+    private static int phiSource(IRInstruction phi, int i, Variables variables, int[] source, int def) {
+        int copied = -1;
+        for (int k = 0; k < Phi.argumentCount(phi); k++) {
+            int v = variables.variable(i, Phi.valueOperand(k));
+            if (v < 0)
+                return -1;
+            int s = find(source, v);
+            if (s == def)
+                continue;
+            if (copied >= 0 && s != copied)
+                return -1;
+            copied = s;
+        }
+        return copied;
+    }
+
+    /** The variable at the end of v's chain of copies */
+    private static int find(int[] source, int v) {
+        int root = v;
+        while (source[root] != root)
+            root = source[root];
+        while (source[v] != root) {
+            int next = source[v];
+            source[v] = root;
+            v = next;
+        }
+        return root;
+    }
+
+    private static boolean sameScalarType(IROperand target, IROperand value) {
+        IRVariableOperand a = (IRVariableOperand) target;
+        IRVariableOperand b = (IRVariableOperand) value;
+        return a.type == b.type && !(a.type instanceof IRArrayType);
+    }
+}
@@ -0,0 +1,238 @@
+package ir.opt;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.BitVectorDataflow;
+import ir.analysis.Bits;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.DefUseChains;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.ReachingDefinitions;
+import ir.analysis.Variables;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRFloatType;
+import ir.operand.IRConstantOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+import ir.ssa.Phi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes the instructions whose results nothing observable depends on, then the variables no
+ * instruction mentions any more. Works on plain IR; a function still in SSA form is left alone.
+ *
+ * What the rest of the program can see is kept: calls, returns, control flow, and stores into
+ * parameter arrays, which belong to the caller. From those, the def-use chains lead back to every
+ * assignment whose value they may read, and on to what those read; any assign, arithmetic or
+ * array load not reached is dead. Unlike removing assignments to variables that liveness finds
+ * dead, one at a time, this also removes a computation that only ever feeds itself, like a
+ * counter nothing reads but its own increment.
+ *
+ * A local array starts zeroed and dies with its call, so a store or fill into one is dead when no
+ * load that is kept and no call it is passed to can come after it; a store found live can keep
+ * a load alive, which can keep further stores, so the two are settled together.
+ *
+ * Nothing goes that could fail at run time: an int division stays unless it divides by a nonzero
+ * constant, and an array access unless RangeAnalysis proves its index in bounds.
+ */
+public class DeadCodeElimination implements FunctionPass {
+
+    @Override
+    public String name() {
+        return "dead-code";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        List<IRInstruction> instructions = function.instructions;
+        for (IRInstruction instruction : instructions)
+            if (Phi.isPhi(instruction))
+                return false;
+        int n = instructions.size();
+        ControlFlowGraph cfg = analyses.cfg();
+        Variables variables = analyses.variables();
+        DefUseChains chains = analyses.defUseChains();
+        ReachingDefinitions reaching = chains.reachingDefinitions();
+
+        // Dense bits for the local arrays
+        Set<String> parameters = new HashSet<>();
+        for (IRVariableOperand parameter : function.parameters)
+            parameters.add(parameter.getName());
+        Map<Integer, Integer> localArrays = new HashMap<>();
+        for (IRVariableOperand variable : function.variables)
+            if (variable.type instanceof IRArrayType && !parameters.contains(variable.getName()))
+                localArrays.put(variables.id(variable.getName()), localArrays.size());
+
+        boolean[] inBounds = null;
+        for (IRInstruction instruction : instructions)
+            if (accessesArray(instruction)) {
+                inBounds = analyses.ranges().provenInBounds();
+                break;
+            }
+        boolean[] removable = new boolean[n];
+        // Bit of the local array a removable store or fill writes, -1 for other instructions
+        int[] storedArray = new int[n];
+        Arrays.fill(storedArray, -1);
+        for (int i = 0; i < n; i++) {
+            IRInstruction instruction = instructions.get(i);
+            removable[i] = isRemovable(instruction, inBounds != null && inBounds[i]);
+            if (removable[i] && variables.def(i) < 0) {
+                Integer array = localArrays.get(variables.variable(i, writtenArray(instruction)));
+                if (array == null)
+                    removable[i] = false;
+                else
+                    storedArray[i] = array;
+            }
+        }
+
+        // Mark what observable instructions need and the stores kept reads may see, until stable
+        boolean[] live = new boolean[n];
+        int[] work = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i++)
+            if (!removable[i]) {
+                live[i] = true;
+                work[size++] = i;
+            }
+        while (size > 0) {
+            while (size > 0) {
+                int i = work[--size];
+                for (int j : variables.usedOperands(i))
+                    for (int d : chains.definitionIds(i, j)) {
+                        int definition = reaching.instructionOf(d);
+                        if (definition >= 0 && !live[definition]) {
+                            live[definition] = true;
+                            work[size++] = definition;
+                        }
+                    }
+            }
+            if (localArrays.isEmpty())
+                break;
+            ArrayReads reads = new ArrayReads(cfg, variables, localArrays, live);
+            for (BasicBlock block : cfg.blocks) {
+                long[] read = reads.out(block).clone();
+                for (int i = block.end - 1; i >= block.start; i--) {
+                    if (storedArray[i] >= 0 && !live[i] && Bits.get(read, storedArray[i])) {
+                        live[i] = true;
+                        work[size++] = i;
+                    }
+                    reads.step(i, read);
+                }
+            }
+        }
+
+        List<IRInstruction> kept = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            if (live[i])
+                kept.add(instructions.get(i));
+        boolean changed = kept.size() < n;
+        if (changed)
+            function.instructions = kept;
+        return pruneVariables(function, parameters) || changed;
+    }
+
+    /** Drop the declared variables no instruction mentions, parameters aside */
+    private static boolean pruneVariables(IRFunction function, Set<String> parameters) {
+        Set<String> used = new HashSet<>();
+        for (IRInstruction instruction : function.instructions)
+            for (IROperand operand : instruction.operands)
+                if (operand instanceof IRVariableOperand)
+                    used.add(operand.toString());
+        List<IRVariableOperand> kept = new ArrayList<>(function.variables.size());
+        for (IRVariableOperand variable : function.variables)
+            if (used.contains(variable.getName()) || parameters.contains(variable.getName()))
+                kept.add(variable);
+        if (kept.size() == function.variables.size())
+            return false;
+        function.variables = kept;
+        return true;
+    }
+
+    /**
+     * True if instruction is an assignment or a store that cannot fail, so that it can go when
+     * nothing reads what it writes; inBounds says whether its array index is proven in bounds
+     */
+    private static boolean isRemovable(IRInstruction instruction, boolean inBounds) {
+        IROperand[] operands = instruction.operands;
+        switch (instruction.opCode) {
+            case ASSIGN:
+                return operands.length == 2 || inBounds;
+            case ADD:
+            case SUB:
+            case MULT:
+            case AND:
+            case OR:
+                return true;
+            case DIV:
+                return ((IRVariableOperand) operands[0]).type == IRFloatType.get()
+                        || operands[2] instanceof IRConstantOperand
+                        && !((IRConstantOperand) operands[2]).getValueString().matches("-?0+");
+            case ARRAY_LOAD:
+            case ARRAY_STORE:
+                return inBounds;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean accessesArray(IRInstruction instruction) {
+        switch (instruction.opCode) {
+            case ASSIGN:
+                return instruction.operands.length == 3;
+            case ARRAY_LOAD:
+            case ARRAY_STORE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Position of the array operand a store or fill writes */
+    private static int writtenArray(IRInstruction instruction) {
+        return instruction.opCode == IRInstruction.OpCode.ARRAY_STORE ? 1 : 0;
+    }
+
+    /**
+     * Local arrays that a kept instruction may read later: a load from one, or a call it is
+     * passed to. Backward, with union; nothing kills, as a store only writes some elements.
+     */
+    private static class ArrayReads extends BitVectorDataflow {
+
+        private final Variables variables;
+        private final Map<Integer, Integer> localArrays;
+        private final boolean[] live;
+
+        ArrayReads(ControlFlowGraph cfg, Variables variables, Map<Integer, Integer> localArrays, boolean[] live) {
+            super(cfg, localArrays.size(), Direction.BACKWARD, Meet.UNION);
+            this.variables = variables;
+            this.localArrays = localArrays;
+            this.live = live;
+            for (BasicBlock block : cfg.blocks)
+                for (int i = block.start; i < block.end; i++)
+                    step(i, gen[block.index]);
+            solve();
+        }
+
+        /** Add the local arrays instruction i reads to read */
+        void step(int i, long[] read) {
+            IRInstruction instruction = cfg.function.instructions.get(i);
+            IRInstruction.OpCode opCode = instruction.opCode;
+            if (opCode != IRInstruction.OpCode.ARRAY_LOAD && opCode != IRInstruction.OpCode.CALL
+                    && opCode != IRInstruction.OpCode.CALLR || !live[i])
+                return;
+            for (int j : variables.usedOperands(i)) {
+                Integer array = localArrays.get(variables.variable(i, j));
+                if (array != null)
+                    Bits.set(read, array);
+            }
+        }
+    }
+}
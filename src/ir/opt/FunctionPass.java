@@ -0,0 +1,21 @@
+package ir.opt;
+
+import ir.IRFunction;
+import ir.analysis.FunctionAnalyses;
+
+/**
+ * A transformation of one IRFunction, run by PassManager.
+ *
+ * A pass takes what it needs from analyses, which are cached across passes and current when run
+ * is called, and returns whether it changed the function; the manager then drops them. A pass
+ * that changes anything must say so, as an instruction list edited in place at the same size
+ * looks unchanged to the cache.
+ */
+public interface FunctionPass {
+
+    /** Short name for reports, such as "unreachable-code" */
+    String name();
+
+    /** Transform function, returning true if anything changed */
+    boolean run(IRFunction function, FunctionAnalyses analyses);
+}
@@ -0,0 +1,25 @@
+package ir.opt;
+
+import ir.IRInstruction;
+import ir.operand.IRConstantOperand;
+import ir.operand.IRFunctionOperand;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+/** Operand helpers for passes that rewrite instructions */
+public final class Operands {
+
+    private Operands() {}
+
+    /** A copy of operand belonging to parent, as every instruction owns its operands */
+    public static IROperand copy(IROperand operand, IRInstruction parent) {
+        if (operand instanceof IRVariableOperand)
+            return new IRVariableOperand(((IRVariableOperand) operand).type, operand.toString(), parent);
+        if (operand instanceof IRConstantOperand)
+            return new IRConstantOperand(((IRConstantOperand) operand).type, operand.toString(), parent);
+        if (operand instanceof IRLabelOperand)
+            return new IRLabelOperand(operand.toString(), parent);
+        return new IRFunctionOperand(operand.toString(), parent);
+    }
+}
@@ -0,0 +1,131 @@
+package ir.opt;
+
+import ir.IRException;
+import ir.IRFunction;
+import ir.IRProgram;
+import ir.analysis.FunctionAnalyses;
+import ir.ssa.SSAConstruction;
+import ir.ssa.SSADestruction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a pipeline of FunctionPasses over every function of a program.
+ *
+ * Passes share each function's FunctionAnalyses: a CFG or liveness computed for one pass is
+ * reused by the next, and dropped only after a pass reports a change. Each pass runs once per
+ * function, in the order added.
+ *
+ * For every pass, the manager records the wall time it took, how many runs changed something and
+ * the instruction counts before and after, summed over functions (see report).
+ */
+public class PassManager {
+
+    public static final int MAX_LEVEL = 2;
+
+    /** Wall time and effect of one pass of the pipeline, over all functions */
+    public static class PassStatistics {
+        public final String name;
+        public long nanos;
+        public int runs;
+        public int changes;
+        public long instructionsBefore;
+        public long instructionsAfter;
+
+        PassStatistics(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<FunctionPass> passes = new ArrayList<>();
+    private final List<PassStatistics> statistics = new ArrayList<>();
+
+    /**
+     * The pipeline of an optimization level: 0 runs nothing, 1 the cheap clean-ups, and 2 adds the
+     * optimizations on SSA form. One run of it is all a level does, as running it again finds next
+     * to nothing more for the compile time it costs.
+     */
+    public static PassManager forLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL)
+            throw new IllegalArgumentException("No optimization level " + level + "; use 0 to " + MAX_LEVEL);
+        PassManager manager = new PassManager();
+        if (level >= 1)
+            manager.add(new UnreachableCodeElimination());
+        if (level >= 2) {
+            manager.add(new SSAConstruction());
+            manager.add(new ConstantPropagation());
+            manager.add(new CopyPropagation());
+            manager.add(new SSADestruction());
+        }
+        if (level >= 1)
+            manager.add(new DeadCodeElimination());
+        return manager;
+    }
+
+    /** Run pass after the passes added so far */
+    public PassManager add(FunctionPass pass) {
+        passes.add(pass);
+        statistics.add(new PassStatistics(pass.name()));
+        return this;
+    }
+
+    public List<FunctionPass> passes() {
+        return Collections.unmodifiableList(passes);
+    }
+
+    /** Optimize every function of program in place */
+    public void run(IRProgram program) throws IRException {
+        for (IRFunction function : program.functions)
+            run(function);
+    }
+
+    /** Optimize function in place, returning true if any pass changed it */
+    public boolean run(IRFunction function) throws IRException {
+        if (passes.isEmpty())
+            return false;
+        function.load();
+        boolean changed = false;
+        for (int p = 0; p < passes.size(); p++)
+            changed |= run(p, function);
+        return changed;
+    }
+
+    private boolean run(int p, IRFunction function) {
+        PassStatistics stats = statistics.get(p);
+        int before = function.instructions.size();
+        long start = System.nanoTime();
+        boolean changed = passes.get(p).run(function, FunctionAnalyses.of(function));
+        stats.nanos += System.nanoTime() - start;
+        stats.runs++;
+        stats.instructionsBefore += before;
+        stats.instructionsAfter += function.instructions.size();
+        if (changed) {
+            stats.changes++;
+            FunctionAnalyses.invalidate(function);
+        }
+        return changed;
+    }
+
+    public List<PassStatistics> statistics() {
+        return Collections.unmodifiableList(statistics);
+    }
+
+    /** One line per pass: time, runs that changed something, and instructions before and after */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-24s %10s %9s %12s %12s %9s%n",
+                "pass", "time (ms)", "changed", "before", "after", "delta"));
+        long totalNanos = 0;
+        for (PassStatistics stats : statistics) {
+            totalNanos += stats.nanos;
+            report.append(String.format("%-24s %10.3f %4d/%-4d %12d %12d %+9d%n",
+                    stats.name, stats.nanos / 1e6, stats.changes, stats.runs,
+                    stats.instructionsBefore, stats.instructionsAfter,
+                    stats.instructionsAfter - stats.instructionsBefore));
+        }
+        report.append(String.format("%-24s %10.3f%n", "total", totalNanos / 1e6));
+        return report.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package ir.opt;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.FunctionAnalyses;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes the basic blocks control never reaches from the entry: code after a goto or return up
+ * to the next label nothing branches to. Their labels go with them, as only other unreached
+ * blocks can branch there.
+ */
+public class UnreachableCodeElimination implements FunctionPass {
+
+    @Override
+    public String name() {
+        return "unreachable-code";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        ControlFlowGraph cfg = analyses.cfg();
+        List<BasicBlock> reached = cfg.reversePostOrder();
+        if (reached.size() == cfg.blocks.size())
+            return false;
+
+        boolean[] isReached = new boolean[cfg.blocks.size()];
+        for (BasicBlock block : reached)
+            isReached[block.index] = true;
+        List<IRInstruction> kept = new ArrayList<>(function.instructions.size());
+        for (BasicBlock block : cfg.blocks)
+            if (isReached[block.index])
+                kept.addAll(block.instructions());
+        if (kept.size() == function.instructions.size())
+            return false;
+        function.instructions = kept;
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package ir.ssa;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Variable and label names no part of a function uses yet */
+class FreshNames {
+
+    private final Set<String> taken = new HashSet<>();
+    private final Map<String, Integer> next = new HashMap<>();
+
+    FreshNames(IRFunction function) {
+        for (IRVariableOperand param : function.parameters)
+            taken.add(param.getName());
+        for (IRVariableOperand variable : function.variables)
+            taken.add(variable.getName());
+        for (IRInstruction instruction : function.instructions)
+            for (IROperand operand : instruction.operands)
+                if (operand instanceof IRVariableOperand || operand instanceof IRLabelOperand)
+                    taken.add(operand.toString());
+    }
+
+    /** A new name of the form base_n */
+    String fresh(String base) {
+        int n = next.getOrDefault(base, 1);
+        String name;
+        do {
+            name = base + "_" + n++;
+        } while (taken.contains(name));
+        next.put(base, n);
+        taken.add(name);
+        return name;
+    }
+}
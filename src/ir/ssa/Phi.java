@@ -0,0 +1,72 @@
+package ir.ssa;
+
+import ir.IRInstruction;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.Arrays;
+
+/**
+ * Reading and editing phi instructions: phi, x, v1, L1, v2, L2, ... where x is the variable the
+ * phi defines and vk the value it takes when control comes from the block labelled Lk. Values are
+ * variables or, once constants are propagated, constants.
+ */
+public final class Phi {
+
+    private Phi() {}
+
+    /** A phi defining target, with room for one argument per predecessor label, values still unset */
+    public static IRInstruction create(IRVariableOperand target, String[] labels, int irLineNumber) {
+        IRInstruction phi = new IRInstruction();
+        phi.opCode = IRInstruction.OpCode.PHI;
+        phi.irLineNumber = irLineNumber;
+        IROperand[] operands = new IROperand[1 + 2 * labels.length];
+        operands[0] = new IRVariableOperand(target.type, target.getName(), phi);
+        for (int k = 0; k < labels.length; k++)
+            operands[2 + 2 * k] = new IRLabelOperand(labels[k], phi);
+        phi.operands = operands;
+        return phi;
+    }
+
+    public static boolean isPhi(IRInstruction instruction) {
+        return instruction.opCode == IRInstruction.OpCode.PHI;
+    }
+
+    public static IRVariableOperand target(IRInstruction phi) {
+        return (IRVariableOperand) phi.operands[0];
+    }
+
+    public static int argumentCount(IRInstruction phi) {
+        return (phi.operands.length - 1) / 2;
+    }
+
+    /** Operand position of the value of argument k */
+    public static int valueOperand(int k) {
+        return 1 + 2 * k;
+    }
+
+    public static IROperand value(IRInstruction phi, int k) {
+        return phi.operands[valueOperand(k)];
+    }
+
+    public static String label(IRInstruction phi, int k) {
+        return ((IRLabelOperand) phi.operands[2 + 2 * k]).getName();
+    }
+
+    /** The argument for the block labelled label, or -1 */
+    public static int indexOf(IRInstruction phi, String label) {
+        for (int k = 0; k < argumentCount(phi); k++)
+            if (label(phi, k).equals(label))
+                return k;
+        return -1;
+    }
+
+    /** Drop argument k, as when its edge goes away */
+    public static void removeArgument(IRInstruction phi, int k) {
+        IROperand[] operands = phi.operands;
+        IROperand[] kept = Arrays.copyOf(operands, operands.length - 2);
+        System.arraycopy(operands, 3 + 2 * k, kept, 1 + 2 * k, operands.length - 3 - 2 * k);
+        phi.operands = kept;
+    }
+}
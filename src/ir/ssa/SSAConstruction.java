@@ -0,0 +1,303 @@
+package ir.ssa;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.DominatorTree;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.Liveness;
+import ir.analysis.Variables;
+import ir.datatype.IRArrayType;
+import ir.opt.FunctionPass;
+import ir.opt.UnreachableCodeElimination;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Puts a function into SSA form: every assignment gets a variable of its own, and where the
+ * assignments of a variable meet, a phi (see Phi) merges them.
+ *
+ * Phis go at the iterated dominance frontier of each variable's assignments, and only where the
+ * variable is live (pruned SSA), so a variable assigned on both sides of a branch and dead after
+ * the join gets none. Renaming then walks the dominator tree, giving each assignment a fresh name
+ * (x_1, x_2, ...) and each read the name of the assignment that reaches it. A variable keeps its
+ * own name for its value on entry: a parameter's argument, or a local's initial zero. Arrays are
+ * never renamed, as nothing assigns an array variable.
+ *
+ * Before that, unreachable blocks are removed, a goto is put in front of an entry block that
+ * branches lead back to (so the entry has no predecessors), and every predecessor of a block with
+ * phis gets a label if it has none, for the phis to name it by. The new versions are not declared;
+ * SSADestruction declares the ones that survive.
+ */
+public class SSAConstruction implements FunctionPass {
+
+    /** Base name of the labels SSA construction and destruction add */
+    static final String LABEL_BASE = "ssa";
+
+    @Override
+    public String name() {
+        return "ssa-construction";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        for (IRInstruction instruction : function.instructions)
+            if (Phi.isPhi(instruction))
+                return false;
+
+        if (new UnreachableCodeElimination().run(function, analyses))
+            analyses = refresh(function);
+        if (!analyses.cfg().entry.predecessors.isEmpty()) {
+            addEntryGoto(function, analyses.cfg().entry);
+            analyses = refresh(function);
+        }
+        if (function.instructions.isEmpty())
+            return false;
+
+        FreshNames names = new FreshNames(function);
+        placePhis(function, analyses, names);
+        analyses = refresh(function);
+        rename(function, analyses, names);
+        return true;
+    }
+
+    private static FunctionAnalyses refresh(IRFunction function) {
+        FunctionAnalyses.invalidate(function);
+        return FunctionAnalyses.of(function);
+    }
+
+    /** Jump from a new entry block to the old one, which starts with a label as something branches there */
+    private static void addEntryGoto(IRFunction function, BasicBlock entry) {
+        IRInstruction first = entry.instructions().get(0);
+        IRInstruction jump = new IRInstruction();
+        jump.opCode = IRInstruction.OpCode.GOTO;
+        jump.irLineNumber = first.irLineNumber;
+        jump.operands = new IROperand[]{new IRLabelOperand(first.operands[0].toString(), jump)};
+        List<IRInstruction> instructions = new ArrayList<>(function.instructions.size() + 1);
+        instructions.add(jump);
+        instructions.addAll(function.instructions);
+        function.instructions = instructions;
+    }
+
+    /** Insert pruned phis, with placeholder values, and the labels they need */
+    private static void placePhis(IRFunction function, FunctionAnalyses analyses, FreshNames names) {
+        ControlFlowGraph cfg = analyses.cfg();
+        DominatorTree dominators = analyses.dominators();
+        Variables variables = analyses.variables();
+        Liveness liveness = analyses.liveness();
+        int blockCount = cfg.blocks.size();
+        int variableCount = variables.size();
+
+        List<List<BasicBlock>> frontiers = dominanceFrontiers(cfg, dominators);
+
+        // Blocks assigning each variable, and a variable's type from any of its operands
+        List<List<BasicBlock>> defBlocks = new ArrayList<>(variableCount);
+        for (int v = 0; v < variableCount; v++)
+            defBlocks.add(new ArrayList<>());
+        IRVariableOperand[] sample = new IRVariableOperand[variableCount];
+        int[] lastDefBlock = new int[variableCount];
+        Arrays.fill(lastDefBlock, -1);
+        for (BasicBlock block : cfg.blocks)
+            for (int i = block.start; i < block.end; i++) {
+                int def = variables.def(i);
+                if (def >= 0 && lastDefBlock[def] != block.index) {
+                    lastDefBlock[def] = block.index;
+                    defBlocks.get(def).add(block);
+                    sample[def] = (IRVariableOperand) function.instructions.get(i).operands[0];
+                }
+            }
+
+        // Iterated dominance frontiers, keeping the phis of variables live into their block
+        List<List<Integer>> phis = new ArrayList<>(blockCount);
+        for (int b = 0; b < blockCount; b++)
+            phis.add(new ArrayList<>());
+        int[] hasPhi = new int[blockCount];
+        int[] queued = new int[blockCount];
+        Arrays.fill(hasPhi, -1);
+        Arrays.fill(queued, -1);
+        List<BasicBlock> work = new ArrayList<>();
+        for (int v = 0; v < variableCount; v++) {
+            if (sample[v] == null || sample[v].type instanceof IRArrayType)
+                continue;
+            work.clear();
+            for (BasicBlock block : defBlocks.get(v)) {
+                queued[block.index] = v;
+                work.add(block);
+            }
+            while (!work.isEmpty()) {
+                BasicBlock block = work.remove(work.size() - 1);
+                for (BasicBlock frontier : frontiers.get(block.index)) {
+                    if (hasPhi[frontier.index] == v || !liveness.isLiveIn(frontier, v))
+                        continue;
+                    hasPhi[frontier.index] = v;
+                    phis.get(frontier.index).add(v);
+                    if (queued[frontier.index] != v) {
+                        queued[frontier.index] = v;
+                        work.add(frontier);
+                    }
+                }
+            }
+        }
+
+        // Label every predecessor of a block with phis
+        String[] labels = new String[blockCount];
+        boolean[] needsLabel = new boolean[blockCount];
+        for (BasicBlock block : cfg.blocks) {
+            IRInstruction first = block.size() == 0 ? null : block.instructions().get(0);
+            if (first != null && first.opCode == IRInstruction.OpCode.LABEL)
+                labels[block.index] = first.operands[0].toString();
+            if (!phis.get(block.index).isEmpty())
+                for (BasicBlock predecessor : block.predecessors)
+                    needsLabel[predecessor.index] = true;
+        }
+        for (BasicBlock block : cfg.blocks)
+            if (needsLabel[block.index] && labels[block.index] == null)
+                labels[block.index] = names.fresh(LABEL_BASE);
+
+        List<IRInstruction> instructions = new ArrayList<>(function.instructions.size());
+        for (BasicBlock block : cfg.blocks) {
+            List<IRInstruction> code = block.instructions();
+            int line = code.isEmpty() ? 0 : code.get(0).irLineNumber;
+            IRInstruction first = code.isEmpty() ? null : code.get(0);
+            if (labels[block.index] != null && (first == null || first.opCode != IRInstruction.OpCode.LABEL)) {
+                IRInstruction label = new IRInstruction();
+                label.opCode = IRInstruction.OpCode.LABEL;
+                label.irLineNumber = line;
+                label.operands = new IROperand[]{new IRLabelOperand(labels[block.index], label)};
+                instructions.add(label);
+            }
+            int i = 0;
+            while (i < code.size() && code.get(i).opCode == IRInstruction.OpCode.LABEL)
+                instructions.add(code.get(i++));
+            List<Integer> blockPhis = phis.get(block.index);
+            if (!blockPhis.isEmpty()) {
+                String[] predecessorLabels = new String[block.predecessors.size()];
+                for (int k = 0; k < predecessorLabels.length; k++)
+                    predecessorLabels[k] = labels[block.predecessors.get(k).index];
+                for (int v : blockPhis)
+                    instructions.add(Phi.create(sample[v], predecessorLabels, line));
+            }
+            while (i < code.size())
+                instructions.add(code.get(i++));
+        }
+        function.instructions = instructions;
+    }
+
+    /**
+     * The dominance frontier of each block: the blocks it does not strictly dominate but has an
+     * edge into, directly or through blocks it dominates
+     */
+    private static List<List<BasicBlock>> dominanceFrontiers(ControlFlowGraph cfg, DominatorTree dominators) {
+        int n = cfg.blocks.size();
+        List<List<BasicBlock>> frontiers = new ArrayList<>(n);
+        for (int b = 0; b < n; b++)
+            frontiers.add(new ArrayList<>());
+        int[] added = new int[n];
+        Arrays.fill(added, -1);
+        for (BasicBlock block : cfg.blocks) {
+            if (block.predecessors.size() < 2)
+                continue;
+            BasicBlock idom = dominators.idom(block);
+            for (BasicBlock predecessor : block.predecessors)
+                for (BasicBlock runner = predecessor; runner != null && runner != idom; runner = dominators.idom(runner)) {
+                    if (added[runner.index] == block.index)
+                        break;
+                    added[runner.index] = block.index;
+                    frontiers.get(runner.index).add(block);
+                }
+        }
+        return frontiers;
+    }
+
+    /** Give every assignment a fresh name and every read the name reaching it, in dominator-tree order */
+    private static void rename(IRFunction function, FunctionAnalyses analyses, FreshNames names) {
+        ControlFlowGraph cfg = analyses.cfg();
+        DominatorTree dominators = analyses.dominators();
+        Variables variables = analyses.variables();
+        List<IRInstruction> instructions = function.instructions;
+        int variableCount = variables.size();
+
+        // Current name of each variable, with an undo log to restore it when leaving a subtree
+        String[] current = new String[variableCount];
+        boolean[] renamed = new boolean[variableCount];
+        for (int v = 0; v < variableCount; v++)
+            current[v] = variables.name(v);
+        for (int i = 0; i < instructions.size(); i++) {
+            int def = variables.def(i);
+            if (def >= 0 && !(((IRVariableOperand) instructions.get(i).operands[0]).type instanceof IRArrayType))
+                renamed[def] = true;
+        }
+        int[] logVariable = new int[16];
+        String[] logName = new String[16];
+        int logSize = 0;
+
+        // Explicit stack of dominator-tree blocks; a negative entry leaves block -entry - 1
+        int[] stack = new int[cfg.blocks.size() * 2 + 2];
+        int[] marks = new int[cfg.blocks.size()];
+        int depth = 0;
+        stack[depth++] = cfg.entry.index;
+        while (depth > 0) {
+            int top = stack[--depth];
+            if (top < 0) {
+                int mark = marks[-top - 1];
+                while (logSize > mark) {
+                    logSize--;
+                    current[logVariable[logSize]] = logName[logSize];
+                }
+                continue;
+            }
+            BasicBlock block = cfg.blocks.get(top);
+            marks[top] = logSize;
+            stack[depth++] = -top - 1;
+
+            for (int i = block.start; i < block.end; i++) {
+                IRInstruction instruction = instructions.get(i);
+                if (!Phi.isPhi(instruction))
+                    for (int j : variables.usedOperands(i)) {
+                        int v = variables.variable(i, j);
+                        if (renamed[v])
+                            instruction.operands[j] = variable(instruction.operands[j], current[v], instruction);
+                    }
+                int def = variables.def(i);
+                if (def >= 0 && renamed[def]) {
+                    if (logSize == logVariable.length) {
+                        logVariable = Arrays.copyOf(logVariable, logSize * 2);
+                        logName = Arrays.copyOf(logName, logSize * 2);
+                    }
+                    logVariable[logSize] = def;
+                    logName[logSize++] = current[def];
+                    current[def] = names.fresh(variables.name(def));
+                    instruction.operands[0] = variable(instruction.operands[0], current[def], instruction);
+                }
+            }
+
+            // Fill in this block's values in the phis of its successors
+            for (BasicBlock successor : block.successors)
+                for (int i = successor.start; i < successor.end; i++) {
+                    IRInstruction phi = instructions.get(i);
+                    if (phi.opCode == IRInstruction.OpCode.LABEL)
+                        continue;
+                    if (!Phi.isPhi(phi))
+                        break;
+                    int k = Phi.indexOf(phi, block.instructions().get(0).operands[0].toString());
+                    // variables holds the target as it was before renaming
+                    String value = current[variables.variable(i, 0)];
+                    phi.operands[Phi.valueOperand(k)] = variable(phi.operands[0], value, phi);
+                }
+
+            for (BasicBlock child : dominators.children(block))
+                stack[depth++] = child.index;
+        }
+    }
+
+    /** A variable operand named name, of the type of like */
+    private static IRVariableOperand variable(IROperand like, String name, IRInstruction parent) {
+        return new IRVariableOperand(((IRVariableOperand) like).type, name, parent);
+    }
+}
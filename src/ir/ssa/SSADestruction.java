@@ -0,0 +1,489 @@
+package ir.ssa;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.Bits;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.Liveness;
+import ir.analysis.LoopNest;
+import ir.analysis.Variables;
+import ir.datatype.IRArrayType;
+import ir.datatype.IRType;
+import ir.opt.FunctionPass;
+import ir.opt.Operands;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+import ir.operand.IRVariableOperand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Takes a function out of SSA form, back to the plain IR the interpreter and the backend run.
+ *
+ * Each phi x = phi(v1, ..., vn) becomes a fresh variable t: the edge from the k-th predecessor
+ * copies vk into t, and x is copied from t where the phi stood. The copies of one edge together
+ * act as a parallel copy, and as every t is fresh, doing them one after another is the same. A
+ * copy goes before the jump ending its predecessor, or right after a branch for the edge it
+ * falls through. As only the phi's block reads t, the copies for the edge a branch takes can go
+ * before the branch too, where they run either way, so no edge needs a block of its own and no
+ * loop gains a jump.
+ *
+ * That leaves many copies, which coalescing then removes: the two sides of a copy share a name
+ * unless their live ranges overlap (the interference test of Chaitin's allocator, where a copy's
+ * target does not conflict with its source). Copies in deeper loops are tried first, then each
+ * version SSA construction made of a variable with the variable itself. A merged variable is named
+ * after its parameter if it has one (two parameters never merge), else after its earliest declared
+ * variable, so what SSA construction split up mostly gets its name back.
+ * Labels added for SSA that no branch targets are dropped, and surviving new variables declared.
+ */
+public class SSADestruction implements FunctionPass {
+
+    @Override
+    public String name() {
+        return "ssa-destruction";
+    }
+
+    @Override
+    public boolean run(IRFunction function, FunctionAnalyses analyses) {
+        FreshNames names = new FreshNames(function);
+        boolean changed = removePhis(function, analyses, names);
+        if (changed) {
+            FunctionAnalyses.invalidate(function);
+            analyses = FunctionAnalyses.of(function);
+        }
+        changed |= coalesce(function, analyses);
+        changed |= cleanUp(function);
+        declare(function);
+        return changed;
+    }
+
+    /** Replace phis with copies on their incoming edges */
+    private static boolean removePhis(IRFunction function, FunctionAnalyses analyses, FreshNames names) {
+        ControlFlowGraph cfg = analyses.cfg();
+        List<IRInstruction> instructions = function.instructions;
+        boolean hasPhis = false;
+        for (IRInstruction instruction : instructions)
+            hasPhis |= Phi.isPhi(instruction);
+        if (!hasPhis)
+            return false;
+
+        Map<String, BasicBlock> labelBlocks = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++)
+            if (instructions.get(i).opCode == IRInstruction.OpCode.LABEL)
+                labelBlocks.put(instructions.get(i).operands[0].toString(), cfg.blockOf(i));
+
+        // Copies per edge, keyed by the edge's source and target block
+        Map<Long, List<IRInstruction>> edgeCopies = new HashMap<>();
+        // What replaces each phi
+        Map<IRInstruction, IRInstruction> replacements = new HashMap<>();
+        for (BasicBlock block : cfg.blocks)
+            for (IRInstruction phi : block.instructions()) {
+                if (!Phi.isPhi(phi))
+                    continue;
+                IRVariableOperand target = Phi.target(phi);
+                String temp = names.fresh(target.getName());
+                replacements.put(phi, copy(target.type, target.getName(), new IRVariableOperand(target.type, temp, null),
+                        phi.irLineNumber));
+                for (BasicBlock predecessor : block.predecessors) {
+                    IROperand value = null;
+                    for (int k = 0; k < Phi.argumentCount(phi) && value == null; k++)
+                        if (labelBlocks.get(Phi.label(phi, k)) == predecessor)
+                            value = Phi.value(phi, k);
+                    if (value == null)
+                        throw new IllegalStateException("phi for " + target + " in " + function.name
+                                + " has no value for a predecessor");
+                    edgeCopies.computeIfAbsent(edge(predecessor, block), e -> new ArrayList<>())
+                            .add(copy(target.type, temp, value, phi.irLineNumber));
+                }
+            }
+
+        List<IRInstruction> result = new ArrayList<>(instructions.size() + edgeCopies.size() * 2);
+        for (BasicBlock block : cfg.blocks) {
+            List<IRInstruction> code = block.instructions();
+            IRInstruction last = block.last();
+            boolean jumps = last != null && isJump(last.opCode);
+            int bodyEnd = jumps ? code.size() - 1 : code.size();
+            boolean copied = false;
+            for (int i = 0; i < bodyEnd; i++) {
+                IRInstruction instruction = code.get(i);
+                IRInstruction replacement = replacements.get(instruction);
+                if (replacement == null) {
+                    result.add(instruction);
+                    continue;
+                }
+                // With a single predecessor the edge's copies can go right here
+                if (!copied && block.predecessors.size() == 1) {
+                    result.addAll(edgeCopies.get(edge(block.predecessors.get(0), block)));
+                    copied = true;
+                }
+                result.add(replacement);
+            }
+
+            List<IRInstruction> fallThrough = null;
+            for (BasicBlock successor : block.successors) {
+                List<IRInstruction> copies = edgeCopies.get(edge(block, successor));
+                if (copies == null)
+                    continue;
+                if (successor.predecessors.size() == 1) {
+                    // Placed with the successor's phis instead
+                    continue;
+                } else if (block.successors.size() > 1 && successor.index == block.index + 1
+                        && labelBlocks.get(last.operands[0].toString()) != successor) {
+                    // The fall-through edge: between the branch and the successor
+                    fallThrough = copies;
+                } else {
+                    // Before the jump; on a branch these write temps only the target's phis read
+                    result.addAll(copies);
+                }
+            }
+            if (jumps)
+                result.add(last);
+            if (fallThrough != null)
+                result.addAll(fallThrough);
+        }
+        function.instructions = result;
+        return true;
+    }
+
+    private static long edge(BasicBlock from, BasicBlock to) {
+        return (long) from.index << 32 | to.index;
+    }
+
+    private static boolean isJump(IRInstruction.OpCode opCode) {
+        switch (opCode) {
+            case GOTO:
+            case BREQ:
+            case BRNEQ:
+            case BRLT:
+            case BRGT:
+            case BRGEQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static IRInstruction copy(IRType type, String target, IROperand value, int line) {
+        IRInstruction copy = new IRInstruction();
+        copy.opCode = IRInstruction.OpCode.ASSIGN;
+        copy.irLineNumber = line;
+        copy.operands = new IROperand[]{new IRVariableOperand(type, target, copy), Operands.copy(value, copy)};
+        return copy;
+    }
+
+    /** Merge the two sides of copies whose live ranges do not overlap, and drop the copies that become x = x */
+    private static boolean coalesce(IRFunction function, FunctionAnalyses analyses) {
+        ControlFlowGraph cfg = analyses.cfg();
+        Variables variables = analyses.variables();
+        List<IRInstruction> instructions = function.instructions;
+        int variableCount = variables.size();
+
+        // Pairs to merge: the two sides of copies between scalars, in deeper loops first, then each
+        // version SSA made of a variable (x_1 of x, x_1_1 of x_1) with the variable
+        List<Integer> copies = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            int source = copySource(instructions.get(i), variables, i);
+            if (source >= 0 && source != variables.def(i))
+                copies.add(i);
+        }
+        LoopNest loops = analyses.loops();
+        copies.sort((a, b) -> Integer.compare(loops.depth(cfg.blockOf(b)), loops.depth(cfg.blockOf(a))));
+        List<int[]> pairs = new ArrayList<>();
+        for (int i : copies)
+            pairs.add(new int[]{variables.def(i), copySource(instructions.get(i), variables, i)});
+        IRType[] types = types(function, variables);
+        for (int v = 0; v < variableCount; v++) {
+            int origin = origin(variables, v);
+            if (origin >= 0 && types[origin] == types[v] && !(types[v] instanceof IRArrayType))
+                pairs.add(new int[]{v, origin});
+        }
+        if (pairs.isEmpty())
+            return false;
+        boolean[] candidate = new boolean[variableCount];
+        for (int[] pair : pairs) {
+            candidate[pair[0]] = true;
+            candidate[pair[1]] = true;
+        }
+
+        // Interference among those variables: one is assigned where the other is live
+        List<Set<Integer>> interference = new ArrayList<>(variableCount);
+        for (int v = 0; v < variableCount; v++)
+            interference.add(candidate[v] ? new HashSet<>() : null);
+        Liveness liveness = analyses.liveness();
+        for (BasicBlock block : cfg.blocks) {
+            long[] live = liveness.out(block).clone();
+            for (int i = block.end - 1; i >= block.start; i--) {
+                int def = variables.def(i);
+                if (def >= 0) {
+                    if (candidate[def]) {
+                        int source = copySource(instructions.get(i), variables, i);
+                        for (int v = Bits.next(live, 0); v >= 0; v = Bits.next(live, v + 1))
+                            if (v != def && v != source && candidate[v]) {
+                                interference.get(def).add(v);
+                                interference.get(v).add(def);
+                            }
+                    }
+                    Bits.clear(live, def);
+                }
+                for (int j : variables.usedOperands(i))
+                    Bits.set(live, variables.variable(i, j));
+            }
+        }
+        // Everything live on entry gets its value at once
+        long[] entryLive = liveness.in(cfg.entry);
+        for (int v = Bits.next(entryLive, 0); v >= 0; v = Bits.next(entryLive, v + 1))
+            for (int w = Bits.next(entryLive, v + 1); w >= 0; w = Bits.next(entryLive, w + 1))
+                if (candidate[v] && candidate[w]) {
+                    interference.get(v).add(w);
+                    interference.get(w).add(v);
+                }
+
+        // Union-find over variables; a root holds its class's members and interference
+        int paramCount = function.parameters.size();
+        int[] representative = new int[variableCount];
+        List<List<Integer>> members = new ArrayList<>(variableCount);
+        for (int v = 0; v < variableCount; v++) {
+            representative[v] = v;
+            List<Integer> self = new ArrayList<>(1);
+            self.add(v);
+            members.add(self);
+        }
+        boolean merged = false;
+        for (int[] pair : pairs) {
+            int a = find(representative, pair[0]);
+            int b = find(representative, pair[1]);
+            if (a == b || hasParameter(members.get(a), paramCount) && hasParameter(members.get(b), paramCount))
+                continue;
+            if (members.get(a).size() < members.get(b).size()) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            Set<Integer> conflicts = interference.get(a);
+            boolean interferes = false;
+            for (int m : members.get(b))
+                if (conflicts.contains(m)) {
+                    interferes = true;
+                    break;
+                }
+            if (interferes)
+                continue;
+            representative[b] = a;
+            members.get(a).addAll(members.get(b));
+            conflicts.addAll(interference.get(b));
+            members.set(b, null);
+            interference.set(b, null);
+            merged = true;
+        }
+        if (!merged)
+            return false;
+
+        // Name each class after its earliest variable: a parameter, then a declared one
+        String[] names = new String[variableCount];
+        for (int v = 0; v < variableCount; v++) {
+            List<Integer> group = members.get(find(representative, v));
+            int first = Integer.MAX_VALUE;
+            for (int m : group)
+                first = Math.min(first, m);
+            names[v] = variables.name(first);
+        }
+        List<IRInstruction> result = new ArrayList<>(instructions.size());
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            IROperand[] operands = instruction.operands;
+            for (int j = 0; j < operands.length; j++) {
+                int v = variables.variable(i, j);
+                if (v >= 0 && !names[v].equals(operands[j].toString()))
+                    operands[j] = new IRVariableOperand(((IRVariableOperand) operands[j]).type, names[v], instruction);
+            }
+            int source = copySource(instruction, variables, i);
+            if (source < 0 || !names[source].equals(names[variables.def(i)]))
+                result.add(instruction);
+        }
+        function.instructions = result;
+        return true;
+    }
+
+    /** The variable SSA named v after, x for x_1, or -1 */
+    private static int origin(Variables variables, int v) {
+        String name = variables.name(v);
+        int underscore = name.lastIndexOf('_');
+        if (underscore <= 0 || underscore == name.length() - 1)
+            return -1;
+        for (int i = underscore + 1; i < name.length(); i++)
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        return variables.id(name.substring(0, underscore));
+    }
+
+    /** The type of each variable, from its declaration or any operand naming it */
+    private static IRType[] types(IRFunction function, Variables variables) {
+        IRType[] types = new IRType[variables.size()];
+        for (IRVariableOperand param : function.parameters)
+            types[variables.id(param.getName())] = param.type;
+        for (IRVariableOperand variable : function.variables)
+            types[variables.id(variable.getName())] = variable.type;
+        for (IRInstruction instruction : function.instructions)
+            for (IROperand operand : instruction.operands)
+                if (operand instanceof IRVariableOperand)
+                    types[variables.id(operand.toString())] = ((IRVariableOperand) operand).type;
+        return types;
+    }
+
+    /** The variable a scalar copy x = y reads, or -1 if instruction i is not one */
+    private static int copySource(IRInstruction instruction, Variables variables, int i) {
+        if (instruction.opCode != IRInstruction.OpCode.ASSIGN || instruction.operands.length != 2)
+            return -1;
+        return variables.variable(i, 1);
+    }
+
+    private static boolean hasParameter(List<Integer> group, int paramCount) {
+        for (int v : group)
+            if (v < paramCount)
+                return true;
+        return false;
+    }
+
+    private static int find(int[] representative, int x) {
+        int root = x;
+        while (representative[root] != root)
+            root = representative[root];
+        while (representative[x] != root) {
+            int next = representative[x];
+            representative[x] = root;
+            x = next;
+        }
+        return root;
+    }
+
+    /**
+     * Tidy up after SSA: branches to an SSA label whose block only jumps on (a block whose
+     * copies were all coalesced away) go straight to the destination, code after a goto or return
+     * up to the next label is dropped, as is a goto to a label right after it, and then any SSA
+     * label nothing branches to
+     */
+    private static boolean cleanUp(IRFunction function) {
+        List<IRInstruction> instructions = function.instructions;
+
+        // Where each SSA label that only jumps on leads
+        Map<String, String> forward = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).opCode != IRInstruction.OpCode.LABEL)
+                continue;
+            int j = i;
+            while (j < instructions.size() && instructions.get(j).opCode == IRInstruction.OpCode.LABEL)
+                j++;
+            if (j < instructions.size() && instructions.get(j).opCode == IRInstruction.OpCode.GOTO)
+                for (int k = i; k < j; k++) {
+                    String label = instructions.get(k).operands[0].toString();
+                    if (isSSALabel(label))
+                        forward.put(label, instructions.get(j).operands[0].toString());
+                }
+            i = j - 1;
+        }
+        boolean changed = false;
+        for (IRInstruction instruction : instructions) {
+            if (!isJump(instruction.opCode))
+                continue;
+            String target = instruction.operands[0].toString();
+            String destination = target;
+            // Bounded, in case of a cycle of gotos
+            for (int n = 0; n < forward.size() && forward.containsKey(destination); n++)
+                destination = forward.get(destination);
+            if (!destination.equals(target)) {
+                instruction.operands[0] = new IRLabelOperand(destination, instruction);
+                changed = true;
+            }
+        }
+
+        // Dropping a label can leave code behind a goto dead, and dropping a goto a label unused
+        List<IRInstruction> result = instructions;
+        int size;
+        do {
+            size = result.size();
+            result = dropUnused(dropDeadCode(result));
+        } while (result.size() < size);
+        if (!changed && result.size() == instructions.size())
+            return false;
+        function.instructions = result;
+        return true;
+    }
+
+    /** Drop code after a goto or return up to the next label, and gotos to the next label */
+    private static List<IRInstruction> dropDeadCode(List<IRInstruction> instructions) {
+        List<IRInstruction> result = new ArrayList<>(instructions.size());
+        boolean reachable = true;
+        for (int i = 0; i < instructions.size(); i++) {
+            IRInstruction instruction = instructions.get(i);
+            if (instruction.opCode == IRInstruction.OpCode.LABEL)
+                reachable = true;
+            if (!reachable)
+                continue;
+            if (instruction.opCode == IRInstruction.OpCode.GOTO && jumpsToNext(instructions, i))
+                continue;
+            result.add(instruction);
+            if (instruction.opCode == IRInstruction.OpCode.GOTO || instruction.opCode == IRInstruction.OpCode.RETURN)
+                reachable = false;
+        }
+        return result;
+    }
+
+    /** Drop SSA labels nothing branches to */
+    private static List<IRInstruction> dropUnused(List<IRInstruction> instructions) {
+        Set<String> targets = new HashSet<>();
+        for (IRInstruction instruction : instructions)
+            if (isJump(instruction.opCode))
+                targets.add(instruction.operands[0].toString());
+        List<IRInstruction> result = new ArrayList<>(instructions.size());
+        for (IRInstruction instruction : instructions)
+            if (instruction.opCode != IRInstruction.OpCode.LABEL || !isSSALabel(instruction.operands[0].toString())
+                    || targets.contains(instruction.operands[0].toString()))
+                result.add(instruction);
+        return result;
+    }
+
+    /** True if instruction i jumps to one of the labels right after it */
+    private static boolean jumpsToNext(List<IRInstruction> instructions, int i) {
+        String target = instructions.get(i).operands[0].toString();
+        for (int j = i + 1; j < instructions.size() && instructions.get(j).opCode == IRInstruction.OpCode.LABEL; j++)
+            if (instructions.get(j).operands[0].toString().equals(target))
+                return true;
+        return false;
+    }
+
+    private static boolean isSSALabel(String name) {
+        String prefix = SSAConstruction.LABEL_BASE + "_";
+        if (!name.startsWith(prefix) || name.length() == prefix.length())
+            return false;
+        for (int i = prefix.length(); i < name.length(); i++)
+            if (!Character.isDigit(name.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /** Declare the variables instructions use that are neither parameters nor declared */
+    private static void declare(IRFunction function) {
+        Set<String> known = new HashSet<>();
+        for (IRVariableOperand param : function.parameters)
+            known.add(param.getName());
+        for (IRVariableOperand variable : function.variables)
+            known.add(variable.getName());
+        List<IRVariableOperand> added = new ArrayList<>();
+        for (IRInstruction instruction : function.instructions)
+            for (IROperand operand : instruction.operands)
+                if (operand instanceof IRVariableOperand && known.add(operand.toString()))
+                    added.add(new IRVariableOperand(((IRVariableOperand) operand).type, operand.toString(), null));
+        if (added.isEmpty())
+            return;
+        List<IRVariableOperand> declared = new ArrayList<>(function.variables);
+        declared.addAll(added);
+        function.variables = declared;
+    }
+}
@@ -0,0 +1,110 @@
+package ir.ssa;
+
+import ir.IRFunction;
+import ir.IRInstruction;
+import ir.analysis.BasicBlock;
+import ir.analysis.ControlFlowGraph;
+import ir.analysis.DominatorTree;
+import ir.analysis.FunctionAnalyses;
+import ir.analysis.Variables;
+import ir.operand.IRLabelOperand;
+import ir.operand.IROperand;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What passes over SSA form rely on, and the lookups they share.
+ *
+ * A function is in SSA form when no variable is assigned twice, no parameter is assigned at all,
+ * and every assignment dominates the reads of its variable; a phi reads each value at the end of
+ * the predecessor it comes from. A variable nothing assigns holds its value on entry throughout.
+ * SSAConstruction leaves functions this way, and a straight-line function that never reassigns a
+ * variable already is.
+ */
+public final class SSAForm {
+
+    private SSAForm() {}
+
+    /** True if the function analyses describe is in SSA form; reads in unreachable code are not checked */
+    public static boolean holds(IRFunction function, FunctionAnalyses analyses) {
+        ControlFlowGraph cfg = analyses.cfg();
+        DominatorTree dominators = analyses.dominators();
+        Variables variables = analyses.variables();
+        int parameterCount = function.parameters.size();
+
+        int[] definition = new int[variables.size()];
+        Arrays.fill(definition, -1);
+        for (int i = 0; i < function.instructions.size(); i++) {
+            int def = variables.def(i);
+            if (def < 0)
+                continue;
+            if (def < parameterCount || definition[def] >= 0)
+                return false;
+            definition[def] = i;
+        }
+
+        Map<String, BasicBlock> labelBlocks = labelBlocks(cfg);
+        for (BasicBlock block : cfg.blocks) {
+            if (!dominators.isReachable(block))
+                continue;
+            for (int i = block.start; i < block.end; i++) {
+                IRInstruction instruction = function.instructions.get(i);
+                for (int j : variables.usedOperands(i)) {
+                    int d = definition[variables.variable(i, j)];
+                    if (d < 0)
+                        continue;
+                    BasicBlock defBlock = cfg.blockOf(d);
+                    if (Phi.isPhi(instruction)) {
+                        BasicBlock predecessor = labelBlocks.get(Phi.label(instruction, (j - 1) / 2));
+                        if (predecessor == null || !dominators.dominates(defBlock, predecessor))
+                            return false;
+                    } else if (defBlock == block ? d >= i : !dominators.dominates(defBlock, block)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A goto from block to the next one, for a block a pass has emptied of all but its labels:
+     * left to fall through, its labels would join the next block's, and the phis there would lose
+     * the edge from it. Null when the next block has no phis, as then the two may as well merge.
+     */
+    public static IRInstruction jumpOutOfEmptied(ControlFlowGraph cfg, BasicBlock block) {
+        if (block.index + 1 >= cfg.blocks.size())
+            return null;
+        List<IRInstruction> next = cfg.blocks.get(block.index + 1).instructions();
+        IRInstruction first = next.get(0);
+        if (first.opCode != IRInstruction.OpCode.LABEL)
+            return null;
+        for (IRInstruction instruction : next) {
+            if (Phi.isPhi(instruction)) {
+                IRInstruction jump = new IRInstruction();
+                jump.opCode = IRInstruction.OpCode.GOTO;
+                jump.irLineNumber = first.irLineNumber;
+                jump.operands = new IROperand[]{new IRLabelOperand(first.operands[0].toString(), jump)};
+                return jump;
+            }
+            if (instruction.opCode != IRInstruction.OpCode.LABEL)
+                break;
+        }
+        return null;
+    }
+
+    /** The block each label of the function starts */
+    public static Map<String, BasicBlock> labelBlocks(ControlFlowGraph cfg) {
+        Map<String, BasicBlock> labelBlocks = new HashMap<>();
+        for (BasicBlock block : cfg.blocks)
+            for (IRInstruction instruction : block.instructions()) {
+                if (instruction.opCode != IRInstruction.OpCode.LABEL)
+                    break;
+                labelBlocks.put(instruction.operands[0].toString(), block);
+            }
+        return labelBlocks;
+    }
+}
@@ -0,0 +1,82 @@
+#!/bin/bash
+
+# Check the IR interpreter's instruction accounting on the test/interpreter/*.ir programs, each run
+# on the matching .in file: with each engine, the per-function counts --stats-out exports must add
+# up to the non-label instructions executed, and with --memoize, the instructions executed plus
+# those reported saved must equal what the program executes without it
+# Usage: run_interpreter_tests.sh
+
+set -euo pipefail
+
+# Run from repo root
+cd "$(dirname "$0")/.."
+
+# The interpreter under test is the one in src/
+./build.sh > /dev/null
+
+mkdir -p test/.cache
+
+# Run a program with extra interpreter arguments: its output goes to test/.cache/interp.out, the
+# interpreter's report to test/.cache/interp.err
+run() {
+  local irFile="$1"
+  shift
+  java -cp build/classes IRInterpreter "$@" "$irFile" < "${irFile%.ir}.in" \
+    > test/.cache/interp.out 2> test/.cache/interp.err
+}
+
+# The number at the end of the report line matching $1
+reported() {
+  grep "$1" test/.cache/interp.err | grep -o '[0-9]*$'
+}
+
+fail=0
+count=0
+for irFile in test/interpreter/*.ir; do
+  [ -e "$irFile" ] || continue
+  base="$(basename "$irFile" .ir)"
+  failed=0
+
+  run "$irFile"
+  cp test/.cache/interp.out test/.cache/plain.out
+  plain="$(reported 'instructions executed')"
+
+  for engine in tree bytecode jit tiered; do
+    run "$irFile" "--engine=$engine" --stats-out=test/.cache/interp.csv
+    executed="$(reported 'instructions executed')"
+    functions="$(awk -F, '$1 == "function" { sum += $5 } END { print sum + 0 }' test/.cache/interp.csv)"
+    if [ "$functions" -ne "$executed" ]; then
+      echo "FAIL $base (--engine=$engine: function counts add up to $functions, $executed executed)"
+      failed=1
+    fi
+  done
+
+  run "$irFile" --memoize
+  executed="$(reported 'instructions executed')"
+  saved="$(reported 'Instructions saved')"
+  if ! diff -q test/.cache/plain.out test/.cache/interp.out > /dev/null; then
+    echo "FAIL $base (output differs with --memoize)"
+    failed=1
+  elif [ $((executed + saved)) -ne "$plain" ]; then
+    echo "FAIL $base (--memoize: $executed executed + $saved saved, $plain without)"
+    failed=1
+  fi
+
+  if [ $failed -eq 0 ]; then
+    echo "ok $base ($plain instructions; --memoize: $executed executed + $saved saved)"
+  fi
+  fail=$((fail+failed))
+  count=$((count+1))
+done
+
+if [ "$count" -eq 0 ]; then
+  echo "No test programs found in test/interpreter" >&2
+  exit 1
+fi
+
+if [ $fail -eq 0 ]; then
+  echo "ALL VERIFIED: $count programs"
+else
+  echo "SOME FAILED: $fail of $count"
+  exit 1
+fi
@@ -0,0 +1,89 @@
+#!/bin/bash
+
+# Run each test/opt/*.ir program with the IR interpreter unoptimized and at -O<level>, and check
+# that the optimized program prints the same and executes no more instructions, and that the
+# compiler runs each pass of the level's pipeline once per function. The test/opt/shrink/*.ir
+# programs have work for every level to remove, so each level up to <level> must execute strictly
+# fewer instructions than the one below it
+# Usage: run_opt_tests.sh [level]   (default 2)
+
+set -euo pipefail
+
+LEVEL="${1:-2}"
+
+# Run from repo root
+cd "$(dirname "$0")/.."
+
+# The optimizer under test is the one in src/
+./build.sh > /dev/null
+
+mkdir -p test/.cache
+
+# Run a program at an optimization level: its output goes to test/.cache, the instruction count to stdout
+run() {
+  java -cp build/classes IRInterpreter "-O$2" "$1" < /dev/null > "test/.cache/opt_$2.out" 2> "test/.cache/opt_$2.err"
+  grep 'instructions executed' "test/.cache/opt_$2.err" | grep -o '[0-9]*$'
+}
+
+# The distinct run counts --time-passes reports for the passes of a level, one per line
+passRuns() {
+  (cd test/.cache && java -cp ../../build/classes Test2 "../../$1" "-O$2" --time-passes 2>&1 > /dev/null) \
+    | awk '$1 != "pass" && $1 != "total" && $3 ~ /^[0-9]+\/[0-9]+$/ { split($3, r, "/"); print r[2] }' \
+    | sort -u
+}
+
+fail=0
+count=0
+for irFile in test/opt/*.ir test/opt/shrink/*.ir; do
+  [ -e "$irFile" ] || continue
+  base="$(basename "$irFile" .ir)"
+  before="$(run "$irFile" 0)"
+  after="$(run "$irFile" "$LEVEL")"
+  functions="$(grep -c '^#start_function' "$irFile")"
+  runs="$(passRuns "$irFile" "$LEVEL")"
+  # For shrink programs, the first level that does not cut the count and the counts up to it
+  stalled=""
+  counts="$before"
+  if [ "$(basename "$(dirname "$irFile")")" = shrink ]; then
+    previous="$before"
+    for ((level = 1; level <= LEVEL; level++)); do
+      current="$(run "$irFile" "$level")"
+      counts="$counts -> $current"
+      if [ "$current" -ge "$previous" ]; then
+        stalled="$level"
+        break
+      fi
+      previous="$current"
+    done
+  fi
+  if ! diff -q test/.cache/opt_0.out "test/.cache/opt_$LEVEL.out" > /dev/null; then
+    echo "FAIL $base (output differs at -O$LEVEL)"
+    fail=$((fail+1))
+  elif [ "$after" -gt "$before" ]; then
+    echo "FAIL $base ($before -> $after instructions at -O$LEVEL)"
+    fail=$((fail+1))
+  elif [ "$LEVEL" -gt 0 ] && [ "$runs" != "$functions" ]; then
+    echo "FAIL $base (passes ran $(echo $runs) times for $functions functions at -O$LEVEL)"
+    fail=$((fail+1))
+  elif [ -n "$stalled" ]; then
+    echo "FAIL $base ($counts instructions: -O$stalled removes nothing)"
+    fail=$((fail+1))
+  elif [ "$counts" != "$before" ]; then
+    echo "ok $base ($counts instructions)"
+  else
+    echo "ok $base ($before -> $after instructions)"
+  fi
+  count=$((count+1))
+done
+
+if [ "$count" -eq 0 ]; then
+  echo "No test programs found in test/opt" >&2
+  exit 1
+fi
+
+if [ $fail -eq 0 ]; then
+  echo "ALL VERIFIED: -O$LEVEL ($count programs)"
+else
+  echo "SOME FAILED: -O$LEVEL ($fail of $count)"
+  exit 1
+fi